@@ -0,0 +1,147 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the banded solvers against the product of the dense matrix and the solution
+ */
+public class BandedMatrixTest extends TestCase {
+
+    // Random band matrix, made diagonally dominant if asked
+    private static Matrix band(int n, int lower, int upper, boolean dominant, long seed) {
+
+        Random random = new Random(seed);
+        Matrix m = new Matrix(n, n);
+
+        for(int row = 0; row < n; row++)
+            for(int col = Math.max(0, row - lower); col <= Math.min(n - 1, row + upper); col++)
+                m.setValue(2 * random.nextDouble() - 1, row, col);
+
+        if(dominant)
+            for(int i = 0; i < n; i++)
+                m.setValue(lower + upper + 1, i, i);
+
+        return m;
+    }
+
+    public void testBandwidths() {
+
+        Matrix m = band(9, 2, 3, false, 1);
+        m.setValue(1, 8, 6);
+        m.setValue(1, 0, 3);
+
+        assertTrue(Arrays.equals(new int[] {2, 3}, BandedMatrix.bandwidths(m)));
+        assertTrue(Arrays.equals(new int[] {2, 3}, BandedMatrix.bandwidths(SparseMatrix.fromDense(m))));
+        assertTrue(Arrays.equals(new int[] {2, 3}, BandedMatrix.bandwidths(embed(m))));
+        assertTrue(Arrays.equals(new int[] {0, 0}, BandedMatrix.bandwidths(new Matrix(4, 4))));
+    }
+
+    public void testDetect() {
+
+        assertNotNull(BandedMatrix.detect(band(20, 1, 1, false, 2)));
+        assertNull(BandedMatrix.detect(band(20, 6, 5, false, 3)));
+        assertNull(BandedMatrix.detect(random(5, 6, 4)));
+    }
+
+    public void testRoundTrip() {
+
+        Matrix m = band(11, 3, 1, false, 5);
+        BandedMatrix b = BandedMatrix.fromMatrix(m);
+
+        assertEquals(3, b.getLower());
+        assertEquals(1, b.getUpper());
+        TestMatrices.assertSame(m, b.toMatrix());
+
+        try {
+            b.setValue(1, 0, 5);
+            fail();
+        } catch(IllegalArgumentException e) {
+            // Outside the band
+        }
+    }
+
+    public void testThomas() {
+
+        for(int n = 1; n < 40; n += 7) {
+            Matrix m = band(n, 1, 1, true, n);
+            Matrix b = random(n, 3, n + 1);
+
+            assertClose(b, multiply(m, BandedMatrix.fromMatrix(m).solve(b)), 1e-12);
+        }
+    }
+
+    public void testTridiagonalWhichNeedsPivoting() {
+
+        // Zero on the diagonal, so it can't be solved without pivoting
+        Matrix m = band(15, 1, 1, false, 6);
+        m.setValue(0, 0, 0);
+        Matrix b = random(15, 2, 7);
+
+        assertClose(b, multiply(m, BandedMatrix.fromMatrix(m).solve(b)), 1e-9);
+    }
+
+    public void testWideBand() {
+
+        for(int n = 5; n < 50; n += 11) {
+            Matrix m = band(n, 3, 2, false, n);
+            Matrix b = random(n, 4, n + 1);
+
+            assertClose(b, multiply(m, BandedMatrix.fromMatrix(m).solve(b)), 1e-9);
+        }
+    }
+
+    public void testViews() {
+
+        Matrix m = band(17, 2, 2, false, 8);
+        Matrix b = random(17, 3, 9);
+
+        Matrix x = BandedMatrix.fromMatrix(embed(m)).solve(embed(b));
+        assertClose(b, multiply(m, x), 1e-9);
+    }
+
+    public void testSingular() {
+
+        Matrix m = band(10, 1, 1, true, 10);
+        for(int i = 0; i < 10; i++)
+            m.setValue(m.getValue(4, i), 5, i);
+
+        assertNull(BandedMatrix.fromMatrix(m).solve(random(10, 1, 11)));
+
+        Matrix zero = new Matrix(6, 6);
+        assertNull(BandedMatrix.fromMatrix(zero).solve(random(6, 1, 12)));
+    }
+
+    public void testThomasAgreesWithLU() {
+
+        // Weakly diagonally dominant, singular for shift 0 and nearly singular for small shifts
+        double shifts[] = {0, 1e-9, 1e-4, 1e-2, 0.5};
+        int n = 12;
+
+        for(double shift : shifts) {
+            Matrix m = new Matrix(n, n);
+            for(int i = 0; i < n; i++) {
+                m.setValue((i == 0 || i == n - 1 ? 1 : 2) + shift, i, i);
+                if(i > 0) m.setValue(-1, i, i - 1);
+                if(i < n - 1) m.setValue(-1, i, i + 1);
+            }
+
+            boolean singular = LUFactorization.decompose(m).isSingular();
+            Matrix x = BandedMatrix.fromMatrix(m).solve(random(n, 1, 15));
+
+            assertEquals("Shift " + shift, singular, x == null);
+        }
+    }
+
+    public void testWrongDimensions() {
+
+        assertNull(BandedMatrix.fromMatrix(band(5, 1, 1, true, 13)).solve(random(4, 1, 14)));
+    }
+}
@@ -0,0 +1,108 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+import static com.rom.matapp.mat.TestMatrices.spd;
+import static com.rom.matapp.mat.TestMatrices.transpose;
+
+/**
+ * Tests the factor and the positive definiteness checks of the blocked Cholesky factorization.
+ * The solves shared with the other factorizations are tested by {@link FactorizationTest}
+ */
+public class CholeskyFactorizationTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    public void testFactorIsLowerTriangular() {
+
+        // Sizes around the panel size
+        int sizes[] = {1, 2, 9, 63, 65, 140};
+
+        for(int n : sizes) {
+            Matrix m = spd(n, n);
+            CholeskyFactorization f = CholeskyFactorization.decompose(m);
+
+            assertNotNull(f);
+
+            // L is lower triangular with a positive diagonal and L L^T = A
+            Matrix l = f.getL();
+            for(int row = 0; row < n; row++) {
+                assertTrue(l.getValue(row, row) > 0);
+
+                for(int col = row + 1; col < n; col++)
+                    assertEquals(0, l.getValue(row, col), 0);
+            }
+
+            assertClose(m, multiply(l, transpose(l)), 1e-9);
+        }
+    }
+
+    public void testDeterminant() {
+
+        Matrix m = spd(30, 3);
+        CholeskyFactorization f = CholeskyFactorization.decompose(m);
+
+        // The square of the product of the diagonal of L
+        double product = 1;
+        for(int i = 0; i < 30; i++)
+            product *= f.getL().getValue(i, i);
+
+        assertEquals(1, f.determinant() / (product * product), 1e-12);
+        assertEquals(1, f.determinant() / LUFactorization.decompose(m).determinant(), 1e-9);
+    }
+
+    public void testOnlyTheLowerTriangleIsRead() {
+
+        Matrix m = spd(12, 4);
+        Matrix upper = m.copy();
+        for(int row = 0; row < 12; row++)
+            for(int col = row + 1; col < 12; col++)
+                upper.setValue(Double.NaN, row, col);
+
+        CholeskyFactorization f = CholeskyFactorization.decompose(m);
+        CholeskyFactorization g = CholeskyFactorization.decompose(upper);
+
+        assertNotNull(g);
+        TestMatrices.assertSame(f.getL(), g.getL());
+    }
+
+    public void testParallelFactor() {
+
+        Matrix m = spd(150, 4);
+
+        assertClose(CholeskyFactorization.decompose(m).getL(), CholeskyFactorization.decompose(m, mPool).getL(), 1e-12);
+    }
+
+    public void testNotPositiveDefinite() {
+
+        Matrix m = spd(12, 8);
+        m.setValue(-1, 11, 11);
+        assertNull(CholeskyFactorization.decompose(m));
+
+        // Singular
+        assertNull(CholeskyFactorization.decompose(new Matrix(4, 4)));
+
+        // Symmetric but indefinite
+        double values[][] = {{1, 2}, {2, 1}};
+        assertNull(CholeskyFactorization.decompose(new Matrix(values)));
+
+        assertNull(CholeskyFactorization.decompose(random(3, 4, 9)));
+    }
+}
@@ -0,0 +1,150 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the copies and snapshots which share the values of a matrix until one of them is written
+ */
+public class CopyOnWriteTest extends TestCase {
+
+    // Plain copy of the values, which shares nothing
+    private static Matrix values(Matrix m) {
+        return new Matrix(m.toArray());
+    }
+
+    public void testCopy() {
+
+        Matrix m = random(4, 5, 1);
+        Matrix old = values(m);
+        Matrix copy = m.copy();
+
+        // Nothing is copied until it's written
+        assertTrue(copy.getBuffer() == m.getBuffer());
+
+        m.setValue(9, 1, 2);
+
+        assertTrue(copy.getBuffer() != m.getBuffer());
+        TestMatrices.assertSame(old, copy);
+        assertEquals(9, m.getValue(1, 2), 0);
+
+        // The other way
+        Matrix other = m.copy();
+        other.setValue(-9, 3, 4);
+        assertEquals(-9, other.getValue(3, 4), 0);
+        assertEquals(old.getValue(3, 4), m.getValue(3, 4), 0);
+    }
+
+    public void testEditBuffer() {
+
+        Matrix m = random(3, 3, 2);
+        Matrix old = values(m);
+        Matrix copy = m.copy();
+
+        double d[] = copy.editBuffer();
+        assertTrue(d != m.getBuffer());
+
+        d[4] = 100;
+        copy.markModified();
+
+        TestMatrices.assertSame(old, m);
+        assertEquals(100, copy.getValue(1, 1), 0);
+
+        // Not shared anymore, so it isn't copied again
+        assertTrue(d == copy.editBuffer());
+    }
+
+    public void testSnapshot() {
+
+        Matrix m = random(6, 2, 3);
+        Matrix old = values(m);
+        long version = m.getVersion();
+
+        Matrix s = m.snapshot();
+        assertEquals(version, s.getVersion());
+
+        m.fill(0);
+
+        assertTrue(m.getVersion() != version);
+        assertEquals(version, s.getVersion());
+        TestMatrices.assertSame(old, s);
+    }
+
+    public void testViews() {
+
+        Matrix m = random(6, 6, 4);
+        Matrix view = m.view(1, 2, 3, 3);
+        Matrix copy = m.copy();
+        Matrix old = values(m);
+
+        // The first write through the view copies the buffer of the matrix and its views
+        view.setValue(5, 0, 0);
+
+        assertEquals(5, m.getValue(1, 2), 0);
+        TestMatrices.assertSame(old, copy);
+
+        m.setValue(6, 2, 3);
+        assertEquals(6, view.getValue(1, 1), 0);
+    }
+
+    public void testCopyOfAView() {
+
+        Matrix m = random(5, 7, 5);
+        Matrix view = embed(m);
+        Matrix copy = view.copy();
+
+        // Packed, so it can be indexed as rows one after another
+        assertEquals(0, copy.getOffset());
+        assertEquals(7, copy.getStride());
+        TestMatrices.assertSame(m, copy);
+
+        view.setValue(1, 0, 0);
+        assertEquals(m.getValue(0, 0), copy.getValue(0, 0), 0);
+    }
+
+    public void testSparseCopy() {
+
+        SparseMatrix s = SparseMatrix.fromDense(random(4, 4, 6));
+        Matrix old = s.toDense();
+        Matrix copy = s.copy();
+
+        assertTrue(copy.isSparse());
+
+        s.setValue(0, 1, 1);
+        s.setValue(3, 2, 2);
+
+        TestMatrices.assertSame(old, copy);
+
+        copy.setValue(8, 0, 0);
+        assertEquals(old.getValue(0, 0), s.getValue(0, 0), 0);
+    }
+
+    public void testFactorsAreCopies() {
+
+        Matrix m = random(8, 8, 7);
+        Matrix b = random(8, 1, 8);
+        LUFactorization f = LUFactorization.decompose(m);
+
+        // Writing the returned factors doesn't change the factorization
+        f.getLU().fill(0);
+        assertClose(b, multiply(m, f.solve(b)), 1e-10);
+    }
+
+    public void testAssign() {
+
+        Matrix m = random(3, 3, 9);
+        Matrix other = random(2, 4, 10);
+        Matrix old = values(other);
+
+        m.assign(other);
+        m.setValue(1, 0, 0);
+
+        TestMatrices.assertSame(old, other);
+        assertEquals(2, m.getRows());
+        assertEquals(4, m.getCols());
+    }
+}
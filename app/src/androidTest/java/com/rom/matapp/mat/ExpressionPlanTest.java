@@ -0,0 +1,173 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the plans joined to resolve batches of expressions
+ */
+public class ExpressionPlanTest extends TestCase {
+
+    private WorkSpace mWorkSpace;
+
+    private Matrix mA;
+    private Matrix mB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkSpace = new WorkSpace();
+
+        mA = add(1, "A", random(4, 4, 1));
+        mB = add(2, "B", random(4, 4, 2));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkSpace.shutdown();
+        super.tearDown();
+    }
+
+    private Matrix add(int id, String name, Matrix m) {
+
+        m.setId(id);
+        m.setName(name);
+        mWorkSpace.addMatrix(m);
+
+        return m;
+    }
+
+    private ExpressionPlan join(int roots[], String... expressions) {
+
+        List<ExpressionPlan> plans = new ArrayList<ExpressionPlan>();
+
+        for(String expression : expressions)
+            plans.add(mWorkSpace.getPlan(expression));
+
+        return ExpressionPlan.join(plans, roots);
+    }
+
+    // Number of instructions with the given operation
+    private static int count(ExpressionPlan plan, int op) {
+
+        int n = 0;
+        for(int i = 0; i < plan.size(); i++)
+            if(plan.getOp(i) == op)
+                n++;
+
+        return n;
+    }
+
+    public void testSameExpression() {
+
+        int roots[] = new int[3];
+        ExpressionPlan joined = join(roots, "[1] * [2]", "[1] * [2]", "[1] * [2]");
+
+        assertEquals(3, joined.size());
+        assertEquals(roots[0], roots[1]);
+        assertEquals(roots[0], roots[2]);
+        assertEquals(ExpressionPlan.OP_MULTIPLY, joined.getOp(roots[0]));
+    }
+
+    public void testSwappedSum() {
+
+        int roots[] = new int[2];
+        ExpressionPlan joined = join(roots, "[1] + [2]", "[2] + [1]");
+
+        // Two loads and one sum
+        assertEquals(3, joined.size());
+        assertEquals(roots[0], roots[1]);
+
+        // The difference and the product aren't commutative
+        joined = join(roots, "[1] - [2]", "[2] - [1]");
+
+        assertEquals(4, joined.size());
+        assertTrue(roots[0] != roots[1]);
+
+        joined = join(roots, "[1] * [2]", "[2] * [1]");
+
+        assertEquals(4, joined.size());
+        assertTrue(roots[0] != roots[1]);
+    }
+
+    public void testLoadsByIdAndName() {
+
+        // A matrix found by name is loaded by its id, so both spellings share the load
+        int roots[] = new int[3];
+        ExpressionPlan joined = join(roots, "A * B", "[1] * [2]", "A * [2]");
+
+        assertEquals(3, joined.size());
+        assertEquals(2, count(joined, ExpressionPlan.OP_LOAD));
+        assertEquals(roots[0], roots[1]);
+        assertEquals(roots[0], roots[2]);
+    }
+
+    public void testMissingName() {
+
+        // A missing matrix is loaded by its name, so the loads of C are shared and the one of D is not
+        int roots[] = new int[3];
+        ExpressionPlan joined = join(roots, "C + [1]", "[1] + C", "D + [1]");
+
+        assertEquals(5, joined.size());
+        assertEquals(3, count(joined, ExpressionPlan.OP_LOAD));
+        assertEquals(roots[0], roots[1]);
+        assertTrue(roots[0] != roots[2]);
+
+        for(int i = 0; i < joined.size(); i++)
+            if("C".equals(joined.getName(i))) {
+                assertEquals(ExpressionPlan.OP_LOAD, joined.getOp(i));
+                assertEquals(-1, joined.getId(i));
+                assertNull(joined.getMatrix(i));
+            }
+    }
+
+    public void testBatch() {
+
+        String expressions[] = { "A * [2]", "[1] * B", "[2] + [1]", "[1] + [2] + C", "C * [1]", "[1] + [2] - [2] * [1]" };
+
+        int roots[] = new int[expressions.length];
+        ExpressionPlan joined = join(roots, expressions);
+
+        // Loads of 1, 2 and C, A B, A + B, (A + B) + C, C A, B A and A + B - B A
+        assertEquals(9, joined.size());
+        assertEquals(roots[0], roots[1]);
+        assertEquals(roots[2], joined.getLeft(roots[3]));
+        assertEquals(roots[2], joined.getLeft(roots[5]));
+
+        List<ResolveResult> results = mWorkSpace.resolveAll(Arrays.asList(expressions));
+
+        Matrix ab = multiply(mA, mB);
+        Matrix sum = TestMatrices.add(mA, mB, 1);
+
+        assertClose(ab, results.get(0).getMatrix(), 1e-12);
+        assertClose(ab, results.get(1).getMatrix(), 1e-12);
+        assertClose(sum, results.get(2).getMatrix(), 1e-14);
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, results.get(3).getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, results.get(4).getStatus());
+        assertClose(TestMatrices.add(sum, multiply(mB, mA), -1), results.get(5).getMatrix(), 1e-12);
+
+        // Once C exists its plans are compiled again and it's loaded by its id
+        Matrix c = add(3, "C", random(4, 4, 3));
+
+        joined = join(roots, expressions);
+
+        assertEquals(9, joined.size());
+        assertEquals(3, count(joined, ExpressionPlan.OP_LOAD));
+        assertSame(c, joined.getMatrix(joined.getLeft(roots[4])));
+
+        results = mWorkSpace.resolveAll(Arrays.asList(expressions));
+
+        for(ResolveResult r : results)
+            assertEquals(WorkSpace.RESULT_OK, r.getStatus());
+
+        assertClose(TestMatrices.add(sum, c, 1), results.get(3).getMatrix(), 1e-14);
+        assertClose(multiply(c, mA), results.get(4).getMatrix(), 1e-12);
+    }
+}
@@ -0,0 +1,226 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.dominant;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the compiled plans of the expressions against the naive operations
+ */
+public class ExpressionTest extends TestCase {
+
+    private WorkSpace mWorkSpace;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkSpace = new WorkSpace();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkSpace.shutdown();
+        super.tearDown();
+    }
+
+    private Matrix add(int id, Matrix m) {
+
+        m.setId(id);
+        mWorkSpace.addMatrix(m);
+
+        return m;
+    }
+
+    private Matrix resolve(String expression) {
+
+        ResolveResult r = mWorkSpace.resolve(expression);
+        assertEquals(WorkSpace.RESULT_OK, r.getStatus());
+
+        return r.getMatrix();
+    }
+
+    // Index of the first instruction with the given operation, or -1
+    private static int find(ExpressionPlan plan, int op) {
+
+        for(int i = 0; i < plan.size(); i++)
+            if(plan.getOp(i) == op)
+                return i;
+
+        return -1;
+    }
+
+    public void testOperations() {
+
+        Matrix a = add(1, random(5, 5, 1));
+        Matrix b = add(2, random(5, 5, 2));
+        Matrix c = add(3, random(5, 3, 3));
+
+        assertClose(TestMatrices.add(a, b, 1), resolve("[1] + [2]"), 1e-14);
+        assertClose(TestMatrices.add(a, b, -1), resolve("[1] - [2]"), 1e-14);
+        assertClose(multiply(TestMatrices.add(a, b, 1), c), resolve("([1] + [2]) * [3]"), 1e-12);
+        assertClose(TestMatrices.add(a, multiply(b, a), -1), resolve("[1] - [2] * [1]"), 1e-12);
+    }
+
+    public void testNames() {
+
+        Matrix a = add(1, random(4, 4, 4));
+        Matrix b = add(2, random(4, 4, 5));
+        a.setName("A");
+        b.setName("B_2");
+
+        assertClose(multiply(a, b), resolve("A * B_2"), 1e-12);
+        assertClose(multiply(a, b), resolve("A*[2]"), 1e-12);
+    }
+
+    public void testChainOrder() {
+
+        // (A B) C costs 50 * 2 * 50 + 50 * 50 * 2, A (B C) only 2 * 50 * 2 + 50 * 2 * 2
+        Matrix a = add(1, random(50, 2, 6));
+        Matrix b = add(2, random(2, 50, 7));
+        Matrix c = add(3, random(50, 2, 8));
+
+        ExpressionPlan plan = mWorkSpace.getPlan("[1] * [2] * [3]");
+        int first = find(plan, ExpressionPlan.OP_MULTIPLY);
+
+        assertEquals(2, plan.getId(plan.getLeft(first)));
+        assertEquals(3, plan.getId(plan.getRight(first)));
+
+        assertClose(multiply(multiply(a, b), c), resolve("[1] * [2] * [3]"), 1e-12);
+    }
+
+    public void testSolveRewrite() {
+
+        Matrix a = add(1, dominant(9, 9));
+        Matrix b = add(2, random(9, 3, 10));
+        Matrix c = add(3, random(2, 9, 11));
+
+        ExpressionPlan left = mWorkSpace.getPlan("[1] ^-1 * [2]");
+        assertTrue(find(left, ExpressionPlan.OP_LEFT_SOLVE) >= 0);
+        assertEquals(-1, find(left, ExpressionPlan.OP_INVERSE));
+
+        ExpressionPlan right = mWorkSpace.getPlan("[3] * [1] ^-1");
+        assertTrue(find(right, ExpressionPlan.OP_RIGHT_SOLVE) >= 0);
+        assertEquals(-1, find(right, ExpressionPlan.OP_INVERSE));
+
+        assertClose(b, multiply(a, resolve("[1] ^-1 * [2]")), 1e-10);
+        assertClose(b, multiply(a, resolve("[1] \\ [2]")), 1e-10);
+        assertClose(c, multiply(resolve("[3] * [1] ^-1"), a), 1e-10);
+        assertClose(TestMatrices.identity(9), multiply(a, resolve("[1] ^-1")), 1e-10);
+    }
+
+    public void testInverseOfANonSquareMatrix() {
+
+        Matrix a = add(1, random(6, 3, 24));
+        Matrix b = add(2, random(6, 2, 25));
+        add(3, random(2, 3, 26));
+
+        // Only an explicit solve is a least squares solution
+        assertEquals(WorkSpace.RESULT_ERROR_SING_MAT, mWorkSpace.resolve("[1] ^-1 * [2]").getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_SING_MAT, mWorkSpace.resolve("[3] * [1] ^-1").getStatus());
+        assertEquals(-1, find(mWorkSpace.getPlan("[1] ^-1 * [2]"), ExpressionPlan.OP_LEFT_SOLVE));
+
+        Matrix x = resolve("[1] \\ [2]");
+        Matrix at = TestMatrices.transpose(a);
+        assertClose(LUFactorization.decompose(multiply(at, a)).solve(multiply(at, b)), x, 1e-10);
+    }
+
+    public void testPlanCache() {
+
+        add(1, random(3, 3, 12));
+        add(2, random(3, 3, 13));
+
+        ExpressionPlan plan = mWorkSpace.getPlan("[1] * [2]");
+        assertSame(plan, mWorkSpace.getPlan("[1] * [2]"));
+
+        // Compiled again when a matrix is replaced or changes its dimensions
+        add(2, random(3, 3, 14));
+        ExpressionPlan replaced = mWorkSpace.getPlan("[1] * [2]");
+        assertNotSame(plan, replaced);
+
+        mWorkSpace.findMatrixById(2).changeDimensions(3, 5);
+        assertNotSame(replaced, mWorkSpace.getPlan("[1] * [2]"));
+        assertEquals(5, resolve("[1] * [2]").getCols());
+    }
+
+    public void testResultCache() {
+
+        Matrix a = add(1, random(6, 6, 15));
+        Matrix b = add(2, random(6, 6, 16));
+
+        ResultCache cache = mWorkSpace.getResultCache();
+
+        resolve("[1] * [2]");
+        long hits = cache.getHits();
+        assertClose(multiply(a, b), resolve("[1] * [2]"), 1e-12);
+        assertTrue(cache.getHits() > hits);
+
+        // Never used after a matrix changes
+        a.setValue(7, 0, 0);
+        assertClose(multiply(a, b), resolve("[1] * [2]"), 1e-12);
+    }
+
+    public void testCommonSubexpressions() {
+
+        Matrix a = add(1, random(5, 5, 17));
+        Matrix b = add(2, random(5, 5, 18));
+        Matrix c = add(3, random(5, 5, 19));
+
+        List<String> expressions = Arrays.asList("[1] * [2]", "[2] * [1] + [3]", "[3] + [2] * [1]", "[1] + [4]");
+        List<ResolveResult> results = mWorkSpace.resolveAll(expressions);
+
+        assertClose(multiply(a, b), results.get(0).getMatrix(), 1e-12);
+        assertClose(TestMatrices.add(multiply(b, a), c, 1), results.get(1).getMatrix(), 1e-12);
+        assertClose(TestMatrices.add(multiply(b, a), c, 1), results.get(2).getMatrix(), 1e-12);
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, results.get(3).getStatus());
+
+        // The sum is commutative, so both of them are the same instruction
+        int roots[] = new int[2];
+        ExpressionPlan joined = ExpressionPlan.join(Arrays.asList(mWorkSpace.getPlan("[2] * [1] + [3]"),
+                mWorkSpace.getPlan("[3] + [2] * [1]")), roots);
+
+        assertEquals(5, joined.size());
+        assertEquals(roots[0], roots[1]);
+    }
+
+    public void testParallel() {
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Matrix a = add(1, random(40, 40, 20));
+            Matrix b = add(2, random(40, 40, 21));
+
+            mWorkSpace.setForkJoinPool(pool);
+
+            assertClose(TestMatrices.add(multiply(a, b), multiply(b, a), 1),
+                    resolve("[1] * [2] + [2] * [1]"), 1e-10);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testErrors() {
+
+        add(1, random(3, 4, 22));
+        add(2, random(3, 3, 23));
+        add(3, new Matrix(3, 3));
+
+        assertEquals(WorkSpace.RESULT_ERROR_DIM, mWorkSpace.resolve("[1] * [2]").getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_DIM, mWorkSpace.resolve("[1] + [2]").getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_SING_MAT, mWorkSpace.resolve("[3] ^-1").getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, mWorkSpace.resolve("[9] + [2]").getStatus());
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, mWorkSpace.resolve("C").getStatus());
+
+        String bad[] = {"[2] +", "([2]", "[2])", "[] * [2]", "[2] # [2]", "[2"};
+        for(String expression : bad)
+            assertEquals(expression, WorkSpace.RESULT_ERROR_BAD_EXP, mWorkSpace.resolve(expression).getStatus());
+
+        assertNull(mWorkSpace.resolve("[2] +").getMatrix());
+    }
+}
@@ -0,0 +1,172 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.identity;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+import static com.rom.matapp.mat.TestMatrices.spd;
+
+/**
+ * Tests the solves shared by every {@link Factorization}. The matrices are symmetric positive
+ * definite, so each one is checked with its LU and its Cholesky factorization.
+ * The properties of each factorization are tested by its own test.
+ */
+public class FactorizationTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    private static Factorization[] factorizations(Matrix m) {
+
+        Factorization f[] = { LUFactorization.decompose(m), CholeskyFactorization.decompose(m) };
+
+        for(Factorization factorization : f) {
+            assertNotNull(factorization);
+            assertFalse(factorization.isSingular());
+        }
+
+        return f;
+    }
+
+    public void testSolve() {
+
+        // Sizes around the panels of both factorizations
+        for(int n : new int[] {1, 2, 9, 63, 65, 140}) {
+            Matrix m = spd(n, n);
+            Matrix b = random(n, 3, n + 1);
+
+            for(Factorization f : factorizations(m)) {
+                assertEquals(n, f.getSize());
+                assertClose(b, multiply(m, f.solve(b)), 1e-9);
+            }
+        }
+    }
+
+    public void testSolveIntoItself() {
+
+        Matrix m = spd(17, 1);
+        Matrix b = random(17, 4, 2);
+
+        for(Factorization f : factorizations(m)) {
+            Matrix x = b.copy();
+
+            assertSame(x, f.solveInto(x, x, null));
+            assertClose(b, multiply(m, x), 1e-9);
+        }
+    }
+
+    public void testSolveRight() {
+
+        Matrix m = spd(23, 3);
+        Matrix b = random(5, 23, 4);
+
+        for(Factorization f : factorizations(m)) {
+            assertClose(b, multiply(f.solveRightInto(b, new Matrix(5, 23)), m), 1e-9);
+
+            // Into the same matrix
+            Matrix x = b.copy();
+            f.solveRightInto(x, x);
+            assertClose(b, multiply(x, m), 1e-9);
+        }
+    }
+
+    public void testInverse() {
+
+        for(int n = 1; n < 100; n += 24) {
+            Matrix m = spd(n, n);
+
+            for(Factorization f : factorizations(m)) {
+                assertClose(identity(n), multiply(m, f.inverse()), 1e-9);
+
+                Matrix inverse = new Matrix(n, n);
+                assertSame(inverse, f.inverseInto(inverse, mPool));
+                assertClose(identity(n), multiply(m, inverse), 1e-9);
+            }
+        }
+    }
+
+    public void testViews() {
+
+        Matrix m = spd(19, 5);
+        Matrix b = random(19, 2, 6);
+
+        for(Factorization f : factorizations(embed(m))) {
+            assertClose(b, multiply(m, f.solve(embed(b))), 1e-9);
+
+            // Into a view
+            Matrix x = embed(new Matrix(19, 2));
+            f.solveInto(b, x, null);
+            assertClose(b, multiply(m, x), 1e-9);
+
+            // In place, in a view
+            x = embed(b);
+            f.solveInto(x, x, null);
+            assertClose(b, multiply(m, x), 1e-9);
+        }
+    }
+
+    public void testParallelSolve() {
+
+        // Enough columns to be solved by blocks in the pool
+        Matrix m = spd(150, 7);
+        Matrix b = random(150, 70, 8);
+
+        for(Factorization f : factorizations(m)) {
+            Matrix x = new Matrix(150, 70);
+            f.solveInto(b, x, mPool);
+
+            assertClose(f.solve(b), x, 1e-12);
+        }
+    }
+
+    public void testDestinationVersions() {
+
+        for(Factorization f : factorizations(spd(6, 9))) {
+            Matrix x = random(6, 2, 10);
+            long version = x.getVersion();
+            f.solveInto(x, x, null);
+            assertTrue(x.getVersion() != version);
+
+            Matrix y = new Matrix(6, 2);
+            version = y.getVersion();
+            f.solveInto(random(6, 2, 11), y, null);
+            assertTrue(y.getVersion() != version);
+
+            Matrix z = new Matrix(3, 6);
+            version = z.getVersion();
+            f.solveRightInto(random(3, 6, 12), z);
+            assertTrue(z.getVersion() != version);
+
+            Matrix inverse = new Matrix(6, 6);
+            version = inverse.getVersion();
+            f.inverseInto(inverse, null);
+            assertTrue(inverse.getVersion() != version);
+        }
+    }
+
+    public void testWrongDimensions() {
+
+        for(Factorization f : factorizations(spd(4, 13))) {
+            assertNull(f.solve(random(3, 1, 14)));
+            assertNull(f.solveInto(random(4, 2, 15), new Matrix(4, 3), null));
+            assertNull(f.solveRightInto(random(1, 3, 16), new Matrix(1, 3)));
+            assertNull(f.inverseInto(new Matrix(4, 3), null));
+        }
+    }
+}
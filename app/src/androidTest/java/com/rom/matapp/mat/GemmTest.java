@@ -0,0 +1,136 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the blocked and the parallel products against the naive triple loop
+ */
+public class GemmTest extends TestCase {
+
+    private static final int SIZES[] = {1, 2, 3, 7, 17, 64, 65, 130};
+
+    private int mRowBlock;
+    private int mColBlock;
+    private int mInnerBlock;
+    private long mThreshold;
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mRowBlock = Gemm.getRowBlock();
+        mColBlock = Gemm.getColBlock();
+        mInnerBlock = Gemm.getInnerBlock();
+        mThreshold = Gemm.getParallelThreshold();
+
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Gemm.setBlockSizes(mRowBlock, mColBlock, mInnerBlock);
+        Gemm.setParallelThreshold(mThreshold);
+
+        mPool.shutdown();
+
+        super.tearDown();
+    }
+
+    public void testSizesAroundTheBlocks() {
+        for(int rows : SIZES)
+            for(int inner : new int[] {1, 5, 67})
+                for(int cols : new int[] {1, 3, 129}) {
+                    Matrix a = random(rows, inner, rows);
+                    Matrix b = random(inner, cols, cols);
+
+                    assertClose(multiply(a, b), Gemm.multiply(a, b), 1e-12);
+                }
+    }
+
+    public void testBlocksSmallerThanTheMatrices() {
+
+        // Sizes which don't divide the matrices, so every block edge is partial
+        Gemm.setBlockSizes(7, 5, 3);
+
+        for(int n : SIZES) {
+            Matrix a = random(n, n + 2, n);
+            Matrix b = random(n + 2, n + 1, n + 1);
+
+            assertClose(multiply(a, b), Gemm.multiply(a, b), 1e-12);
+        }
+    }
+
+    public void testViews() {
+
+        Matrix a = random(19, 23, 1);
+        Matrix b = random(23, 11, 2);
+        Matrix expected = multiply(a, b);
+
+        Matrix c = embed(new Matrix(19, 11));
+        double before[] = c.getBuffer().clone();
+
+        Gemm.multiplyAdd(embed(a), embed(b), c);
+
+        assertClose(expected, c, 1e-12);
+
+        // Only the region of the view is written
+        double buffer[] = c.getBuffer();
+        for(int i = 0; i < buffer.length; i++) {
+            int row = (i - c.getOffset()) / c.getStride();
+            int col = (i - c.getOffset()) % c.getStride();
+
+            if(i < c.getOffset() || row >= c.getRows() || col >= c.getCols())
+                assertEquals(before[i], buffer[i], 0);
+        }
+    }
+
+    public void testMultiplyAddAccumulates() {
+
+        Matrix a = random(9, 4, 3);
+        Matrix b = random(4, 6, 4);
+        Matrix c = random(9, 6, 5);
+
+        Matrix expected = TestMatrices.add(c, multiply(a, b), -2.5);
+
+        Gemm.multiplyAdd(-2.5, a, b, c, null);
+
+        assertClose(expected, c, 1e-12);
+    }
+
+    public void testParallelIsTheSameAsSerial() {
+
+        Gemm.setParallelThreshold(1);
+        Gemm.setBlockSizes(16, 24, 8);
+
+        for(int n : new int[] {33, 100, 131}) {
+            Matrix a = random(n, n - 3, n);
+            Matrix b = random(n - 3, n + 7, n + 1);
+
+            // The blocks are summed in the same order, so the results are equal bit by bit
+            TestMatrices.assertSame(Gemm.multiply(a, b), Gemm.multiply(a, b, mPool));
+        }
+    }
+
+    public void testVersionChanges() {
+
+        Matrix c = new Matrix(3, 3);
+        long version = c.getVersion();
+
+        Gemm.multiplyAdd(random(3, 2, 1), random(2, 3, 2), c, mPool);
+
+        assertTrue(c.getVersion() != version);
+    }
+
+    public void testWrongDimensions() {
+        assertNull(Gemm.multiply(random(3, 4, 1), random(3, 4, 2)));
+    }
+}
@@ -0,0 +1,204 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the Krylov solvers and their preconditioners against the product of the matrix and the solution
+ */
+public class KrylovSolverTest extends TestCase {
+
+    private static final int GRID = 12;
+
+    // Five point discretization of -u'' + c u' on a grid. Symmetric positive definite if c is 0
+    private static SparseMatrix grid(double c) {
+
+        int n = GRID * GRID;
+        SparseMatrix m = new SparseMatrix(n, n);
+
+        for(int i = 0; i < GRID; i++)
+            for(int j = 0; j < GRID; j++) {
+                int row = i * GRID + j;
+
+                m.setValue(4, row, row);
+                if(j > 0) m.setValue(-1 - c, row, row - 1);
+                if(j < GRID - 1) m.setValue(-1 + c, row, row + 1);
+                if(i > 0) m.setValue(-1, row, row - GRID);
+                if(i < GRID - 1) m.setValue(-1, row, row + GRID);
+            }
+
+        return m;
+    }
+
+    // Solves with the given solver and checks the residual
+    private static int check(KrylovSolver solver, SparseMatrix m) {
+
+        Matrix b = random(m.getRows(), 2, 1);
+        Matrix x = solver.solve(m, b);
+
+        assertNotNull(x);
+        assertTrue(solver.getResidual() <= solver.getTolerance());
+        assertClose(b, multiply(m.toDense(), x), 1e-8);
+
+        return solver.getIterations();
+    }
+
+    public void testConjugateGradient() {
+
+        SparseMatrix m = grid(0);
+
+        KrylovSolver solver = new KrylovSolver(KrylovSolver.METHOD_CG);
+        int plain = check(solver, m);
+
+        solver.setPreconditioner(new JacobiPreconditioner(m));
+        check(solver, m);
+
+        solver.setPreconditioner(new ILU0Preconditioner(m));
+        assertTrue(check(solver, m) < plain);
+    }
+
+    public void testBiCGStab() {
+
+        SparseMatrix m = grid(0.4);
+
+        KrylovSolver solver = new KrylovSolver(KrylovSolver.METHOD_BICGSTAB);
+        int plain = check(solver, m);
+
+        solver.setPreconditioner(new ILU0Preconditioner(m));
+        assertTrue(check(solver, m) < plain);
+    }
+
+    public void testGMRES() {
+
+        SparseMatrix m = grid(0.4);
+
+        KrylovSolver solver = new KrylovSolver(KrylovSolver.METHOD_GMRES);
+        check(solver, m);
+
+        // Restarts often
+        solver.setRestart(5);
+        solver.setMaxIterations(5000);
+        check(solver, m);
+
+        solver.setPreconditioner(new ILU0Preconditioner(m));
+        check(solver, m);
+    }
+
+    public void testOperator() {
+
+        // Diagonal operator which is never stored
+        final int n = 31;
+        LinearOperator a = new LinearOperator() {
+            @Override
+            public int getRows() {
+                return n;
+            }
+
+            @Override
+            public int getCols() {
+                return n;
+            }
+
+            @Override
+            public void apply(double x[], double y[]) {
+                for(int i = 0; i < n; i++)
+                    y[i] = (i + 1) * x[i];
+            }
+        };
+
+        double b[] = new double[n];
+        double x[] = new double[n];
+        for(int i = 0; i < n; i++)
+            b[i] = i + 1;
+
+        assertTrue(new KrylovSolver(KrylovSolver.METHOD_CG).solve(a, b, x));
+        for(int i = 0; i < n; i++)
+            assertEquals(1, x[i], 1e-8);
+    }
+
+    public void testILU0OfATridiagonalMatrixIsExact() {
+
+        // A tridiagonal matrix has no fill, so ILU(0) is its LU factorization
+        int n = 20;
+        SparseMatrix m = new SparseMatrix(n, n);
+        for(int i = 0; i < n; i++) {
+            m.setValue(3, i, i);
+            if(i > 0) m.setValue(-1, i, i - 1);
+            if(i < n - 1) m.setValue(-2, i, i + 1);
+        }
+
+        double b[] = new double[n];
+        double z[] = new double[n];
+        for(int i = 0; i < n; i++)
+            b[i] = Math.sin(i);
+
+        new ILU0Preconditioner(m).apply(b, z);
+
+        Matrix x = new Matrix(z, n, 1);
+        assertClose(new Matrix(b, n, 1), multiply(m.toDense(), x), 1e-12);
+    }
+
+    public void testILU0KeepsItsPattern() {
+
+        SparseMatrix m = grid(0.4);
+        ILU0Preconditioner ilu = new ILU0Preconditioner(m);
+
+        int n = m.getRows();
+        double r[] = new double[n];
+        for(int i = 0; i < n; i++)
+            r[i] = Math.cos(i);
+
+        double before[] = new double[n];
+        ilu.apply(r, before);
+
+        // Insertions and removals shift the arrays of the matrix
+        m.setValue(1, 0, n - 1);
+        m.setValue(0, 1, 0);
+        m.setValue(2, 5, 40);
+
+        double after[] = new double[n];
+        ilu.apply(r, after);
+
+        for(int i = 0; i < n; i++)
+            assertEquals(before[i], after[i], 0);
+    }
+
+    public void testZeroPivot() {
+
+        double values[][] = {{0, 1}, {1, 0}};
+
+        try {
+            new ILU0Preconditioner(new Matrix(values));
+            fail();
+        } catch(IllegalArgumentException e) {
+            // No diagonal value
+        }
+    }
+
+    public void testNotConverged() {
+
+        KrylovSolver solver = new KrylovSolver(KrylovSolver.METHOD_CG);
+        solver.setMaxIterations(3);
+
+        assertNull(solver.solve(grid(0), random(GRID * GRID, 1, 2)));
+        assertTrue(solver.getResidual() > solver.getTolerance());
+    }
+
+    public void testWrongDimensions() {
+
+        KrylovSolver solver = new KrylovSolver(KrylovSolver.METHOD_GMRES);
+
+        assertNull(solver.solve(grid(0), random(5, 1, 3)));
+        assertNull(solver.solve(random(4, 5, 4), random(4, 1, 5)));
+
+        try {
+            solver.setRestart(0);
+            fail();
+        } catch(IllegalArgumentException e) {
+            // Must be positive
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.identity;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the pivoting, the panels and the singularity checks of the LU factorization.
+ * The solves shared with the other factorizations are tested by {@link FactorizationTest}
+ */
+public class LUFactorizationTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    // P A = L U
+    private static Matrix reconstruct(LUFactorization f) {
+
+        int n = f.getSize();
+        Matrix lu = f.getLU();
+        Matrix l = new Matrix(n, n);
+        Matrix u = new Matrix(n, n);
+
+        for(int row = 0; row < n; row++)
+            for(int col = 0; col < n; col++)
+                if(col < row)
+                    l.setValue(lu.getValue(row, col), row, col);
+                else {
+                    u.setValue(lu.getValue(row, col), row, col);
+                    if(col == row)
+                        l.setValue(1, row, col);
+                }
+
+        Matrix pa = multiply(l, u);
+        Matrix a = new Matrix(n, n);
+        int p[] = f.getPermutation();
+
+        for(int row = 0; row < n; row++)
+            for(int col = 0; col < n; col++)
+                a.setValue(pa.getValue(row, col), p[row], col);
+
+        return a;
+    }
+
+    public void testPivotingAcrossPanels() {
+
+        // Sizes around the panel size, so rows are swapped across panels
+        int sizes[] = {1, 2, 7, 63, 65, 130};
+
+        for(int n : sizes) {
+            Matrix m = random(n, n, n);
+            LUFactorization f = LUFactorization.decompose(m);
+
+            assertFalse(f.isSingular());
+            assertClose(m, reconstruct(f), 1e-10);
+
+            // The permutation has every row once
+            boolean seen[] = new boolean[n];
+            for(int row : f.getPermutation()) {
+                assertFalse(seen[row]);
+                seen[row] = true;
+            }
+
+            // The pivot is the biggest value of the column relative to the highest value of its row,
+            // so each value of L is bounded by the ratio of the highest values of both rows
+            double s[] = new double[n];
+            for(int row = 0; row < n; row++)
+                for(int col = 0; col < n; col++)
+                    s[row] = Math.max(s[row], Math.abs(m.getValue(row, col)));
+
+            Matrix lu = f.getLU();
+            int p[] = f.getPermutation();
+            for(int row = 0; row < n; row++)
+                for(int col = 0; col < row; col++)
+                    assertTrue(Math.abs(lu.getValue(row, col)) <= s[p[row]] / s[p[col]] * (1 + 1e-12));
+        }
+    }
+
+    public void testZeroLeadingPivot() {
+
+        // Relative to the highest values of their rows, the first column has 0, 1/4 and 1
+        double values[][] = {{0, 2, 1}, {1, 4, 0}, {3, 0, 1}};
+        Matrix m = new Matrix(values);
+        LUFactorization f = LUFactorization.decompose(m);
+
+        assertFalse(f.isSingular());
+        assertEquals(2, f.getPermutation()[0]);
+        assertClose(m, reconstruct(f), 1e-14);
+
+        Matrix b = random(3, 1, 1);
+        assertClose(b, multiply(m, f.solve(b)), 1e-12);
+        assertClose(b.transpose(), multiply(f.solveRight(b.transpose()), m), 1e-12);
+    }
+
+    public void testDeterminant() {
+
+        double values[][] = {{2, 1, 3}, {0, -1, 4}, {1, 2, 1}};
+
+        assertEquals(-11, LUFactorization.decompose(new Matrix(values)).determinant(), 1e-12);
+        assertEquals(1, LUFactorization.decompose(identity(70)).determinant(), 1e-12);
+
+        // A single swap changes the sign
+        double swapped[][] = {{0, 1}, {1, 0}};
+        assertEquals(-1, LUFactorization.decompose(new Matrix(swapped)).determinant(), 0);
+    }
+
+    public void testParallelTrailingUpdate() {
+
+        Matrix m = random(150, 150, 5);
+
+        // The trailing updates of each panel are split by blocks but summed in the same order
+        TestMatrices.assertSame(LUFactorization.decompose(m).getLU(), LUFactorization.decompose(m, mPool).getLU());
+    }
+
+    public void testSingular() {
+
+        Matrix m = random(9, 9, 9);
+        for(int col = 0; col < 9; col++)
+            m.setValue(m.getValue(2, col) + m.getValue(5, col), 7, col);
+
+        LUFactorization f = LUFactorization.decompose(m);
+
+        assertTrue(f.isSingular());
+        assertNull(f.solve(random(9, 1, 10)));
+        assertNull(f.solveRight(random(1, 9, 11)));
+        assertNull(f.inverse());
+
+        assertTrue(LUFactorization.decompose(new Matrix(5, 5)).isSingular());
+    }
+
+    public void testIllConditioned() {
+
+        // Hilbert matrix, its condition number is about 1.5e7
+        int n = 6;
+        Matrix m = new Matrix(n, n);
+        for(int row = 0; row < n; row++)
+            for(int col = 0; col < n; col++)
+                m.setValue(1.0 / (row + col + 1), row, col);
+
+        LUFactorization f = LUFactorization.decompose(m, 1e-12, null);
+        assertFalse(f.isSingular());
+
+        Matrix x = random(n, 1, 12);
+        Matrix solution = f.solve(multiply(m, x));
+        assertClose(x, solution, 1e-6);
+    }
+
+    public void testNotSquare() {
+        assertNull(LUFactorization.decompose(random(3, 4, 13)));
+        assertNull(LUFactorization.decompose(random(4, 3, 14)));
+    }
+}
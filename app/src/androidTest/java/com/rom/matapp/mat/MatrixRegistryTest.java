@@ -0,0 +1,266 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the registries of matrices by id and by name
+ */
+public class MatrixRegistryTest extends TestCase {
+
+    private static Matrix matrix(int id, String name) {
+
+        Matrix m = new Matrix(1, 1);
+        m.setId(id);
+        m.setName(name);
+
+        return m;
+    }
+
+    public void testFindByName() {
+
+        MatrixRegistry registry = new MatrixRegistry();
+        Matrix a = matrix(1, "A");
+        Matrix b = matrix(2, "B");
+
+        registry.put(a);
+        registry.put(b);
+
+        assertSame(a, registry.findByName("A"));
+        assertSame(b, registry.findByName("B"));
+        assertNull(registry.findByName("C"));
+
+        // Renamed after it was added
+        a.setName("C");
+        assertSame(a, registry.findByName("C"));
+        assertNull(registry.findByName("A"));
+
+        a.setName(null);
+        assertNull(registry.findByName("C"));
+
+        registry.remove(2);
+        assertNull(registry.findByName("B"));
+
+        // Not followed after it's removed
+        b.setName("A");
+        assertNull(registry.findByName("A"));
+    }
+
+    public void testSameName() {
+
+        MatrixRegistry registry = new MatrixRegistry();
+        Matrix a = matrix(1, "A");
+        Matrix b = matrix(2, "A");
+
+        registry.put(a);
+        registry.put(b);
+
+        registry.remove(1);
+        assertSame(b, registry.findByName("A"));
+
+        // Replaced by a matrix with the same id
+        Matrix c = matrix(2, "C");
+        registry.put(c);
+        assertNull(registry.findByName("A"));
+        assertSame(c, registry.findByName("C"));
+    }
+
+    public void testConcurrentFindByName() {
+
+        ConcurrentMatrixRegistry registry = new ConcurrentMatrixRegistry();
+
+        for(int id = 0; id < 100; id++)
+            registry.put(matrix(id, "M" + id));
+
+        for(int id = 0; id < 100; id++)
+            assertEquals(id, registry.findByName("M" + id).getId());
+
+        assertNull(registry.findByName("M100"));
+
+        registry.get(42).setName("X");
+        assertNull(registry.findByName("M42"));
+        assertSame(registry.get(42), registry.findByName("X"));
+
+        registry.remove(42);
+        assertNull(registry.findByName("X"));
+
+        Matrix replacement = matrix(7, "Y");
+        registry.put(replacement);
+        assertNull(registry.findByName("M7"));
+        assertSame(replacement, registry.findByName("Y"));
+    }
+
+    // Checks that the registry has the same matrices as the reference, by id and by iteration
+    private static void check(Map<Integer, Matrix> expected, MatrixRegistry registry) {
+
+        assertEquals(expected.size(), registry.size());
+
+        for(Map.Entry<Integer, Matrix> e : expected.entrySet()) {
+            assertSame(e.getValue(), registry.get(e.getKey()));
+            assertTrue(registry.contains(e.getKey()));
+        }
+
+        Map<Matrix, Boolean> seen = new IdentityHashMap<Matrix, Boolean>();
+        for(Matrix m : registry)
+            assertNull(seen.put(m, true));
+
+        assertEquals(expected.size(), seen.size());
+
+        for(Matrix m : expected.values())
+            assertTrue(seen.containsKey(m));
+    }
+
+    public void testPutAndReplace() {
+
+        MatrixRegistry registry = new MatrixRegistry();
+        Matrix a = matrix(1, "A");
+        Matrix b = matrix(1, "B");
+
+        assertNull(registry.put(a));
+        assertSame(a, registry.put(b));
+        assertEquals(1, registry.size());
+        assertSame(b, registry.get(1));
+
+        // The replaced matrix isn't followed anymore
+        assertNull(registry.findByName("A"));
+        a.setName("B");
+        assertSame(b, registry.findByName("B"));
+        b.setName("D");
+        assertNull(registry.findByName("B"));
+
+        // Putting the same matrix again keeps it
+        assertSame(b, registry.put(b));
+        assertSame(b, registry.findByName("D"));
+
+        assertNull(registry.remove(2));
+        assertSame(b, registry.remove(1));
+        assertEquals(0, registry.size());
+        assertNull(registry.get(1));
+        assertNull(registry.findByName("D"));
+    }
+
+    public void testRemoveFromCollisions() {
+
+        // Ids of the same home slot in the initial table, followed by others which fall in their run
+        int mask = 15;
+        int home = MatrixRegistry.hash(1) & mask;
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for(int id = 1; ids.size() < 4; id++)
+            if((MatrixRegistry.hash(id) & mask) == home)
+                ids.add(id);
+
+        for(int id = 1; ids.size() < 7; id++)
+            if((MatrixRegistry.hash(id) & mask) == ((home + 1) & mask) && !ids.contains(id))
+                ids.add(id);
+
+        MatrixRegistry registry = new MatrixRegistry();
+        Map<Integer, Matrix> expected = new HashMap<Integer, Matrix>();
+
+        for(int id : ids) {
+            Matrix m = matrix(id, "M" + id);
+            registry.put(m);
+            expected.put(id, m);
+        }
+
+        check(expected, registry);
+
+        // Removing the first ones of the run moves the rest back
+        for(int i : new int[] { 0, 4, 1 }) {
+            assertSame(expected.remove(ids.get(i)), registry.remove(ids.get(i)));
+            assertNull(registry.get(ids.get(i)));
+            check(expected, registry);
+        }
+
+        for(Matrix m : expected.values())
+            assertSame(m, registry.findByName(m.getName()));
+
+        // The holes can be filled again
+        Matrix m = matrix(ids.get(4), "N");
+        registry.put(m);
+        expected.put(ids.get(4), m);
+        check(expected, registry);
+    }
+
+    public void testRandomOperations() {
+
+        Random random = new Random(1);
+        MatrixRegistry registry = new MatrixRegistry();
+        Map<Integer, Matrix> expected = new HashMap<Integer, Matrix>();
+
+        for(int k = 0; k < 3000; k++) {
+            int id = random.nextInt(200) - 20;
+
+            if(random.nextInt(3) == 0)
+                assertSame(expected.remove(id), registry.remove(id));
+            else {
+                Matrix m = matrix(id, "M" + id);
+                assertSame(expected.put(id, m), registry.put(m));
+            }
+
+            if(k % 100 == 0)
+                check(expected, registry);
+        }
+
+        check(expected, registry);
+
+        for(Matrix m : expected.values())
+            assertSame(m, registry.findByName(m.getName()));
+    }
+
+    public void testRenameAndFind() {
+
+        ConcurrentMatrixRegistry registry = new ConcurrentMatrixRegistry();
+        Matrix a = matrix(1, "A");
+        Matrix b = matrix(2, "B");
+
+        registry.put(a);
+        registry.put(b);
+
+        a.setName("B");
+        b.setName("A");
+
+        assertSame(a, registry.findByName("B"));
+        assertSame(b, registry.findByName("A"));
+
+        // Taking a name from another matrix, any of them can be found until one is renamed
+        b.setName("B");
+        assertNotNull(registry.findByName("B"));
+        assertNull(registry.findByName("A"));
+
+        a.setName("C");
+        assertSame(b, registry.findByName("B"));
+        assertSame(a, registry.findByName("C"));
+    }
+
+    public void testAddMatrixReplaces() {
+
+        WorkSpace workSpace = new WorkSpace();
+
+        try {
+            Matrix a = matrix(1, "A");
+            Matrix b = matrix(1, "B");
+
+            workSpace.addMatrix(a);
+            workSpace.addMatrix(b);
+
+            assertEquals(1, workSpace.getMatrices().size());
+            assertSame(b, workSpace.findMatrixById(1));
+            assertNull(workSpace.findMatrixByName("A"));
+            assertSame(b, workSpace.findMatrixByName("B"));
+
+            workSpace.removeMatrix(1);
+
+            assertNull(workSpace.findMatrixById(1));
+            assertTrue(workSpace.getMatrices().isEmpty());
+        } finally {
+            workSpace.shutdown();
+        }
+    }
+}
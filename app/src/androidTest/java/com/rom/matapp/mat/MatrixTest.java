@@ -0,0 +1,86 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.dominant;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.identity;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+import static com.rom.matapp.mat.TestMatrices.spd;
+
+/**
+ * Tests the operations of the matrix which write into a destination
+ */
+public class MatrixTest extends TestCase {
+
+    public void testInverseIntoIsTheInverse() {
+
+        // Inverted by Cholesky and by LU
+        Matrix matrices[] = {spd(12, 1), dominant(13, 2), random(7, 7, 3)};
+
+        for(Matrix m : matrices) {
+            int n = m.getRows();
+            Matrix dest = new Matrix(n, n);
+
+            assertSame(dest, m.inverseInto(dest));
+            TestMatrices.assertSame(m.inverse(), dest);
+            assertClose(identity(n), multiply(m, dest), 1e-9);
+        }
+    }
+
+    public void testInverseIntoItself() {
+
+        Matrix m = random(9, 9, 4);
+        Matrix inverse = m.inverse();
+
+        m.inverseInto(m);
+        TestMatrices.assertSame(inverse, m);
+
+        // Into a view
+        Matrix a = random(6, 6, 5);
+        Matrix view = embed(a);
+        view.inverseInto(view);
+        assertClose(identity(6), multiply(a, view), 1e-9);
+    }
+
+    public void testInverseIntoOfASingularMatrix() {
+
+        Matrix m = random(5, 5, 6);
+        for(int col = 0; col < 5; col++)
+            m.setValue(m.getValue(0, col) - m.getValue(1, col), 4, col);
+
+        assertNull(m.inverse());
+        assertNull(m.inverseInto(new Matrix(5, 5)));
+        assertNull(random(3, 4, 7).inverseInto(new Matrix(3, 4)));
+        assertNull(random(3, 3, 8).inverseInto(new Matrix(3, 4)));
+    }
+
+    public void testDestinationVersionsChange() {
+
+        Matrix a = random(4, 4, 9);
+        SparseMatrix s = SparseMatrix.fromDense(identity(4));
+        Matrix dest = new Matrix(4, 4);
+
+        long version = dest.getVersion();
+        Matrix.copyValues(a, dest);
+        assertTrue(dest.getVersion() != version);
+
+        version = dest.getVersion();
+        Matrix.copyValues(s, dest);
+        assertTrue(dest.getVersion() != version);
+
+        version = dest.getVersion();
+        a.multiplyInto(s, dest, null);
+        assertTrue(dest.getVersion() != version);
+
+        version = dest.getVersion();
+        s.multiplyInto(a, dest, null);
+        assertTrue(dest.getVersion() != version);
+
+        version = dest.getVersion();
+        a.addInto(s, dest);
+        assertTrue(dest.getVersion() != version);
+    }
+}
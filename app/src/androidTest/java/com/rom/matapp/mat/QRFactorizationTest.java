@@ -0,0 +1,133 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.identity;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+import static com.rom.matapp.mat.TestMatrices.transpose;
+
+/**
+ * Tests the blocked Householder QR factorization against Q R and the normal equations
+ */
+public class QRFactorizationTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    // Solution of A^T A x = A^T b
+    private static Matrix normalEquations(Matrix a, Matrix b) {
+
+        Matrix at = transpose(a);
+
+        return LUFactorization.decompose(multiply(at, a)).solve(multiply(at, b));
+    }
+
+    public void testQIsOrthogonalAndRIsTriangular() {
+
+        // Panels of 32 columns
+        int sizes[][] = {{1, 1}, {5, 3}, {33, 33}, {70, 31}, {101, 65}};
+
+        for(int size[] : sizes) {
+            int rows = size[0];
+            int cols = size[1];
+
+            Matrix a = random(rows, cols, rows);
+            QRFactorization f = QRFactorization.decompose(a);
+
+            assertFalse(f.isRankDeficient());
+
+            Matrix q = f.getQ();
+            Matrix r = f.getR();
+
+            for(int row = 0; row < cols; row++)
+                for(int col = 0; col < row; col++)
+                    assertEquals(0, r.getValue(row, col), 0);
+
+            assertClose(identity(cols), multiply(transpose(q), q), 1e-12);
+            assertClose(a, multiply(q, r), 1e-12);
+        }
+    }
+
+    public void testLeastSquares() {
+
+        Matrix a = random(60, 7, 1);
+        Matrix b = random(60, 3, 2);
+
+        Matrix x = QRFactorization.decompose(a).solve(b);
+        assertClose(normalEquations(a, b), x, 1e-10);
+
+        // The residual is orthogonal to the columns of A
+        Matrix residual = TestMatrices.add(multiply(a, x), b, -1);
+        assertClose(new Matrix(7, 3), multiply(transpose(a), residual), 1e-10);
+    }
+
+    public void testSquare() {
+
+        Matrix a = random(40, 40, 3);
+        Matrix b = random(40, 2, 4);
+
+        assertClose(b, multiply(a, QRFactorization.decompose(a).solve(b)), 1e-9);
+    }
+
+    public void testParallelPanels() {
+
+        Matrix a = random(200, 90, 5);
+        Matrix b = random(200, 5, 6);
+
+        QRFactorization serial = QRFactorization.decompose(a);
+        QRFactorization parallel = QRFactorization.decompose(a, mPool);
+
+        assertClose(serial.getR(), parallel.getR(), 1e-12);
+
+        Matrix x = new Matrix(90, 5);
+        parallel.solveInto(b, x, mPool);
+        assertClose(serial.solve(b), x, 1e-12);
+    }
+
+    public void testViews() {
+
+        Matrix a = random(25, 6, 7);
+        Matrix b = random(25, 2, 8);
+
+        Matrix x = embed(new Matrix(6, 2));
+        QRFactorization.decompose(embed(a)).solveInto(embed(b), x, null);
+
+        assertClose(normalEquations(a, b), x, 1e-10);
+    }
+
+    public void testRankDeficient() {
+
+        Matrix a = random(20, 5, 9);
+        for(int row = 0; row < 20; row++)
+            a.setValue(2 * a.getValue(row, 1) - a.getValue(row, 3), row, 4);
+
+        QRFactorization f = QRFactorization.decompose(a);
+
+        assertTrue(f.isRankDeficient());
+        assertNull(f.solve(random(20, 1, 10)));
+
+        assertTrue(QRFactorization.decompose(new Matrix(4, 2)).isRankDeficient());
+    }
+
+    public void testWrongDimensions() {
+
+        assertNull(QRFactorization.decompose(random(3, 4, 11)));
+        assertNull(QRFactorization.decompose(random(6, 4, 12)).solve(random(5, 1, 13)));
+    }
+}
@@ -0,0 +1,208 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.identity;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the budget, the eviction and the keys of the cache of subexpression results
+ */
+public class ResultCacheTest extends TestCase {
+
+    // A 4x4 dense matrix takes 128 bytes
+    private static final long BYTES = 128;
+
+    public void testLeastRecentlyUsedIsEvicted() {
+
+        ResultCache cache = new ResultCache(3 * BYTES);
+
+        Matrix a = random(4, 4, 1);
+        Matrix b = random(4, 4, 2);
+        Matrix c = random(4, 4, 3);
+        Matrix d = random(4, 4, 4);
+
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.put("c", c);
+
+        assertEquals(3, cache.size());
+        assertEquals(3 * BYTES, cache.getBytes());
+
+        // Reading a makes b the least recently used
+        assertSame(a, cache.get("a"));
+
+        cache.put("d", d);
+
+        assertEquals(3, cache.size());
+        assertEquals(3 * BYTES, cache.getBytes());
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertSame(c, cache.get("c"));
+        assertSame(d, cache.get("d"));
+
+        // A bigger result evicts as many as needed
+        Matrix e = random(8, 4, 5);
+        cache.put("e", e);
+
+        assertEquals(2, cache.size());
+        assertEquals(3 * BYTES, cache.getBytes());
+        assertNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        assertSame(d, cache.get("d"));
+        assertSame(e, cache.get("e"));
+    }
+
+    public void testReplace() {
+
+        ResultCache cache = new ResultCache(4 * BYTES);
+
+        cache.put("a", random(4, 4, 1));
+        cache.put("a", random(8, 4, 2));
+
+        assertEquals(1, cache.size());
+        assertEquals(2 * BYTES, cache.getBytes());
+    }
+
+    public void testBiggerThanTheBudget() {
+
+        ResultCache cache = new ResultCache(2 * BYTES);
+
+        cache.put("a", random(4, 4, 1));
+        cache.put("b", random(12, 4, 2));
+
+        // Nothing is evicted for a result which can't fit
+        assertEquals(1, cache.size());
+        assertEquals(BYTES, cache.getBytes());
+        assertNull(cache.get("b"));
+
+        ResultCache none = new ResultCache(0);
+        none.put("a", random(1, 1, 1));
+
+        assertEquals(0, none.size());
+    }
+
+    public void testSetMaxBytes() {
+
+        ResultCache cache = new ResultCache(4 * BYTES);
+
+        Matrix a = random(4, 4, 1);
+        Matrix b = random(4, 4, 2);
+        Matrix c = random(4, 4, 3);
+
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.put("c", c);
+
+        cache.setMaxBytes(BYTES);
+
+        assertEquals(1, cache.size());
+        assertEquals(BYTES, cache.getBytes());
+        assertSame(c, cache.get("c"));
+
+        cache.setMaxBytes(0);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+
+        try {
+            cache.setMaxBytes(-1);
+            fail();
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSizeOf() {
+
+        Matrix dense = identity(100);
+        SparseMatrix sparse = SparseMatrix.fromDense(dense);
+
+        assertEquals(8L * 100 * 100, ResultCache.sizeOf(dense));
+        assertEquals(12L * 100 + 4L * 101, ResultCache.sizeOf(sparse));
+        assertTrue(ResultCache.sizeOf(sparse) < ResultCache.sizeOf(dense));
+
+        // A view takes the size of its values, not the size of its buffer
+        assertEquals(8L * 2 * 3, ResultCache.sizeOf(dense.view(10, 20, 2, 3)));
+
+        // The sparse results are kept by the size of their nonzeros
+        ResultCache cache = new ResultCache(ResultCache.sizeOf(sparse));
+
+        cache.put("sparse", sparse);
+        cache.put("dense", dense);
+
+        assertEquals(1, cache.size());
+        assertSame(sparse, cache.get("sparse"));
+    }
+
+    public void testCounters() {
+
+        ResultCache cache = new ResultCache(BYTES);
+
+        cache.put("a", random(4, 4, 1));
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(2, cache.getHits());
+
+        cache.resetCounters();
+
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    public void testVersionChange() {
+
+        WorkSpace workSpace = new WorkSpace();
+
+        try {
+            Matrix a = random(5, 5, 1);
+            Matrix b = random(5, 5, 2);
+            a.setId(1);
+            b.setId(2);
+            workSpace.addMatrix(a);
+            workSpace.addMatrix(b);
+
+            ResultCache cache = workSpace.getResultCache();
+
+            ResolveResult first = workSpace.resolve("[1] * [2]");
+            long misses = cache.getMisses();
+            long hits = cache.getHits();
+
+            // The same values are taken from the cache
+            ResolveResult second = workSpace.resolve("[1] * [2]");
+
+            assertEquals(hits + 1, cache.getHits());
+            assertEquals(misses, cache.getMisses());
+            assertClose(first.getMatrix(), second.getMatrix(), 0);
+
+            // A changed matrix has a new version, so the cached product isn't used
+            a.setValue(7, 3, 2);
+
+            ResolveResult third = workSpace.resolve("[1] * [2]");
+
+            assertEquals(WorkSpace.RESULT_OK, third.getStatus());
+            assertEquals(hits + 1, cache.getHits());
+            assertTrue(cache.getMisses() > misses);
+            assertClose(multiply(a, b), third.getMatrix(), 1e-12);
+
+            // A matrix changed through its buffer too
+            b.editBuffer()[0] = -4;
+            b.markModified();
+
+            assertClose(multiply(a, b), workSpace.resolve("[1] * [2]").getMatrix(), 1e-12);
+        } finally {
+            workSpace.shutdown();
+        }
+    }
+}
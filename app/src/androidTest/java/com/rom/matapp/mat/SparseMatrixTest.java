@@ -0,0 +1,234 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the compressed sparse row matrix against the same values stored dense
+ */
+public class SparseMatrixTest extends TestCase {
+
+    private double mThreshold;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThreshold = SparseMatrix.getDensityThreshold();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SparseMatrix.setDensityThreshold(mThreshold);
+        super.tearDown();
+    }
+
+    // Dense matrix with the given fraction of non zero values
+    private static Matrix sparseValues(int rows, int cols, double density, long seed) {
+
+        Random random = new Random(seed);
+        Matrix m = new Matrix(rows, cols);
+
+        for(int row = 0; row < rows; row++)
+            for(int col = 0; col < cols; col++)
+                if(random.nextDouble() < density)
+                    m.setValue(2 * random.nextDouble() - 1, row, col);
+
+        return m;
+    }
+
+    public void testFromDense() {
+
+        Matrix d = sparseValues(13, 7, 0.2, 1);
+        SparseMatrix s = SparseMatrix.fromDense(d);
+
+        TestMatrices.assertSame(d, s);
+        TestMatrices.assertSame(d, s.toDense());
+
+        int nonZeros = 0;
+        for(int row = 0; row < d.getRows(); row++)
+            for(int col = 0; col < d.getCols(); col++)
+                if(d.getValue(row, col) != 0)
+                    nonZeros++;
+
+        assertEquals(nonZeros, s.getNonZeros());
+    }
+
+    public void testSetValue() {
+
+        SparseMatrix s = new SparseMatrix(5, 6);
+        Matrix d = new Matrix(5, 6);
+        Random random = new Random(2);
+
+        // Inserts, overwrites and removals in any order
+        for(int i = 0; i < 500; i++) {
+            int row = random.nextInt(5);
+            int col = random.nextInt(6);
+            double value = random.nextInt(3) == 0 ? 0 : random.nextDouble();
+
+            s.setValue(value, row, col);
+            d.setValue(value, row, col);
+
+            TestMatrices.assertSame(d, s);
+        }
+    }
+
+    public void testAddAndSubtract() {
+
+        SparseMatrix.setDensityThreshold(0.25);
+
+        Matrix a = sparseValues(20, 17, 0.1, 3);
+        Matrix b = sparseValues(20, 17, 0.1, 4);
+        Matrix dense = random(20, 17, 5);
+
+        SparseMatrix sa = SparseMatrix.fromDense(a);
+        SparseMatrix sb = SparseMatrix.fromDense(b);
+
+        TestMatrices.assertSame(TestMatrices.add(a, b, 1), sa.add(sb));
+        TestMatrices.assertSame(TestMatrices.add(a, b, -1), sa.subtract(sb));
+        TestMatrices.assertSame(TestMatrices.add(b, a, -1), sa.subtract(sb, true));
+
+        // Mixed with dense matrices, in both orders
+        TestMatrices.assertSame(TestMatrices.add(a, dense, 1), sa.add(dense));
+        TestMatrices.assertSame(TestMatrices.add(dense, a, 1), dense.add(sa));
+        TestMatrices.assertSame(TestMatrices.add(dense, a, -1), dense.subtract(sa));
+        TestMatrices.assertSame(TestMatrices.add(a, dense, -1), sa.subtract(dense));
+    }
+
+    public void testResultRepresentation() {
+
+        SparseMatrix a = SparseMatrix.fromDense(sparseValues(30, 30, 0.02, 6));
+        SparseMatrix full = SparseMatrix.fromDense(random(30, 30, 7));
+
+        SparseMatrix.setDensityThreshold(0.25);
+
+        assertTrue(a.add(a).isSparse());
+        assertFalse(a.add(full).isSparse());
+    }
+
+    public void testMultiply() {
+
+        Matrix a = sparseValues(21, 15, 0.15, 8);
+        Matrix b = sparseValues(15, 9, 0.15, 9);
+        Matrix dense = random(15, 9, 10);
+        Matrix left = random(7, 21, 11);
+
+        SparseMatrix sa = SparseMatrix.fromDense(a);
+        SparseMatrix sb = SparseMatrix.fromDense(b);
+
+        assertClose(multiply(a, b), sa.multiply(sb), 1e-14);
+        assertClose(multiply(a, dense), sa.multiply(dense), 1e-14);
+        assertClose(multiply(left, a), left.multiply(sa), 1e-14);
+
+        assertNull(sa.multiply(sa));
+    }
+
+    public void testTranspose() {
+
+        Matrix d = sparseValues(8, 13, 0.3, 12);
+
+        TestMatrices.assertSame(TestMatrices.transpose(d), SparseMatrix.fromDense(d).transpose());
+    }
+
+    public void testChangeDimensions() {
+
+        Matrix d = sparseValues(10, 10, 0.4, 13);
+        SparseMatrix s = SparseMatrix.fromDense(d);
+
+        s.changeDimensions(6, 12);
+        d.changeDimensions(6, 12);
+        TestMatrices.assertSame(d, s);
+
+        s.changeDimensions(9, 4);
+        d.changeDimensions(9, 4);
+        TestMatrices.assertSame(d, s);
+    }
+
+    public void testFill() {
+
+        SparseMatrix s = SparseMatrix.fromDense(sparseValues(4, 5, 0.5, 14));
+
+        s.fill(3);
+        for(int row = 0; row < 4; row++)
+            for(int col = 0; col < 5; col++)
+                assertEquals(3, s.getValue(row, col), 0);
+
+        s.fill(0);
+        assertEquals(0, s.getNonZeros());
+    }
+
+    public void testSolveSystem() {
+
+        // Tridiagonal plus far off diagonal values, so it isn't solved as a band
+        int n = 60;
+        Matrix d = new Matrix(n, n);
+
+        for(int i = 0; i < n; i++) {
+            d.setValue(4, i, i);
+            if(i > 0) d.setValue(-1, i, i - 1);
+            if(i < n - 1) d.setValue(-1, i, i + 1);
+        }
+        d.setValue(0.5, 0, n - 1);
+        d.setValue(0.5, n - 1, 0);
+
+        SparseMatrix s = SparseMatrix.fromDense(d);
+        Matrix b = random(n, 3, 15);
+
+        assertClose(b, multiply(d, s.solveSystem(b)), 1e-9);
+
+        // Not symmetric
+        s.setValue(0.7, 3, 40);
+        d.setValue(0.7, 3, 40);
+        assertClose(b, multiply(d, s.solveSystem(b)), 1e-9);
+    }
+
+    public void testDenseEntryPoints() {
+
+        int crossover = Strassen.getCrossover();
+        Strassen.setCrossover(4);
+
+        try {
+            Matrix d = sparseValues(11, 11, 0.3, 16);
+            for(int i = 0; i < 11; i++)
+                d.setValue(5, i, i);
+
+            SparseMatrix s = SparseMatrix.fromDense(d);
+            Matrix dense = random(11, 11, 17);
+
+            assertClose(multiply(d, dense), Gemm.multiply(s, dense), 1e-12);
+            assertClose(multiply(dense, d), Gemm.multiply(dense, s), 1e-12);
+
+            Matrix c = new Matrix(11, 11);
+            Gemm.multiplyAdd(s, s, c);
+            assertClose(multiply(d, d), c, 1e-12);
+
+            try {
+                Gemm.multiplyAdd(dense, dense, s);
+                fail();
+            } catch(IllegalArgumentException e) {
+                // The destination must be dense
+            }
+
+            assertClose(multiply(d, dense), Strassen.multiply(s, dense, null), 1e-12);
+            assertClose(multiply(d, d), Strassen.multiply(s, s, null), 1e-12);
+
+            Matrix inverse = new Matrix(11, 11);
+            assertSame(inverse, s.inverseInto(inverse));
+            assertClose(TestMatrices.identity(11), multiply(d, inverse), 1e-10);
+            assertClose(inverse, s.inverse(), 1e-12);
+
+            Matrix b = random(11, 2, 18);
+            SparseMatrix sb = SparseMatrix.fromDense(b);
+
+            assertClose(b, multiply(d, LUFactorization.decompose(s).solve(sb)), 1e-10);
+            assertClose(b, multiply(d, QRFactorization.decompose(s).solve(sb)), 1e-10);
+            assertClose(b, multiply(d, BandedMatrix.fromMatrix(s).solve(sb)), 1e-10);
+        } finally {
+            Strassen.setCrossover(crossover);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.embed;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the Strassen-Winograd product against the naive triple loop, within its error bound
+ */
+public class StrassenTest extends TestCase {
+
+    private int mCrossover;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Small matrices recurse a few levels
+        mCrossover = Strassen.getCrossover();
+        Strassen.setCrossover(8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Strassen.setCrossover(mCrossover);
+        super.tearDown();
+    }
+
+    public void testSizesWhichNeedPadding() {
+        for(int n : new int[] {1, 8, 9, 15, 16, 17, 33, 50, 64}) {
+            Matrix a = random(n, n, n);
+            Matrix b = random(n, n, n + 1);
+
+            assertClose(multiply(a, b), Strassen.multiply(a, b, null), Strassen.errorBound(a, b));
+        }
+    }
+
+    public void testViews() {
+
+        Matrix a = random(37, 37, 1);
+        Matrix b = random(37, 37, 2);
+
+        assertClose(multiply(a, b), Strassen.multiply(embed(a), embed(b), null), Strassen.errorBound(a, b));
+    }
+
+    public void testParallel() {
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            Matrix a = random(70, 70, 3);
+            Matrix b = random(70, 70, 4);
+
+            assertClose(multiply(a, b), Strassen.multiply(a, b, pool), Strassen.errorBound(a, b));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testThroughMatMath() {
+
+        Matrix a = random(40, 40, 5);
+        Matrix b = random(40, 40, 6);
+
+        assertClose(multiply(a, b), MatMath.multiply(a, b, MatMath.ALGORITHM_STRASSEN, null), Strassen.errorBound(a, b));
+    }
+
+    public void testNotSquare() {
+        assertNull(Strassen.multiply(random(20, 21, 1), random(21, 20, 2), null));
+    }
+
+    public void testPaddedSize() {
+
+        // The padded size is a multiple of a base below the crossover, so the recursion ends evenly
+        for(int n = 1; n < 200; n++) {
+            int size = Strassen.paddedSize(n);
+            int base = size;
+
+            assertTrue(size >= n);
+
+            while(base > Strassen.getCrossover()) {
+                assertEquals(0, base % 2);
+                base /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.rom.matapp.mat;
+
+import junit.framework.Assert;
+
+import java.util.Random;
+
+/**
+ * Matrices and naive reference operations shared by the tests of the kernels
+ */
+final class TestMatrices {
+
+    private TestMatrices() {
+    }
+
+    /**
+     * @return A matrix with values uniformly distributed in [-1, 1)
+     */
+    static Matrix random(int rows, int cols, long seed) {
+
+        Random random = new Random(seed);
+        Matrix m = new Matrix(rows, cols);
+
+        for(int row = 0; row < rows; row++)
+            for(int col = 0; col < cols; col++)
+                m.setValue(2 * random.nextDouble() - 1, row, col);
+
+        return m;
+    }
+
+    /**
+     * @return A random matrix with a dominant diagonal, so it's well conditioned
+     */
+    static Matrix dominant(int n, long seed) {
+
+        Matrix m = random(n, n, seed);
+
+        for(int i = 0; i < n; i++)
+            m.setValue(m.getValue(i, i) + n, i, i);
+
+        return m;
+    }
+
+    /**
+     * @return A random symmetric positive definite matrix
+     */
+    static Matrix spd(int n, long seed) {
+
+        Matrix a = random(n, n, seed);
+        Matrix m = multiply(a, transpose(a));
+
+        for(int i = 0; i < n; i++)
+            m.setValue(m.getValue(i, i) + n, i, i);
+
+        return m;
+    }
+
+    static Matrix identity(int n) {
+
+        Matrix m = new Matrix(n, n);
+
+        for(int i = 0; i < n; i++)
+            m.setValue(1, i, i);
+
+        return m;
+    }
+
+    /**
+     * Copies a matrix into the middle of a bigger buffer filled with garbage
+     *
+     * @return A view over the copy, with an offset and a stride bigger than its cols
+     */
+    static Matrix embed(Matrix m) {
+
+        Matrix big = random(m.getRows() + 3, m.getCols() + 5, 99);
+        Matrix view = big.view(1, 2, m.getRows(), m.getCols());
+
+        for(int row = 0; row < m.getRows(); row++)
+            for(int col = 0; col < m.getCols(); col++)
+                view.setValue(m.getValue(row, col), row, col);
+
+        return view;
+    }
+
+    // Triple loop product through getValue, independent of the kernels
+    static Matrix multiply(Matrix a, Matrix b) {
+
+        Matrix c = new Matrix(a.getRows(), b.getCols());
+
+        for(int row = 0; row < a.getRows(); row++)
+            for(int col = 0; col < b.getCols(); col++) {
+                double sum = 0;
+                for(int k = 0; k < a.getCols(); k++)
+                    sum += a.getValue(row, k) * b.getValue(k, col);
+                c.setValue(sum, row, col);
+            }
+
+        return c;
+    }
+
+    static Matrix transpose(Matrix m) {
+
+        Matrix t = new Matrix(m.getCols(), m.getRows());
+
+        for(int row = 0; row < m.getRows(); row++)
+            for(int col = 0; col < m.getCols(); col++)
+                t.setValue(m.getValue(row, col), col, row);
+
+        return t;
+    }
+
+    static Matrix add(Matrix a, Matrix b, double factor) {
+
+        Matrix c = new Matrix(a.getRows(), a.getCols());
+
+        for(int row = 0; row < a.getRows(); row++)
+            for(int col = 0; col < a.getCols(); col++)
+                c.setValue(a.getValue(row, col) + factor * b.getValue(row, col), row, col);
+
+        return c;
+    }
+
+    /**
+     * @return The biggest absolute difference between the values of two matrices of the same dimensions
+     */
+    static double maxDiff(Matrix a, Matrix b) {
+
+        double diff = 0;
+
+        for(int row = 0; row < a.getRows(); row++)
+            for(int col = 0; col < a.getCols(); col++)
+                diff = Math.max(diff, Math.abs(a.getValue(row, col) - b.getValue(row, col)));
+
+        return diff;
+    }
+
+    static void assertClose(Matrix expected, Matrix actual, double tolerance) {
+
+        Assert.assertNotNull("Missing result", actual);
+        Assert.assertEquals("Rows", expected.getRows(), actual.getRows());
+        Assert.assertEquals("Cols", expected.getCols(), actual.getCols());
+
+        double diff = maxDiff(expected, actual);
+
+        if(!(diff <= tolerance))
+            Assert.fail("Max difference " + diff + " is bigger than " + tolerance);
+    }
+
+    static void assertSame(Matrix expected, Matrix actual) {
+        assertClose(expected, actual, 0);
+    }
+}
@@ -0,0 +1,244 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the expressions and updates computed in the background thread of the workspace
+ */
+public class WorkSpaceAsyncTest extends TestCase {
+
+    private WorkSpace mWorkSpace;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkSpace = new WorkSpace();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkSpace.shutdown();
+        super.tearDown();
+    }
+
+    private static class Callback implements WorkSpace.ResolveCallback {
+
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        volatile ResolveResult mResult;
+        volatile boolean mCancelled;
+
+        @Override
+        public void onProgress(int done, int total) {
+        }
+
+        @Override
+        public void onResolved(ResolveResult result) {
+            mResult = result;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCancelled() {
+            mCancelled = true;
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private Matrix add(int id, Matrix m) {
+
+        m.setId(id);
+        mWorkSpace.addMatrix(m);
+
+        return m;
+    }
+
+    // Products which take seconds to compute
+    private static final String SLOW = "[1] * [1] * [1] * [1] * [1]";
+
+    private void addSlow() {
+        add(1, random(1000, 1000, 1));
+    }
+
+    public void testResolveAsync() throws Exception {
+
+        Matrix a = add(1, random(20, 20, 2));
+        Matrix b = add(2, random(20, 20, 3));
+
+        Callback callback = new Callback();
+        Future<ResolveResult> future = mWorkSpace.resolveExpressionAsync("[1] * [2]", callback);
+
+        ResolveResult result = future.get(5, TimeUnit.SECONDS);
+
+        assertTrue(callback.await());
+        assertSame(result, callback.mResult);
+        assertEquals(WorkSpace.RESULT_OK, result.getStatus());
+        assertClose(multiply(a, b), result.getMatrix(), 1e-12);
+
+        // Errors are results too
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND,
+                mWorkSpace.resolveExpressionAsync("[7]", null).get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    public void testInOrder() throws Exception {
+
+        add(1, random(30, 30, 4));
+
+        final List<String> order = new ArrayList<String>();
+
+        // The callback is called after the future gets its result, so the test waits for the callbacks
+        final CountDownLatch done = new CountDownLatch(10);
+
+        for(int i = 0; i < 10; i++) {
+            final String expression = i % 2 == 0 ? "[1] * [1]" : "[1] + [1]";
+
+            mWorkSpace.resolveExpressionAsync(expression + " - [1]", new Callback() {
+                @Override
+                public void onResolved(ResolveResult result) {
+                    synchronized(order) {
+                        order.add(result.getExpression());
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        synchronized(order) {
+            assertEquals(10, order.size());
+            for(int i = 0; i < 10; i++)
+                assertEquals((i % 2 == 0 ? "[1] * [1]" : "[1] + [1]") + " - [1]", order.get(i));
+        }
+    }
+
+    public void testCancel() throws Exception {
+
+        addSlow();
+        add(2, random(3, 3, 5));
+
+        Callback slow = new Callback();
+        Future<ResolveResult> running = mWorkSpace.resolveExpressionAsync(SLOW, slow);
+
+        // Cancelled before it starts
+        Callback queued = new Callback();
+        Future<ResolveResult> waiting = mWorkSpace.resolveExpressionAsync(SLOW, queued);
+        assertTrue(waiting.cancel(false));
+        assertTrue(queued.await());
+        assertTrue(queued.mCancelled);
+
+        Thread.sleep(100);
+
+        assertTrue(running.cancel(false));
+        assertTrue(slow.await());
+        assertTrue(slow.mCancelled);
+        assertTrue(running.isCancelled());
+
+        // The kernels stopped, so the thread is free again long before the products would end
+        ResolveResult next = mWorkSpace.resolveExpressionAsync("[2] + [2]", null).get(2, TimeUnit.SECONDS);
+        assertEquals(WorkSpace.RESULT_OK, next.getStatus());
+    }
+
+    public void testShutdownStopsTheRunningExpression() throws Exception {
+
+        addSlow();
+
+        Callback running = new Callback();
+        mWorkSpace.resolveExpressionAsync(SLOW, running);
+
+        Callback queued = new Callback();
+        mWorkSpace.resolveExpressionAsync(SLOW, queued);
+
+        Thread.sleep(100);
+        mWorkSpace.shutdown();
+
+        assertTrue(running.mDone.await(2, TimeUnit.SECONDS));
+        assertTrue(running.mCancelled);
+        assertTrue(queued.await());
+        assertTrue(queued.mCancelled);
+
+        // A new thread is started when it's needed
+        assertEquals(WorkSpace.RESULT_OK,
+                mWorkSpace.resolveExpressionAsync("[1] + [1]", null).get(5, TimeUnit.SECONDS).getStatus());
+    }
+
+    public void testInterruptCancelsTheMonitor() {
+
+        ProgressMonitor monitor = new ProgressMonitor();
+        ProgressMonitor previous = ProgressMonitor.enter(monitor);
+
+        try {
+            Thread.currentThread().interrupt();
+            Matrix a = random(300, 300, 6);
+
+            try {
+                Gemm.multiply(a, a);
+                fail();
+            } catch(java.util.concurrent.CancellationException e) {
+                // Stopped by the interrupt
+            }
+
+            assertTrue(monitor.isCancelled());
+            assertTrue(Thread.interrupted());
+        } finally {
+            ProgressMonitor.exit(previous);
+        }
+
+        // Without a monitor the interrupt is left to the caller
+        Thread.currentThread().interrupt();
+        try {
+            Matrix a = random(50, 50, 7);
+            assertClose(multiply(a, a), Gemm.multiply(a, a), 1e-12);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    public void testUpdateAsync() throws Exception {
+
+        Matrix a = add(1, random(10, 10, 8));
+        Matrix b = add(2, random(10, 10, 9));
+
+        Matrix result = mWorkSpace.resolveExpression("[1] * [2]");
+        result.setId(3);
+        mWorkSpace.addResultMatrix(result, "[1] * [2]");
+
+        a.setValue(4, 2, 2);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int status[] = new int[1];
+
+        Future<List<Matrix>> future = mWorkSpace.updateAsync(new WorkSpace.UpdateCallback() {
+            @Override
+            public void onUpdated(List<Matrix> updated, int s) {
+                status[0] = s;
+                done.countDown();
+            }
+        });
+
+        List<Matrix> updated = future.get(5, TimeUnit.SECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(WorkSpace.RESULT_OK, status[0]);
+        assertEquals(1, updated.size());
+        assertEquals(3, updated.get(0).getId());
+        assertClose(multiply(a, b), mWorkSpace.findMatrixById(3), 1e-12);
+
+        // Nothing changed since
+        assertTrue(mWorkSpace.updateAsync(null).get(5, TimeUnit.SECONDS).isEmpty());
+    }
+}
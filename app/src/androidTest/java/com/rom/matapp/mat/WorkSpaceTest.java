@@ -0,0 +1,297 @@
+package com.rom.matapp.mat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.rom.matapp.mat.TestMatrices.assertClose;
+import static com.rom.matapp.mat.TestMatrices.multiply;
+import static com.rom.matapp.mat.TestMatrices.random;
+
+/**
+ * Tests the results of the workspace which are recomputed when their matrices change
+ */
+public class WorkSpaceTest extends TestCase {
+
+    private WorkSpace mWorkSpace;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkSpace = new WorkSpace();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkSpace.shutdown();
+        super.tearDown();
+    }
+
+    private Matrix add(int id, Matrix m) {
+
+        m.setId(id);
+        mWorkSpace.addMatrix(m);
+
+        return m;
+    }
+
+    private Matrix addResult(int id, String expression) {
+
+        ResolveResult r = mWorkSpace.resolve(expression);
+        assertEquals(WorkSpace.RESULT_OK, r.getStatus());
+
+        Matrix m = r.getMatrix();
+        m.setId(id);
+        mWorkSpace.addResultMatrix(m, expression);
+
+        return m;
+    }
+
+    private Matrix get(int id) {
+        return mWorkSpace.findMatrixById(id);
+    }
+
+    public void testUpToDate() {
+
+        add(1, random(4, 4, 1));
+        add(2, random(4, 4, 2));
+        addResult(3, "[1] * [2]");
+
+        assertFalse(mWorkSpace.isStale(3));
+        assertFalse(mWorkSpace.isStale(1));
+        assertTrue(mWorkSpace.update().isEmpty());
+    }
+
+    public void testOnlyDependentResults() {
+
+        Matrix a = add(1, random(4, 4, 1));
+        Matrix b = add(2, random(4, 4, 2));
+        Matrix c = add(3, random(4, 4, 3));
+
+        // The result 4 uses the result 5, so it must be computed after it
+        addResult(5, "[1] * [2]");
+        addResult(4, "[5] + [1]");
+        Matrix other = addResult(6, "[2] * [3]");
+        long version = other.getVersion();
+
+        a.setValue(10, 2, 1);
+
+        assertTrue(mWorkSpace.isStale(5));
+        assertTrue(mWorkSpace.isStale(4));
+        assertFalse(mWorkSpace.isStale(6));
+
+        List<Matrix> updated = mWorkSpace.update();
+
+        assertEquals(2, updated.size());
+        assertEquals(5, updated.get(0).getId());
+        assertEquals(4, updated.get(1).getId());
+
+        assertFalse(mWorkSpace.isStale(5));
+        assertFalse(mWorkSpace.isStale(4));
+
+        Matrix ab = multiply(a, b);
+        assertClose(ab, get(5), 1e-12);
+        assertClose(TestMatrices.add(ab, a, 1), get(4), 1e-12);
+
+        // The independent result is not recomputed
+        assertSame(other, get(6));
+        assertEquals(version, other.getVersion());
+        assertClose(multiply(b, c), other, 1e-12);
+
+        assertTrue(mWorkSpace.update().isEmpty());
+    }
+
+    public void testChain() {
+
+        Matrix a = add(1, random(3, 3, 1));
+        Matrix b = add(2, random(3, 3, 2));
+
+        addResult(3, "[1] * [2]");
+        addResult(4, "[3] * [2]");
+        addResult(5, "[4] - [3]");
+
+        b.setValue(-3, 0, 0);
+
+        // Stale through the results it uses
+        assertTrue(mWorkSpace.isStale(5));
+
+        List<Matrix> updated = mWorkSpace.update();
+
+        assertEquals(3, updated.size());
+        assertEquals(3, updated.get(0).getId());
+        assertEquals(4, updated.get(1).getId());
+        assertEquals(5, updated.get(2).getId());
+
+        Matrix r3 = multiply(a, b);
+        Matrix r4 = multiply(r3, b);
+        assertClose(TestMatrices.add(r4, r3, -1), get(5), 1e-12);
+    }
+
+    public void testChangedResult() {
+
+        add(1, random(3, 3, 1));
+        add(2, random(3, 3, 2));
+
+        Matrix r = addResult(3, "[1] + [2]");
+        addResult(4, "[3] * [3]");
+
+        // A result changed by hand changes the results which use it, but it isn't recomputed
+        r.setValue(5, 1, 1);
+
+        assertFalse(mWorkSpace.isStale(3));
+        assertTrue(mWorkSpace.isStale(4));
+
+        List<Matrix> updated = mWorkSpace.update();
+
+        assertEquals(1, updated.size());
+        assertEquals(4, updated.get(0).getId());
+        assertEquals(5.0, get(3).getValue(1, 1));
+        assertClose(multiply(r, r), get(4), 1e-12);
+    }
+
+    public void testRemovedMatrix() {
+
+        Matrix a = add(1, random(3, 3, 1));
+        add(2, random(3, 3, 2));
+        Matrix r = addResult(3, "[1] + [2]");
+        Matrix old = r.copy();
+
+        mWorkSpace.removeMatrix(2);
+
+        assertTrue(mWorkSpace.isStale(3));
+
+        // The result can't be resolved, so it keeps its values and the error is reported
+        assertTrue(mWorkSpace.update().isEmpty());
+        assertEquals(WorkSpace.RESULT_ERROR_MAT_NFOUND, mWorkSpace.getStatus());
+        assertClose(old, get(3), 0);
+
+        // A removed result isn't recomputed
+        mWorkSpace.clearStatus();
+        mWorkSpace.removeMatrix(3);
+        a.setValue(1, 0, 0);
+
+        assertFalse(mWorkSpace.isStale(3));
+        assertTrue(mWorkSpace.update().isEmpty());
+    }
+
+    // Runs the tasks in their own threads and fails with the first error of any of them
+    private static void run(Runnable... tasks) throws InterruptedException {
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for(final Runnable task : tasks)
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch(Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+
+        if(!errors.isEmpty())
+            throw new AssertionError(errors.get(0));
+    }
+
+    public void testConcurrentAccess() throws InterruptedException {
+
+        final Matrix a = add(1, random(6, 6, 1));
+        final int n = 200;
+
+        final Runnable tasks[] = new Runnable[4];
+
+        for(int t = 0; t < tasks.length; t++) {
+            final int thread = t;
+
+            tasks[t] = new Runnable() {
+                @Override
+                public void run() {
+                    for(int k = 0; k < n; k++) {
+                        int id = 1000 * (thread + 1) + k;
+                        Matrix m = random(6, 6, id);
+
+                        m.setId(id);
+                        m.setName("M" + id);
+                        mWorkSpace.addMatrix(m);
+
+                        assertSame(m, mWorkSpace.findMatrixByName("M" + id));
+                        assertSame(m, mWorkSpace.findMatrixById(id));
+
+                        // The matrices of the other threads are found or not, but never wrong
+                        int other = 1000 * ((thread + 1) % tasks.length + 1) + k;
+                        Matrix o = mWorkSpace.findMatrixByName("M" + other);
+                        assertTrue(o == null || o.getId() == other);
+
+                        ResolveResult r = mWorkSpace.resolve("M" + id + " * [1] + [" + id + "]");
+                        assertEquals(WorkSpace.RESULT_OK, r.getStatus());
+                        assertClose(TestMatrices.add(multiply(m, a), m, 1), r.getMatrix(), 1e-12);
+                    }
+                }
+            };
+        }
+
+        run(tasks);
+
+        assertEquals(1 + tasks.length * n, mWorkSpace.getMatrices().size());
+    }
+
+    public void testSnapshotsDuringUpdate() throws InterruptedException {
+
+        final Matrix a = add(1, constant(2, 1));
+        addResult(2, "[1] + [1]");
+
+        final int n = 300;
+        final Matrix result = get(2);
+
+        // The source is replaced by matrices of changing dimensions whose values are all equal,
+        // so a snapshot of the result taken in the middle of an update would have mixed values
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                for(int k = 1; k <= n; k++) {
+                    a.assign(constant(2 + k % 3, k));
+
+                    mWorkSpace.update();
+                }
+            }
+        };
+
+        Runnable reader = new Runnable() {
+            @Override
+            public void run() {
+                for(int k = 0; k < 20 * n; k++) {
+                    Matrix s = result.snapshot();
+
+                    assertEquals(s.getRows(), s.getCols());
+
+                    for(int i = 0; i < s.getRows(); i++)
+                        for(int j = 0; j < s.getCols(); j++)
+                            assertEquals(s.getValue(0, 0), s.getValue(i, j));
+                }
+            }
+        };
+
+        run(writer, reader);
+
+        assertEquals(2 + n % 3, result.getRows());
+        assertEquals(2.0 * n, result.getValue(1, 1));
+    }
+
+    private static Matrix constant(int n, double value) {
+
+        Matrix m = new Matrix(n, n);
+        m.fill(value);
+
+        return m;
+    }
+}
@@ -2,6 +2,8 @@ package com.rom.matapp;
 
 import android.app.Activity;
 import android.app.DialogFragment;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.util.TypedValue;
@@ -18,6 +20,7 @@ import android.widget.LinearLayout;
 import android.widget.Toast;
 
 import com.rom.matapp.mat.Matrix;
+import com.rom.matapp.mat.ResolveResult;
 import com.rom.matapp.mat.WorkSpace;
 import com.rom.matapp.ui.ExpressionView;
 import com.rom.matapp.ui.MatrixField;
@@ -26,6 +29,8 @@ import com.rom.matapp.ui.NewMatrixDialogFragment;
 import com.rom.matapp.ui.OperatorView;
 import com.rom.matapp.utils.MyUtils;
 
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -45,6 +50,10 @@ public class WorkSpaceActivity extends Activity {
     // Current focused child. -1 if none is focused
     private int childFocused = -1;
 
+    // Expression being resolved in background and its dialog. Null if there's none
+    private Future<ResolveResult> mResolving;
+    private ProgressDialog mProgressDialog;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -69,6 +78,17 @@ public class WorkSpaceActivity extends Activity {
         findViewById(R.id.scroll_container).requestFocus();
     }
 
+    @Override
+    protected void onDestroy() {
+        if(mResolving != null)
+            mResolving.cancel(true);
+
+        finishResolving();
+        mWorkspace.shutdown();
+
+        super.onDestroy();
+    }
+
     /**
      * Creates a new expression
      */
@@ -87,16 +107,99 @@ public class WorkSpaceActivity extends Activity {
     }
 
     /**
-     * Adds the result expression to this expression
+     * Resolves the focused expression in background. A dialog is shown meanwhile,
+     * which cancels the computation if it's cancelled.
      */
     public void resolveExpression() {
-        if(!isExpressionFocused() || getFocusedExpression().isResult()) return;
+        if(!isExpressionFocused() || getFocusedExpression().isResult() || mResolving != null) return;
+
+        // The result goes to this expression, even if another one is focused when it arrives
+        final ExpressionView source = getFocusedExpression();
+        String string = source.toString();
+
+        mProgressDialog = new ProgressDialog(this);
+        mProgressDialog.setMessage(getString(R.string.resolving));
+        mProgressDialog.setIndeterminate(true);
+        mProgressDialog.setCancelable(true);
+        mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.cancel();
+                    }
+                });
+        mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                if(mResolving != null)
+                    mResolving.cancel(true);
+            }
+        });
+        mProgressDialog.show();
+
+        mResolving = mWorkspace.resolveExpressionAsync(string, new WorkSpace.ResolveCallback() {
+            @Override
+            public void onProgress(final int done, final int total) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mProgressDialog != null)
+                            mProgressDialog.setMessage(getString(R.string.resolving_progress, done, total));
+                    }
+                });
+            }
 
-        String string = getFocusedExpression().toString();
+            @Override
+            public void onResolved(final ResolveResult result) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mResolving == null) return;
 
-        Matrix r = mWorkspace.resolveExpression(string);
+                        finishResolving();
+                        showResult(source, result);
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishResolving();
+                    }
+                });
+            }
+        });
+    }
 
-        int expStatus = mWorkspace.getStatus();
+    // Hides the dialog of the expression being resolved
+    private void finishResolving() {
+        mResolving = null;
+
+        if(mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+    }
+
+    /**
+     * Adds the result expression to the given expression or shows its error.
+     * The result is dropped if the expression was deleted meanwhile.
+     *
+     * @param source The expression which was resolved
+     * @param result Its result
+     */
+    private void showResult(ExpressionView source, ResolveResult result) {
+
+        if(mContainer.indexOfChild(source) < 0) return;
+
+        String string = result.getExpression();
+
+        Matrix r = result.getMatrix();
+
+        int expStatus = result.getStatus();
 
         if(expStatus == WorkSpace.RESULT_OK) {
 
@@ -110,12 +213,12 @@ public class WorkSpaceActivity extends Activity {
             m.setId(id);
 
             m.setMat(r);
-            mWorkspace.addMatrix(r);
+            mWorkspace.addResultMatrix(r, string);
 
-            if (getFocusedExpression().isParent())
-                updateResultExpression(m);
+            if (source.isParent())
+                updateResultExpression(source, m);
             else
-                addResultExpression(m);
+                addResultExpression(source, m);
 
             m = null;
             r = null;
@@ -141,9 +244,9 @@ public class WorkSpaceActivity extends Activity {
 
     }
 
-    public void addResultExpression(MatrixView m) {
+    public void addResultExpression(ExpressionView parent, MatrixView m) {
         final int margin = (int) getResources().getDimension(R.dimen.matrix_view_margin);
-        final int index = childFocused >= 0 ? childFocused + 1 : mContainer.getChildCount();
+        final int index = mContainer.indexOfChild(parent) + 1;
 
         LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(-1, -2);
         params.topMargin = margin;
@@ -151,16 +254,16 @@ public class WorkSpaceActivity extends Activity {
         ExpressionView expression = new ExpressionView(this);
         expression.addMatrixView(m);
 
-        getFocusedExpression().setChildExpression(expression);
-        expression.setParentExpression(getFocusedExpression());
+        parent.setChildExpression(expression);
+        expression.setParentExpression(parent);
 
         mContainer.addView(expression, index, params);
         expression.setFocused(true);
     }
 
-    public void updateResultExpression(MatrixView m) {
+    public void updateResultExpression(ExpressionView parent, MatrixView m) {
 
-        ExpressionView expr = getFocusedExpression().getExpressionChild();
+        ExpressionView expr = parent.getExpressionChild();
 
         expr.deleteChildAt(0);
         expr.addMatrixView(m);
@@ -219,6 +322,30 @@ public class WorkSpaceActivity extends Activity {
         mWorkspace.removeMatrix(id);
     }
 
+    /**
+     * Recomputes in background the results which use a matrix whose values changed
+     * and shows their new values
+     */
+    public void onMatrixChanged() {
+
+        mWorkspace.updateAsync(new WorkSpace.UpdateCallback() {
+            @Override
+            public void onUpdated(final List<Matrix> updated, int status) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(Matrix m : updated) {
+                            View view = mContainer.findViewById(m.getId());
+
+                            if(view instanceof MatrixView)
+                                ((MatrixView) view).refresh();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Focus the given view
      *
@@ -0,0 +1,363 @@
+package com.rom.matapp.mat;
+
+/**
+ * Square matrix whose non zero values are in a band around the diagonal: the element (i, j)
+ * can only be non zero if i - lower <= j <= i + upper. Only the band is stored, row by row.
+ *
+ * Systems are solved in O(n * lower * (lower + upper)) instead of O(n^3): tridiagonal diagonally
+ * dominant systems by the Thomas algorithm and any other by a banded Gauss elimination
+ * with the same scaled pivoting as {@link Matrix#solveSystem(Matrix)}.
+ */
+public class BandedMatrix {
+
+    // Minimum allowed scaled pivot, the same as the LU factorization
+    private static final double PIVOT_TOLERANCE = LUFactorization.DEFAULT_TOLERANCE;
+
+    // Size
+    private int mSize;
+
+    // Number of diagonals below and above the main diagonal
+    private int mLower;
+    private int mUpper;
+
+    // Band values. Element (i, j) is at i * (lower + upper + 1) + j - i + lower
+    private double mValues[];
+
+    /**
+     * Creates a new banded matrix with all its values set to zero
+     *
+     * @param n Size
+     * @param lower Number of diagonals below the main diagonal
+     * @param upper Number of diagonals above the main diagonal
+     */
+    public BandedMatrix(int n, int lower, int upper) {
+        mSize = n;
+        mLower = lower;
+        mUpper = upper;
+        mValues = new double[n * (lower + upper + 1)];
+    }
+
+    /**
+     * Creates a banded matrix with the values of the given square matrix
+     *
+     * @param m Matrix
+     * @return The banded matrix or null if the matrix is not square
+     */
+    public static BandedMatrix fromMatrix(Matrix m) {
+
+        if(!m.isSquare())
+            return null;
+
+        int bands[] = bandwidths(m);
+
+        return fromMatrix(m, bands[0], bands[1]);
+    }
+
+    /**
+     * Creates a banded matrix from the given matrix if its band is narrow enough to be
+     * solved faster than the full matrix
+     *
+     * @param m Matrix
+     * @return The banded matrix or null if the matrix is not square or its band is too wide
+     */
+    public static BandedMatrix detect(Matrix m) {
+
+        if(!m.isSquare())
+            return null;
+
+        int bands[] = bandwidths(m);
+
+        if(2 * (bands[0] + bands[1] + 1) > m.getRows())
+            return null;
+
+        return fromMatrix(m, bands[0], bands[1]);
+    }
+
+    private static BandedMatrix fromMatrix(Matrix m, int lower, int upper) {
+
+        int n = m.getRows();
+
+        BandedMatrix band = new BandedMatrix(n, lower, upper);
+
+        for(int row = 0; row < n; row++)
+            for(int col = Math.max(0, row - lower); col <= Math.min(n - 1, row + upper); col++)
+                band.mValues[band.index(row, col)] = m.getValue(row, col);
+
+        return band;
+    }
+
+    /**
+     * Gets the number of non zero diagonals below and above the main diagonal
+     *
+     * @param m Matrix
+     * @return The lower and upper bandwidths
+     */
+    public static int[] bandwidths(Matrix m) {
+
+        int lower = 0;
+        int upper = 0;
+
+        if(m.isSparse()) {
+            SparseMatrix s = (SparseMatrix) m;
+            int rowPtr[] = s.getRowPointers();
+            int colIdx[] = s.getColumnIndices();
+
+            for(int row = 0; row < m.getRows(); row++)
+                if(rowPtr[row] < rowPtr[row + 1]) {
+                    lower = Math.max(lower, row - colIdx[rowPtr[row]]);
+                    upper = Math.max(upper, colIdx[rowPtr[row + 1] - 1] - row);
+                }
+        } else {
+            double d[] = m.getBuffer();
+
+            for(int row = 0; row < m.getRows(); row++) {
+                int i = m.getOffset() + row * m.getStride();
+
+                for(int col = 0; col < row - lower; col++)
+                    if(d[i + col] != 0) {
+                        lower = row - col;
+                        break;
+                    }
+
+                for(int col = m.getCols() - 1; col > row + upper; col--)
+                    if(d[i + col] != 0) {
+                        upper = col - row;
+                        break;
+                    }
+            }
+        }
+
+        return new int[] {lower, upper};
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getLower() {
+        return mLower;
+    }
+
+    public int getUpper() {
+        return mUpper;
+    }
+
+    public double getValue(int row, int col) {
+        return inBand(row, col) ? mValues[index(row, col)] : 0;
+    }
+
+    public void setValue(double value, int row, int col) {
+
+        if(!inBand(row, col))
+            throw new IllegalArgumentException("(" + row + ", " + col + ") is outside the band");
+
+        mValues[index(row, col)] = value;
+    }
+
+    /**
+     * Returns the matrix with dense storage
+     *
+     * @return The matrix
+     */
+    public Matrix toMatrix() {
+
+        Matrix m = new Matrix(mSize, mSize);
+
+        for(int row = 0; row < mSize; row++)
+            for(int col = Math.max(0, row - mLower); col <= Math.min(mSize - 1, row + mUpper); col++)
+                m.setValue(mValues[index(row, col)], row, col);
+
+        return m;
+    }
+
+    /**
+     * Solves the system A x = b for each column of b
+     *
+     * @param mb Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    public Matrix solve(Matrix mb) {
+
+        if(mb.getRows() != mSize)
+            return null;
+
+        Matrix x = new Matrix(mb);
+
+        if(mLower == 1 && mUpper == 1 && isDiagonallyDominant())
+            return thomas(x) ? x : null;
+
+        return eliminate(x) ? x : null;
+    }
+
+    /**
+     * Thomas algorithm. Solves in place a tridiagonal system which doesn't need pivoting.
+     * Each pivot is scaled by the highest value of its row and checked against the same
+     * tolerance as the elimination, so both agree on which matrices are singular.
+     */
+    private boolean thomas(Matrix x) {
+
+        int n = mSize;
+        int k = x.getCols();
+
+        double c[] = new double[n];
+        double d[] = x.editBuffer();
+
+        double diag = mValues[index(0, 0)];
+        if(!isPivot(diag, 0))
+            return false;
+
+        c[0] = n > 1 ? mValues[index(0, 1)] / diag : 0;
+        for(int col = 0; col < k; col++)
+            d[col] /= diag;
+
+        for(int i = 1; i < n; i++) {
+            double a = mValues[index(i, i - 1)];
+            double den = mValues[index(i, i)] - a * c[i - 1];
+
+            if(!isPivot(den, i))
+                return false;
+
+            c[i] = i < n - 1 ? mValues[index(i, i + 1)] / den : 0;
+
+            for(int col = 0; col < k; col++)
+                d[i * k + col] = (d[i * k + col] - a * d[(i - 1) * k + col]) / den;
+        }
+
+        for(int i = n - 2; i >= 0; i--)
+            for(int col = 0; col < k; col++)
+                d[i * k + col] -= c[i] * d[(i + 1) * k + col];
+
+        return true;
+    }
+
+    /**
+     * Banded Gauss elimination with scaled partial pivoting. Solves the system in place.
+     * The row swaps make the band of U grow up to lower + upper diagonals.
+     */
+    private boolean eliminate(Matrix x) {
+
+        int n = mSize;
+        int k = x.getCols();
+        int lower = mLower;
+        int upper = mLower + mUpper;
+
+        // Working band: row i holds the columns i - lower to i + lower + upper
+        int width = lower + upper + 1;
+        double a[] = new double[n * width];
+        double b[] = x.editBuffer();
+        double s[] = new double[n];
+
+        for(int row = 0; row < n; row++)
+            for(int col = Math.max(0, row - mLower); col <= Math.min(n - 1, row + mUpper); col++) {
+                double v = mValues[index(row, col)];
+
+                a[row * width + col - row + lower] = v;
+                s[row] = Math.max(s[row], Math.abs(v));
+            }
+
+        for(int p = 0; p < n; p++) {
+
+            int last = Math.min(n - 1, p + lower);
+            int end = Math.min(n - 1, p + upper);
+
+            // Pivot
+            int q = p;
+            double big = Math.abs(a[p * width + lower] / s[p]);
+            for(int i = p + 1; i <= last; i++) {
+                double aux = Math.abs(a[i * width + p - i + lower] / s[i]);
+                if(aux > big) {
+                    big = aux;
+                    q = i;
+                }
+            }
+
+            // Also rejects rows of zeros
+            if(!(big >= PIVOT_TOLERANCE))
+                return false;
+
+            if(q != p) {
+                for(int col = p; col <= end; col++) {
+                    double aux = a[p * width + col - p + lower];
+                    a[p * width + col - p + lower] = a[q * width + col - q + lower];
+                    a[q * width + col - q + lower] = aux;
+                }
+
+                for(int col = 0; col < k; col++) {
+                    double aux = b[p * k + col];
+                    b[p * k + col] = b[q * k + col];
+                    b[q * k + col] = aux;
+                }
+
+                double aux = s[p];
+                s[p] = s[q];
+                s[q] = aux;
+            }
+
+            double pivot = a[p * width + lower];
+
+            for(int i = p + 1; i <= last; i++) {
+                double factor = a[i * width + p - i + lower] / pivot;
+
+                if(factor == 0) continue;
+
+                for(int col = p + 1; col <= end; col++)
+                    a[i * width + col - i + lower] -= factor * a[p * width + col - p + lower];
+
+                for(int col = 0; col < k; col++)
+                    b[i * k + col] -= factor * b[p * k + col];
+            }
+        }
+
+        // Back substitution
+        for(int i = n - 1; i >= 0; i--) {
+            int end = Math.min(n - 1, i + upper);
+            double pivot = a[i * width + lower];
+
+            for(int col = 0; col < k; col++) {
+                double sum = b[i * k + col];
+
+                for(int j = i + 1; j <= end; j++)
+                    sum -= a[i * width + j - i + lower] * b[j * k + col];
+
+                b[i * k + col] = sum / pivot;
+            }
+        }
+
+        return true;
+    }
+
+    // Checks the scaled pivot of a row of the tridiagonal matrix. Also rejects rows of zeros
+    private boolean isPivot(double pivot, int row) {
+
+        double scale = 0;
+        for(int col = Math.max(0, row - 1); col <= Math.min(mSize - 1, row + 1); col++)
+            scale = Math.max(scale, Math.abs(mValues[index(row, col)]));
+
+        return Math.abs(pivot) >= PIVOT_TOLERANCE * scale && scale > 0;
+    }
+
+    private boolean isDiagonallyDominant() {
+
+        for(int row = 0; row < mSize; row++) {
+            double off = 0;
+
+            if(row > 0)
+                off += Math.abs(mValues[index(row, row - 1)]);
+            if(row < mSize - 1)
+                off += Math.abs(mValues[index(row, row + 1)]);
+
+            if(Math.abs(mValues[index(row, row)]) < off)
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean inBand(int row, int col) {
+        return col >= row - mLower && col <= row + mUpper && row >= 0 && row < mSize && col >= 0 && col < mSize;
+    }
+
+    private int index(int row, int col) {
+        return row * (mLower + mUpper + 1) + col - row + mLower;
+    }
+}
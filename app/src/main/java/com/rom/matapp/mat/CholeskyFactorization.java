@@ -0,0 +1,455 @@
+package com.rom.matapp.mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cholesky factorization of a symmetric positive definite matrix: A = L L^T.
+ *
+ * It needs half the operations and half the memory traffic of the LU factorization and no pivoting.
+ * Only the lower triangle of A is read. L is stored in a row-major buffer whose upper triangle is zero.
+ * The factorization is immutable, so it can be computed once and used for any number of solves.
+ */
+public class CholeskyFactorization implements Factorization {
+
+    // Columns factored together
+    private static final int PANEL_SIZE = 64;
+
+    // Columns of the right hand side substituted together
+    private static final int COLUMN_BLOCK = 256;
+
+    // Columns of the right hand side substituted by each parallel task
+    private static final int PARALLEL_COLUMN_BLOCK = 32;
+
+    private final int mSize;
+
+    // L
+    private final double mL[];
+
+    private CholeskyFactorization(int n, double l[]) {
+        mSize = n;
+        mL = l;
+    }
+
+    /**
+     * Decomposes the given matrix
+     *
+     * @param m Symmetric positive definite matrix
+     * @return The factorization or null if the matrix is not square or not positive definite
+     */
+    public static CholeskyFactorization decompose(Matrix m) {
+        return decompose(m, null);
+    }
+
+    /**
+     * Decomposes the given matrix. The columns are factored by panels and the rest of the
+     * lower triangle is updated by blocks of rows with the kernel of {@link Gemm}.
+     * The blocks are updated in parallel if a pool is given.
+     *
+     * @param m Symmetric positive definite matrix
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square or not positive definite
+     */
+    public static CholeskyFactorization decompose(Matrix m, ForkJoinPool pool) {
+
+        if(!m.isSquare())
+            return null;
+
+        int n = m.getRows();
+
+        Matrix a = new Matrix(n, n);
+        Matrix.copyValues(m, a);
+
+        double l[] = a.editBuffer();
+
+        for(int kb = 0; kb < n; kb += PANEL_SIZE) {
+            int end = Math.min(kb + PANEL_SIZE, n);
+
+            ProgressMonitor.checkCurrent();
+
+            // Panel factorization
+            for(int k = kb; k < end; k++) {
+                double d = l[k * n + k];
+
+                // Also rejects NaN
+                if(!(d > 0))
+                    return null;
+
+                d = Math.sqrt(d);
+                l[k * n + k] = d;
+
+                for(int i = k + 1; i < n; i++) {
+                    int ri = i * n;
+                    double lik = l[ri + k] / d;
+
+                    l[ri + k] = lik;
+
+                    if(lik == 0) continue;
+
+                    for(int j = k + 1; j <= Math.min(i, end - 1); j++)
+                        l[ri + j] -= lik * l[j * n + k];
+                }
+            }
+
+            if(end == n)
+                break;
+
+            // A22 = A22 - L21 L21^T
+            update(a, kb, end, pool);
+        }
+
+        // Clears the upper triangle
+        for(int i = 0; i < n; i++)
+            for(int j = i + 1; j < n; j++)
+                l[i * n + j] = 0;
+
+        return new CholeskyFactorization(n, l);
+    }
+
+    /**
+     * Updates the lower triangle of the trailing matrix with the panel kb, end.
+     * Each block of rows is updated up to the diagonal.
+     */
+    private static void update(Matrix a, int kb, int end, ForkJoinPool pool) {
+
+        int n = a.getRows();
+        int w = end - kb;
+
+        Matrix l21t = a.view(end, kb, n - end, w).transpose();
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+        long work = (long) (n - end) * (n - end) * w / 2;
+        boolean parallel = pool != null && work >= Gemm.getParallelThreshold();
+
+        for(int rb = end; rb < n; rb += PANEL_SIZE) {
+            int rEnd = Math.min(rb + PANEL_SIZE, n);
+
+            Matrix l = a.view(rb, kb, rEnd - rb, w);
+            Matrix lt = l21t.view(0, 0, w, rEnd - end);
+            Matrix c = a.view(rb, end, rEnd - rb, rEnd - end);
+
+            if(parallel)
+                tasks.add(new UpdateTask(l, lt, c));
+            else
+                Gemm.multiplyAdd(-1, l, lt, c, null);
+        }
+
+        if(parallel)
+            pool.invoke(new InvokeAllTask(tasks));
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * A Cholesky factorization only exists for positive definite matrices
+     *
+     * @return False
+     */
+    @Override
+    public boolean isSingular() {
+        return false;
+    }
+
+    /**
+     * Gets L
+     *
+     * @return A copy of L
+     */
+    public Matrix getL() {
+        return Matrix.shared(mL, mSize, mSize);
+    }
+
+    /**
+     * Gets the determinant of the matrix: the square of the product of the diagonal of L
+     *
+     * @return The determinant
+     */
+    @Override
+    public double determinant() {
+
+        double det = 1;
+
+        for(int i = 0; i < mSize; i++)
+            det *= mL[i * mSize + i];
+
+        return det * det;
+    }
+
+    @Override
+    public Matrix solve(Matrix b) {
+
+        if(b.getRows() != mSize)
+            return null;
+
+        return solveInto(b, new Matrix(mSize, b.getCols()), null);
+    }
+
+    @Override
+    public Matrix solveInto(Matrix b, Matrix x, ForkJoinPool pool) {
+
+        if(b.getRows() != mSize || x.getRows() != mSize || x.getCols() != b.getCols())
+            return null;
+
+        Matrix.checkDense(x);
+
+        // Overlapping views of the same buffer are read through a copy, which keeps the
+        // old values when x is written
+        if(b != x)
+            Matrix.copyValues(b.getBuffer() == x.getBuffer() ? b.copy() : b, x);
+
+        substitute(x, pool);
+        x.markModified();
+
+        return x;
+    }
+
+    /**
+     * Solves the system x A = b for each row of b and stores the solution in x.
+     * A is symmetric, so each row is solved as A x^T = b^T.
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @return X or null if the dimensions don't agree
+     */
+    @Override
+    public Matrix solveRightInto(Matrix b, Matrix x) {
+
+        if(b.getCols() != mSize || x.getCols() != mSize || x.getRows() != b.getRows())
+            return null;
+
+        Matrix.checkDense(x);
+
+        int n = mSize;
+        double l[] = mL;
+        double w[] = new double[n];
+
+        double xd[] = x.editBuffer();
+        int off = x.getOffset();
+        int stride = x.getStride();
+
+        for(int row = 0; row < b.getRows(); row++) {
+
+            for(int j = 0; j < n; j++)
+                w[j] = b.getValue(row, j);
+
+            // L y = b
+            for(int i = 0; i < n; i++) {
+                double sum = w[i];
+                for(int j = 0; j < i; j++)
+                    sum -= l[i * n + j] * w[j];
+                w[i] = sum / l[i * n + i];
+            }
+
+            // L^T x = y
+            for(int i = n - 1; i >= 0; i--) {
+                w[i] /= l[i * n + i];
+
+                double v = w[i];
+                for(int j = 0; j < i; j++)
+                    w[j] -= v * l[i * n + j];
+            }
+
+            System.arraycopy(w, 0, xd, off + row * stride, n);
+        }
+
+        x.markModified();
+
+        return x;
+    }
+
+    @Override
+    public Matrix inverse() {
+        return inverseInto(new Matrix(mSize, mSize), null);
+    }
+
+    @Override
+    public Matrix inverseInto(Matrix dest, ForkJoinPool pool) {
+
+        if(dest.getRows() != mSize || dest.getCols() != mSize)
+            return null;
+
+        Matrix.checkDense(dest);
+
+        dest.fill(0);
+        for(int i = 0; i < mSize; i++)
+            dest.setValue(1, i, i);
+
+        substitute(dest, pool);
+        dest.markModified();
+
+        return dest;
+    }
+
+    /**
+     * Substitutes every column of x, in parallel by blocks of columns if a pool is given
+     * and there are enough columns.
+     */
+    private void substitute(Matrix x, ForkJoinPool pool) {
+
+        int k = x.getCols();
+
+        if(pool == null || k <= PARALLEL_COLUMN_BLOCK || (long) mSize * mSize * k < Gemm.getParallelThreshold()) {
+            substitute(x, 0, k);
+            return;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+        for(int cc = 0; cc < k; cc += PARALLEL_COLUMN_BLOCK)
+            tasks.add(new SubstituteTask(x, cc, Math.min(cc + PARALLEL_COLUMN_BLOCK, k)));
+
+        pool.invoke(new InvokeAllTask(tasks));
+    }
+
+    /**
+     * Forward and back substitution of the given columns of x = b. The solution overwrites x.
+     * Both passes read L by rows.
+     *
+     * @param x B
+     * @param from First column
+     * @param to Last column (exclusive)
+     */
+    private void substitute(Matrix x, int from, int to) {
+
+        int n = mSize;
+
+        double l[] = mL;
+        double xd[] = x.editBuffer();
+        int off = x.getOffset();
+        int stride = x.getStride();
+
+        for(int cc = from; cc < to; cc += COLUMN_BLOCK) {
+            int cEnd = Math.min(cc + COLUMN_BLOCK, to);
+
+            ProgressMonitor.checkCurrent();
+
+            // L y = b
+            for(int i = 0; i < n; i++) {
+                int xi = off + i * stride;
+
+                for(int j = 0; j < i; j++) {
+                    double v = l[i * n + j];
+
+                    if(v == 0) continue;
+
+                    int xj = off + j * stride;
+                    for(int col = cc; col < cEnd; col++)
+                        xd[xi + col] -= v * xd[xj + col];
+                }
+
+                double pivot = l[i * n + i];
+                for(int col = cc; col < cEnd; col++)
+                    xd[xi + col] /= pivot;
+            }
+
+            // L^T x = y
+            for(int i = n - 1; i >= 0; i--) {
+                int xi = off + i * stride;
+
+                double pivot = l[i * n + i];
+                for(int col = cc; col < cEnd; col++)
+                    xd[xi + col] /= pivot;
+
+                for(int j = 0; j < i; j++) {
+                    double v = l[i * n + j];
+
+                    if(v == 0) continue;
+
+                    int xj = off + j * stride;
+                    for(int col = cc; col < cEnd; col++)
+                        xd[xj + col] -= v * xd[xi + col];
+                }
+            }
+        }
+    }
+
+    /**
+     * Task running a list of tasks
+     */
+    private static class InvokeAllTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ForkJoinTask<?>> mTasks;
+
+        InvokeAllTask(List<ForkJoinTask<?>> tasks) {
+            mTasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(mTasks);
+        }
+    }
+
+    /**
+     * Task updating a block of rows of the trailing matrix
+     */
+    private static class UpdateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix mL;
+        private final Matrix mLT;
+        private final Matrix mC;
+
+        // Monitor of the thread which created the task
+        private final ProgressMonitor mMonitor = ProgressMonitor.current();
+
+        UpdateTask(Matrix l, Matrix lt, Matrix c) {
+            mL = l;
+            mLT = lt;
+            mC = c;
+        }
+
+        @Override
+        protected void compute() {
+            ProgressMonitor previous = ProgressMonitor.enter(mMonitor);
+
+            try {
+                Gemm.multiplyAdd(-1, mL, mLT, mC, null);
+            } finally {
+                ProgressMonitor.exit(previous);
+            }
+        }
+    }
+
+    /**
+     * Task substituting a block of columns
+     */
+    private class SubstituteTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix mX;
+        private final int mFrom;
+        private final int mTo;
+
+        // Monitor of the thread which created the task
+        private final ProgressMonitor mMonitor = ProgressMonitor.current();
+
+        SubstituteTask(Matrix x, int from, int to) {
+            mX = x;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            ProgressMonitor previous = ProgressMonitor.enter(mMonitor);
+
+            try {
+                substitute(mX, mFrom, mTo);
+            } finally {
+                ProgressMonitor.exit(previous);
+            }
+        }
+    }
+}
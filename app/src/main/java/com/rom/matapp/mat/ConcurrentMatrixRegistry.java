@@ -0,0 +1,159 @@
+package com.rom.matapp.mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Registry of matrices shared by many threads. The ids are split in segments by the high bits
+ * of their hash, each one a {@link MatrixRegistry} with its own read-write lock, so lookups
+ * run at the same time and only wait for a writer of the same segment. The names of all
+ * the segments are kept in a single index, so a lookup by name doesn't visit the segments.
+ */
+public class ConcurrentMatrixRegistry {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private final MatrixRegistry mSegments[];
+    private final ReentrantReadWriteLock mLocks[];
+
+    // Matrices of every segment by name
+    private final NameIndex mNames;
+
+    public ConcurrentMatrixRegistry() {
+        mSegments = new MatrixRegistry[SEGMENTS];
+        mLocks = new ReentrantReadWriteLock[SEGMENTS];
+        mNames = new NameIndex();
+
+        for(int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new MatrixRegistry(false);
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Adds a matrix with its current id
+     *
+     * @param m Matrix
+     * @return The matrix which had the same id or null
+     */
+    public Matrix put(Matrix m) {
+
+        int s = segment(m.getId());
+
+        mLocks[s].writeLock().lock();
+        try {
+            Matrix old = mSegments[s].put(m);
+
+            // Under the lock of the segment, so the index agrees with it
+            if(old != null && old != m)
+                mNames.remove(old);
+            mNames.add(m);
+
+            return old;
+        } finally {
+            mLocks[s].writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param id Id of the matrix
+     * @return The matrix or null if there's none with the id
+     */
+    public Matrix get(int id) {
+
+        int s = segment(id);
+
+        mLocks[s].readLock().lock();
+        try {
+            return mSegments[s].get(id);
+        } finally {
+            mLocks[s].readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a matrix
+     *
+     * @param id Id of the matrix
+     * @return The removed matrix or null if there was none with the id
+     */
+    public Matrix remove(int id) {
+
+        int s = segment(id);
+
+        mLocks[s].writeLock().lock();
+        try {
+            Matrix m = mSegments[s].remove(id);
+
+            if(m != null)
+                mNames.remove(m);
+
+            return m;
+        } finally {
+            mLocks[s].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds a matrix by its current name
+     *
+     * @param name The name
+     * @return The matrix or null if there's none with the name. Any of them if there are many
+     */
+    public Matrix findByName(String name) {
+        return mNames.find(name);
+    }
+
+    public int size() {
+
+        lockAll();
+        try {
+            int size = 0;
+            for(MatrixRegistry segment : mSegments)
+                size += segment.size();
+
+            return size;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Gets the matrices registered at a single moment: every segment is locked while they are copied
+     *
+     * @return The matrices
+     */
+    public List<Matrix> snapshot() {
+
+        lockAll();
+        try {
+            List<Matrix> matrices = new ArrayList<Matrix>();
+
+            for(MatrixRegistry segment : mSegments)
+                for(Matrix m : segment)
+                    matrices.add(m);
+
+            return matrices;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    // The segments are always locked in the same order
+    private void lockAll() {
+        for(int s = 0; s < SEGMENTS; s++)
+            mLocks[s].readLock().lock();
+    }
+
+    private void unlockAll() {
+        for(int s = SEGMENTS - 1; s >= 0; s--)
+            mLocks[s].readLock().unlock();
+    }
+
+    // The table of the segment uses the low bits of the hash
+    private static int segment(int id) {
+        return MatrixRegistry.hash(id) >>> (32 - SEGMENT_BITS);
+    }
+}
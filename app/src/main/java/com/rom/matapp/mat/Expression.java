@@ -1,13 +1,29 @@
 package com.rom.matapp.mat;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by rom on 22/08/14.
  */
 public class Expression {
 
+    // Operator tokens. X \ Y = X ^-1 * Y (the least squares solution if X has more rows than cols)
+    private static final String OP_ADD = "+";
+    private static final String OP_SUBTRACT = "-";
+    private static final String OP_MULTIPLY = "*";
+    private static final String OP_INVERSE = "^-1";
+    private static final String OP_LEFT_SOLVE = "\\";
+
+    // Marks the left parenthesis in the operator stack
+    private static final int OP_PARENTHESIS = -1;
+
     private WorkSpace mWorkSpace;
 
     // The string representing this expression
@@ -16,6 +32,17 @@ public class Expression {
     // State of the expression
     private int mStatus;
 
+    // Scratch matrices of the evaluation
+    private MatrixArena mArena;
+
+    // State of the plan being executed: values, errors, cached registers and pending reads
+    private ExpressionPlan mPlan;
+    private String mKeys[];
+    private Matrix mRegisters[];
+    private int mErrors[];
+    private boolean mCached[];
+    private int mUses[];
+
     public Expression(WorkSpace ws, String expression) {
         mWorkSpace = ws;
         mExpression = expression;
@@ -26,188 +53,1030 @@ public class Expression {
         return mStatus;
     }
 
-    // Checks which operators has higher precedence
-    private boolean hasHigherPrecedence(String op1, String op2) {
-        return operatorPriority(op1) > operatorPriority(op2);
-    }
-
     /**
      * Gets the priority of the operator.
      * 0 for a lower priority.
      */
-    private int operatorPriority(String operator) {
+    private static int operatorPriority(int op) {
 
-        if (operator.equals("(") || operator.equals(")"))
-            return 0;
-        else if (operator.equals("+") || operator.equals("-"))
+        if (op == ExpressionPlan.OP_ADD || op == ExpressionPlan.OP_SUBTRACT)
             return 1;
-        else if (operator.equals("*"))
+        else if (op == ExpressionPlan.OP_MULTIPLY || op == ExpressionPlan.OP_LEFT_SOLVE)
             return 2;
-        else if (operator.equals("^-1"))
+        else if (op == ExpressionPlan.OP_INVERSE)
             return 3;
         else
             return 0;
     }
 
-    // Gets the int value of num in token "[num]"
-    private int getIdFromToken(String token) {
-        return Integer.parseInt(token.substring(1, token.length() - 1));
-    }
-
     /**
-     * Resolves this expression
+     * Resolves this expression. The compiled plan is taken from the cache of the workspace,
+     * so an expression which was already resolved isn't parsed again.
      *
      * @return The result matrix or null if there was any problem
      */
     public Matrix resolve() {
-        return evaluate(toPostfix());
+        return execute(mWorkSpace.getPlan(mExpression));
     }
 
     /**
-     * Converts the infix expression to postfix expression.
+     * Parses and optimizes the expression
      *
-     * @return A postfix expression string or null if there was any error
+     * @return The plan. Its status is RESULT_ERROR_BAD_EXP if the expression is not well formed
      */
-    private String toPostfix() {
+    ExpressionPlan compile() {
 
-        String postfix = "";
-        Deque<String> tempStack = new ArrayDeque<String>();
+        Node tree = parse();
 
-        String tokens[] = mExpression.split(" ");
+        if(tree == null)
+            return new ExpressionPlan(mExpression, WorkSpace.RESULT_ERROR_BAD_EXP);
 
-        for(String token : tokens) {
+        return compile(tree);
+    }
 
-            if(token.equals("+") || token.equals("-") || token.equals("*") || token.equals("^-1")) {
+    /**
+     * Optimizes an already parsed expression with the current dimensions of its matrices
+     *
+     * @param tree The tree of the expression. It isn't modified
+     * @return The plan
+     */
+    ExpressionPlan compile(Node tree) {
 
-                while (!tempStack.isEmpty() && !hasHigherPrecedence(token, tempStack.peek())) {
-                    if (postfix.length() > 0)
-                        postfix += " ";
+        Node root = rewriteSolves(orderChains(tree.copy()));
 
-                    postfix += tempStack.pop();
-                }
+        List<Node> instructions = new ArrayList<Node>();
+        root.flatten(instructions);
 
-                tempStack.push(token);
+        int n = instructions.size();
+        int ops[] = new int[n];
+        int left[] = new int[n];
+        int right[] = new int[n];
+        int ids[] = new int[n];
+        String names[] = new String[n];
+        Matrix matrices[] = new Matrix[n];
 
-            } else if(token.equals("(")) {
+        for(int i = 0; i < n; i++) {
+            Node node = instructions.get(i);
 
-                tempStack.push(token);
+            ops[i] = node.mOp;
+            left[i] = node.mLeft != null ? node.mLeft.mRegister : -1;
+            right[i] = node.mRight != null ? node.mRight.mRegister : -1;
+            names[i] = node.mName;
 
-            } else if(token.equals(")")) {
+            if(node.mOp == ExpressionPlan.OP_LOAD)
+                matrices[i] = find(node);
 
-                while (!tempStack.isEmpty()) {
-                    String operator = tempStack.pop();
+            // Matrices loaded by name have the id they have now, -1 if they aren't found
+            if(node.mName != null)
+                ids[i] = matrices[i] != null ? matrices[i].getId() : -1;
+            else
+                ids[i] = node.mId;
+        }
 
-                    if (operator.equals("("))
-                        break;
-                    else if (tempStack.isEmpty())
-                        return null;
-                    else
-                        postfix += " " + operator;
+        return new ExpressionPlan(mExpression, WorkSpace.RESULT_OK, tree, ops, left, right, ids, names, matrices);
+    }
 
-                }
+    /**
+     * Converts the infix expression to its tree with the shunting-yard algorithm.
+     * The tokens are read by a scanner, so they don't need to be separated by spaces.
+     *
+     * @return The root or null if there was any error
+     */
+    private Node parse() {
+
+        Deque<Node> operands = new ArrayDeque<Node>();
+        Deque<Integer> operators = new ArrayDeque<Integer>();
+
+        String text = mExpression;
+        int length = text.length();
+        int i = 0;
+
+        while(i < length) {
+
+            char c = text.charAt(i);
+            int op;
+
+            if(c == ' ') {
+                i++;
+                continue;
+            }
+
+            // The matrices can also be referenced by their names, which start with a letter
+            if(Character.isLetter(c)) {
+                int end = i + 1;
+
+                while(end < length && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_'))
+                    end++;
 
+                operands.push(new Node(text.substring(i, end)));
+                i = end;
+                continue;
             }
+
             // The matrices are represented in string format as "[matrix_id]"
-            // therefore it checks if the token is a matrix and if so, add it to the postfix expression
-            else if(token.matches("\\x5B\\d+\\x5D")) {
+            if(c == '[') {
+                int end = i + 1;
+                int id = 0;
+
+                while(end < length && Character.isDigit(text.charAt(end)) && end - i <= 9)
+                    id = id * 10 + (text.charAt(end++) - '0');
+
+                if(end == i + 1 || end >= length || text.charAt(end) != ']')
+                    return null;
+
+                operands.push(new Node(id));
+                i = end + 1;
+                continue;
+            }
+
+            if(c == '(') {
+                operators.push(OP_PARENTHESIS);
+                i++;
+                continue;
+            }
+
+            if(c == ')') {
+                while(!operators.isEmpty() && operators.peek() != OP_PARENTHESIS)
+                    if(!reduce(operands, operators.pop()))
+                        return null;
 
-                if(postfix.length() > 0)
-                    postfix += " ";
+                if(operators.isEmpty())
+                    return null;
 
-                postfix += token;
+                operators.pop();
+                i++;
+                continue;
+            }
 
+            if(text.startsWith(OP_INVERSE, i)) {
+                op = ExpressionPlan.OP_INVERSE;
+                i += OP_INVERSE.length();
+            } else if(text.startsWith(OP_ADD, i)) {
+                op = ExpressionPlan.OP_ADD;
+                i++;
+            } else if(text.startsWith(OP_SUBTRACT, i)) {
+                op = ExpressionPlan.OP_SUBTRACT;
+                i++;
+            } else if(text.startsWith(OP_MULTIPLY, i)) {
+                op = ExpressionPlan.OP_MULTIPLY;
+                i++;
+            } else if(text.startsWith(OP_LEFT_SOLVE, i)) {
+                op = ExpressionPlan.OP_LEFT_SOLVE;
+                i++;
             } else
                 return null;
 
+            // Operators of the same priority are evaluated from left to right
+            while(!operators.isEmpty() && operatorPriority(operators.peek()) >= operatorPriority(op))
+                if(!reduce(operands, operators.pop()))
+                    return null;
+
+            operators.push(op);
         }
 
-        while(!tempStack.isEmpty()) {
+        while(!operators.isEmpty()) {
+            int op = operators.pop();
 
-            String operator = tempStack.pop();
-            if(operator.equals("("))
+            if(op == OP_PARENTHESIS || !reduce(operands, op))
                 return null;
+        }
+
+        return operands.size() == 1 ? operands.pop() : null;
+    }
 
-            postfix += " " + operator;
+    // Applies the operator to the operands on the top of the stack
+    private static boolean reduce(Deque<Node> operands, int op) {
 
+        if(op == ExpressionPlan.OP_INVERSE) {
+            if(operands.isEmpty())
+                return false;
+
+            operands.push(new Node(op, operands.pop(), null));
+            return true;
         }
 
-        return postfix;
+        if(operands.size() < 2)
+            return false;
+
+        Node right = operands.pop();
+        operands.push(new Node(op, operands.pop(), right));
+
+        return true;
     }
 
     /**
-     * Evaluates the given postfix expression
+     * Reassociates every chain of products with the classic O(k^3) dynamic programming algorithm.
+     * Chains with operands of unknown or disagreeing dimensions are left as they are.
+     */
+    private Node orderChains(Node node) {
+
+        if(node.mOp != ExpressionPlan.OP_MULTIPLY) {
+            if(node.mLeft != null)
+                node.mLeft = orderChains(node.mLeft);
+            if(node.mRight != null)
+                node.mRight = orderChains(node.mRight);
+
+            return node;
+        }
+
+        List<Node> operands = new ArrayList<Node>();
+        collectChain(node, operands);
+
+        for(int i = 0; i < operands.size(); i++)
+            operands.set(i, orderChains(operands.get(i)));
+
+        int k = operands.size();
+        if(k < 3)
+            return node;
+
+        // Operand i is dims[i] x dims[i + 1]
+        long dims[] = new long[k + 1];
+
+        for(int i = 0; i < k; i++) {
+            int shape[] = shape(operands.get(i));
+
+            if(shape == null || (i > 0 && shape[0] != dims[i]))
+                return node;
+
+            dims[i] = shape[0];
+            dims[i + 1] = shape[1];
+        }
+
+        // cost[i][j]: multiplications of the product of operands i..j, split[i][j]: its last product
+        long cost[][] = new long[k][k];
+        int split[][] = new int[k][k];
+
+        for(int length = 2; length <= k; length++)
+            for(int i = 0; i + length - 1 < k; i++) {
+                int j = i + length - 1;
+                cost[i][j] = Long.MAX_VALUE;
+
+                for(int s = i; s < j; s++) {
+                    long c = cost[i][s] + cost[s + 1][j] + dims[i] * dims[s + 1] * dims[j + 1];
+
+                    if(c < cost[i][j]) {
+                        cost[i][j] = c;
+                        split[i][j] = s;
+                    }
+                }
+            }
+
+        return buildChain(operands, split, 0, k - 1);
+    }
+
+    // Gets the operands of a chain of products from left to right
+    private void collectChain(Node node, List<Node> operands) {
+
+        if(node.mOp != ExpressionPlan.OP_MULTIPLY) {
+            operands.add(node);
+            return;
+        }
+
+        collectChain(node.mLeft, operands);
+        collectChain(node.mRight, operands);
+    }
+
+    private Node buildChain(List<Node> operands, int split[][], int i, int j) {
+
+        if(i == j)
+            return operands.get(i);
+
+        return new Node(ExpressionPlan.OP_MULTIPLY, buildChain(operands, split, i, split[i][j]),
+                buildChain(operands, split, split[i][j] + 1, j));
+    }
+
+    // Matrix loaded by a node, by name or by id
+    private Matrix find(Node node) {
+        return node.mName != null ? mWorkSpace.findMatrixByName(node.mName) : mWorkSpace.findMatrixById(node.mId);
+    }
+
+    /**
+     * Gets the dimensions of the result of a node
+     *
+     * @return Rows and cols or null if a matrix isn't found or the dimensions don't agree
+     */
+    private int[] shape(Node node) {
+
+        if(node.mOp == ExpressionPlan.OP_LOAD) {
+            Matrix m = find(node);
+
+            return m != null ? new int[] {m.getRows(), m.getCols()} : null;
+        }
+
+        int left[] = shape(node.mLeft);
+
+        if(left == null)
+            return null;
+
+        if(node.mOp == ExpressionPlan.OP_INVERSE)
+            return left[0] == left[1] ? left : null;
+
+        int right[] = shape(node.mRight);
+
+        if(right == null)
+            return null;
+
+        switch(node.mOp) {
+            case ExpressionPlan.OP_ADD:
+            case ExpressionPlan.OP_SUBTRACT:
+                return left[0] == right[0] && left[1] == right[1] ? left : null;
+            case ExpressionPlan.OP_MULTIPLY:
+            case ExpressionPlan.OP_RIGHT_SOLVE:
+                return left[1] == right[0] ? new int[] {left[0], right[1]} : null;
+            case ExpressionPlan.OP_LEFT_SOLVE:
+                return left[0] == right[0] ? new int[] {left[1], right[1]} : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Replaces the products by an inverse with solves:
+     * X ^-1 * Y is solved as X \ Y and Y * X ^-1 as Y / X, with a factorization of X
+     * instead of its inverse.
      *
-     * @param expression Postfix Expression
+     * Only square matrices are rewritten. The inverse of any other matrix doesn't exist, so it
+     * must fail instead of becoming the least squares solution of X \ Y.
+     */
+    private Node rewriteSolves(Node node) {
+
+        if(node.mLeft != null)
+            node.mLeft = rewriteSolves(node.mLeft);
+        if(node.mRight != null)
+            node.mRight = rewriteSolves(node.mRight);
+
+        if(node.mOp == ExpressionPlan.OP_MULTIPLY) {
+            // The shape of an inverse is only known if the matrix is square
+            if(node.mLeft.mOp == ExpressionPlan.OP_INVERSE && shape(node.mLeft) != null)
+                return new Node(ExpressionPlan.OP_LEFT_SOLVE, node.mLeft.mLeft, node.mRight);
+            else if(node.mRight.mOp == ExpressionPlan.OP_INVERSE && shape(node.mRight) != null)
+                return new Node(ExpressionPlan.OP_RIGHT_SOLVE, node.mLeft, node.mRight.mLeft);
+        }
+
+        return node;
+    }
+
+    /**
+     * Executes the given plan
+     *
+     * @param plan Compiled expression
      * @return The result matrix or null if there was any error
      */
-    private Matrix evaluate(String expression) {
+    private Matrix execute(ExpressionPlan plan) {
+
+        mStatus = plan.getStatus();
 
-        if(expression == null || expression.equals("")) {
-            mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
+        if(mStatus != WorkSpace.RESULT_OK)
             return null;
+
+        int status[] = new int[1];
+        Matrix r = execute(plan, new int[] { plan.size() - 1 }, status)[0];
+
+        mStatus = status[0];
+
+        return r;
+    }
+
+    /**
+     * Executes the instructions of a plan needed by the given registers. A register can be
+     * used by many instructions, so a plan can hold the instructions of many expressions
+     * which share their common subexpressions.
+     *
+     * The results of the products, inverses and solves are taken from the cache of the workspace
+     * if they are there, and the instructions which are only needed by cached results are skipped.
+     * The computed ones are added to the cache.
+     *
+     * An error only affects the registers which depend on the instruction which failed.
+     *
+     * @param plan Compiled instructions
+     * @param roots Registers of the results
+     * @param status Destination of the status of each result
+     * @return The result of each root, null for the ones with errors
+     */
+    Matrix[] execute(ExpressionPlan plan, int roots[], int status[]) {
+
+        int n = plan.size();
+
+        ResultCache cache = mWorkSpace.getResultCache();
+
+        // Every matrix is read once, so the whole expression sees the same values even if
+        // other threads change the matrices meanwhile
+        Matrix loads[] = new Matrix[n];
+
+        Map<Matrix, Matrix> snapshots = new IdentityHashMap<Matrix, Matrix>();
+
+        for(int i = 0; i < n; i++) {
+            Matrix m = plan.getMatrix(i);
+
+            if(plan.getOp(i) != ExpressionPlan.OP_LOAD || m == null)
+                continue;
+
+            loads[i] = snapshots.get(m);
+
+            if(loads[i] == null) {
+                loads[i] = m.snapshot();
+                snapshots.put(m, loads[i]);
+            }
         }
 
-        Deque<Matrix> tempStack = new ArrayDeque<Matrix>();
-        String tokens[] = expression.split(" ");
+        mPlan = plan;
+        mKeys = keys(plan, loads);
+        mRegisters = new Matrix[n];
+        mErrors = new int[n];
+        mCached = new boolean[n];
 
-        for(String token : tokens) {
+        boolean needed[] = new boolean[n];
 
-            Matrix m = null;
+        // Pending reads of each register. The results are never consumed
+        mUses = new int[n];
 
-            if(token.equals("+"))
+        for(int root : roots) {
+            needed[root] = true;
+            mUses[root]++;
+        }
 
-                if (tempStack.size() >= 2) {
-                    if ((m = tempStack.pop().add(tempStack.pop())) == null)
-                        mStatus = WorkSpace.RESULT_ERROR_DIM;
-                } else
-                    mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
-            else if(token.equals("-"))
+        // From the results to the operands: the operands of a cached result aren't needed
+        for(int i = n - 1; i >= 0; i--) {
+            if(!needed[i])
+                continue;
 
-                if(tempStack.size() >= 2) {
-                    if ((m = tempStack.pop().subtract(tempStack.pop(), true)) == null)
-                        mStatus = WorkSpace.RESULT_ERROR_DIM;
-                } else
-                    mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
+            if(mKeys[i] != null && isCacheable(plan.getOp(i)) && (mRegisters[i] = cache.get(mKeys[i])) != null) {
+                mCached[i] = true;
+                continue;
+            }
 
-            else if(token.equals("*"))
+            if(plan.getLeft(i) >= 0) {
+                needed[plan.getLeft(i)] = true;
+                mUses[plan.getLeft(i)]++;
+            }
+            if(plan.getRight(i) >= 0) {
+                needed[plan.getRight(i)] = true;
+                mUses[plan.getRight(i)]++;
+            }
+        }
 
-                if(tempStack.size() >= 2) {
-                    Matrix tmp = tempStack.pop();
-                    if((m = tempStack.pop().multiply(tmp)) == null)
-                        mStatus = WorkSpace.RESULT_ERROR_DIM;
-                } else
-                    mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
+        // The loads are done here, the rest of the instructions by the task graph
+        for(int i = 0; i < n; i++)
+            if(needed[i] && plan.getOp(i) == ExpressionPlan.OP_LOAD) {
+                mRegisters[i] = loads[i];
 
-            else if(token.equals("^-1"))
+                if(mRegisters[i] == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_MAT_NFOUND;
 
-                if(tempStack.size() >= 1) {
-                    if ((m = tempStack.pop().inverse()) == null)
-                        mStatus = WorkSpace.RESULT_ERROR_SING_MAT;
-                } else
-                        mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
+                needed[i] = false;
+            }
+            else if(mCached[i])
+                needed[i] = false;
 
-            // The matrices are represented in string format as "[matrix_id]"
-            // therefore it checks if the token is a matrix and if so, finds the matrix with the id given by the token
-            else if(token.matches("\\x5B\\d+\\x5D")) {
+        mArena = new MatrixArena();
+
+        try {
+            new TaskGraph(needed, pool(), mWorkSpace.getMaxParallelism()).run();
+
+            Matrix results[] = new Matrix[roots.length];
 
-                if ((m = mWorkSpace.findMatrixById(getIdFromToken(token))) == null)
-                    mStatus = WorkSpace.RESULT_ERROR_MAT_NFOUND;
+            for(int k = 0; k < roots.length; k++) {
+                int root = roots[k];
+                Matrix r = mRegisters[root];
+
+                status[k] = mErrors[root] != 0 ? mErrors[root] : WorkSpace.RESULT_OK;
+
+                if(r == null)
+                    continue;
+
+                // The result is a new matrix unless it's a cached one or the result of another root.
+                // The snapshots of the matrices of the workspace are already copies
+                if(mArena.owns(r))
+                    mArena.detach(r);
+                else if(mCached[root] || contains(results, r, k))
+                    r = r.copy();
+
+                results[k] = r;
             }
-            else
-                mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
 
-            if(mStatus != WorkSpace.RESULT_OK)
-                return null;
+            return results;
+        } finally {
+            mArena.clear();
+            mArena = null;
+            mUses = null;
+            mPlan = null;
+            mKeys = null;
+            mRegisters = null;
+            mErrors = null;
+            mCached = null;
+        }
+    }
+
+    /**
+     * Executes an instruction whose operands are computed and caches its result
+     *
+     * @param i Register of the instruction
+     */
+    private void step(int i) {
+
+        int left = mPlan.getLeft(i);
+        int right = mPlan.getRight(i);
+
+        // An error in an operand is the error of the instruction. The left one goes first,
+        // so the status doesn't depend on the order the operands were computed
+        if(left >= 0 && mErrors[left] != 0)
+            mErrors[i] = mErrors[left];
+        else if(right >= 0 && mErrors[right] != 0)
+            mErrors[i] = mErrors[right];
+
+        if(mErrors[i] != 0)
+            return;
+
+        Matrix m = execute(i);
+
+        if(mErrors[i] != 0)
+            return;
+
+        mRegisters[i] = m;
+
+        // A cached result is never modified, so it's taken from the arena
+        if(mKeys[i] != null && isCacheable(mPlan.getOp(i))) {
+            if(mArena.owns(m))
+                mArena.detach(m);
 
-            tempStack.push(m);
+            mWorkSpace.getResultCache().put(mKeys[i], m);
 
+            mCached[i] = true;
         }
+    }
 
-        if(tempStack.size() != 1) {
-            mStatus = WorkSpace.RESULT_ERROR_BAD_EXP;
-            return null;
+    // Checks if the first n results include the given matrix
+    private static boolean contains(Matrix results[], Matrix m, int n) {
+
+        for(int i = 0; i < n; i++)
+            if(results[i] == m)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Executes an instruction of the plan. Errors are stored in the error of its register.
+     *
+     * @param i Register of the instruction
+     * @return The value of the register or null if there was any error
+     */
+    private Matrix execute(int i) {
+
+        ExpressionPlan plan = mPlan;
+        int op = plan.getOp(i);
+
+        int l = plan.getLeft(i);
+        int r = plan.getRight(i);
+
+        Matrix left = mRegisters[l];
+        Matrix right = r >= 0 ? mRegisters[r] : null;
+        Matrix m = null;
+        Matrix dest = null;
+
+        // Operands which no other instruction reads can be overwritten
+        boolean leftFree;
+        boolean rightFree;
+
+        synchronized(mArena) {
+            leftFree = mUses[l] == (l == r ? 2 : 1) && mArena.owns(left);
+            rightFree = right != null && r != l && mUses[r] == 1 && mArena.owns(right);
+        }
+
+        switch(op) {
+
+            case ExpressionPlan.OP_ADD:
+
+                // Operations between sparse matrices choose the type of their result
+                if (left.isSparse() && right.isSparse())
+                    m = left.add(right);
+                else
+                    m = left.addInto(right, dest = scratch(left, leftFree, right, rightFree, left.getRows(), left.getCols()));
+
+                if (m == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_DIM;
+                break;
+
+            case ExpressionPlan.OP_SUBTRACT:
+
+                // Operations between sparse matrices choose the type of their result
+                if (left.isSparse() && right.isSparse())
+                    m = left.subtract(right);
+                else
+                    m = left.subtractInto(right, dest = scratch(left, leftFree, right, rightFree, left.getRows(), left.getCols()));
+
+                if (m == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_DIM;
+                break;
+
+            case ExpressionPlan.OP_MULTIPLY:
+
+                if (left.isSparse() && right.isSparse())
+                    m = left.multiply(right);
+                else
+                    m = left.multiplyInto(right, dest = mArena.acquire(left.getRows(), right.getCols()), pool());
+
+                if(m == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_DIM;
+                break;
+
+            case ExpressionPlan.OP_INVERSE:
+
+                dest = scratch(left, leftFree, null, false, left.getRows(), left.getCols());
+
+                // The factorization copies the operand, so dest can be the operand
+                if (!left.isSquare()
+                        || (m = left.factorize(pool()).inverseInto(dest, pool())) == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_SING_MAT;
+                break;
+
+            case ExpressionPlan.OP_LEFT_SOLVE:
+            case ExpressionPlan.OP_RIGHT_SOLVE:
+
+                // The inverted matrix
+                Matrix x = op == ExpressionPlan.OP_LEFT_SOLVE ? left : right;
+                boolean leastSquares = op == ExpressionPlan.OP_LEFT_SOLVE && x.getRows() > x.getCols();
+                Factorization f = null;
+                QRFactorization qr = null;
+
+                if(leastSquares ? (qr = x.qr(pool())).isRankDeficient()
+                        : !x.isSquare() || (f = x.factorize(pool())).isSingular()) {
+                    mErrors[i] = WorkSpace.RESULT_ERROR_SING_MAT;
+                    break;
+                }
+
+                dest = mArena.acquire(op == ExpressionPlan.OP_LEFT_SOLVE ? left.getCols() : left.getRows(),
+                        right.getCols());
+
+                if(leastSquares)
+                    m = qr.solveInto(right, dest, pool());
+                else if(op == ExpressionPlan.OP_LEFT_SOLVE)
+                    m = f.solveInto(right, dest, pool());
+                else
+                    m = f.solveRightInto(left, dest);
+
+                if(m == null)
+                    mErrors[i] = WorkSpace.RESULT_ERROR_DIM;
+                break;
+
+            default:
+                mErrors[i] = WorkSpace.RESULT_ERROR_BAD_EXP;
+        }
+
+        // Gives back to the arena the operands which aren't read again
+        synchronized(mArena) {
+            if(--mUses[l] == 0 && left != m)
+                mArena.release(left);
+            if(r >= 0 && --mUses[r] == 0 && right != m)
+                mArena.release(right);
+        }
+
+        return m;
+    }
+
+    // Only the results of the O(n^3) operations are worth caching
+    private static boolean isCacheable(int op) {
+        return op == ExpressionPlan.OP_MULTIPLY || op == ExpressionPlan.OP_INVERSE
+                || op == ExpressionPlan.OP_LEFT_SOLVE || op == ExpressionPlan.OP_RIGHT_SOLVE;
+    }
+
+    /**
+     * Builds the normalized text of the subexpression of each instruction. Matrices are written
+     * with their version and the operands of a sum are sorted, so equal values have equal keys.
+     *
+     * @param plan Compiled expression
+     * @param loads Snapshot of the matrix of each load
+     * @return The keys by register
+     */
+    private static String[] keys(ExpressionPlan plan, Matrix loads[]) {
+
+        String keys[] = new String[plan.size()];
+
+        for(int i = 0; i < plan.size(); i++) {
+            int op = plan.getOp(i);
+
+            // Subexpressions with missing matrices have no key
+            if(op == ExpressionPlan.OP_LOAD) {
+                Matrix m = loads[i];
+                keys[i] = m != null ? "[" + plan.getId(i) + "@" + m.getVersion() + "]" : null;
+                continue;
+            }
+
+            String left = keys[plan.getLeft(i)];
+            String right = plan.getRight(i) >= 0 ? keys[plan.getRight(i)] : null;
+
+            if(left == null || (right == null && plan.getRight(i) >= 0))
+                continue;
+
+            switch(op) {
+                case ExpressionPlan.OP_ADD:
+                    keys[i] = left.compareTo(right) <= 0
+                            ? "(" + left + OP_ADD + right + ")" : "(" + right + OP_ADD + left + ")";
+                    break;
+                case ExpressionPlan.OP_SUBTRACT:
+                    keys[i] = "(" + left + OP_SUBTRACT + right + ")";
+                    break;
+                case ExpressionPlan.OP_MULTIPLY:
+                    keys[i] = "(" + left + OP_MULTIPLY + right + ")";
+                    break;
+                case ExpressionPlan.OP_INVERSE:
+                    keys[i] = "(" + left + OP_INVERSE + ")";
+                    break;
+                case ExpressionPlan.OP_LEFT_SOLVE:
+                    keys[i] = "(" + left + OP_LEFT_SOLVE + right + ")";
+                    break;
+                default:
+                    keys[i] = "(" + left + "/" + right + ")";
+            }
         }
 
-        return new Matrix(tempStack.pop());
+        return keys;
+    }
+
+    // Pool for big operations
+    private ForkJoinPool pool() {
+        return mWorkSpace.getForkJoinPool();
+    }
+
+    /**
+     * Gets the matrix where the result of an element-wise operation is stored.
+     * Reuses a scratch operand which isn't read again if there is one.
+     *
+     * @param left Left operand
+     * @param leftFree True if the left operand can be overwritten
+     * @param right Right operand or null
+     * @param rightFree True if the right operand can be overwritten
+     * @param rows Rows of the result
+     * @param cols Cols of the result
+     * @return The destination matrix
+     */
+    private Matrix scratch(Matrix left, boolean leftFree, Matrix right, boolean rightFree, int rows, int cols) {
+
+        if(leftFree)
+            return left;
+        else if(rightFree)
+            return right;
+        else
+            return mArena.acquire(rows, cols);
+    }
+
+    /**
+     * Runs the instructions of the plan as a graph of tasks: an instruction is ready when its
+     * operands are computed, so independent subexpressions are computed at the same time.
+     * The calling thread runs instructions too and at most the given number of instructions
+     * run at the same time. Ready instructions are taken in the order of the plan, so with a
+     * parallelism of 1 the plan is executed in order.
+     *
+     * The progress is reported to the monitor of the calling thread after each instruction.
+     */
+    private class TaskGraph {
+
+        private final ForkJoinPool mExecutor;
+        private final int mParallelism;
+
+        // Monitor of the calling thread, which the instructions sent to the executor take
+        private final ProgressMonitor mMonitor = ProgressMonitor.current();
+        private final int mTotal;
+
+        // Instructions which read each register and operands not computed yet of each instruction
+        private final int mDependents[][];
+        private final int mPending[];
+
+        private final PriorityQueue<Integer> mReady;
+
+        private int mRunning;
+        private int mRemaining;
+        private boolean mCallerWaiting;
+
+        // First exception thrown by an instruction
+        private Throwable mFailure;
+
+        TaskGraph(boolean compute[], ForkJoinPool executor, int parallelism) {
+
+            int n = compute.length;
+
+            mExecutor = executor;
+            mParallelism = executor != null ? Math.max(parallelism, 1) : 1;
+            mPending = new int[n];
+            mReady = new PriorityQueue<Integer>();
+
+            // The calling thread is about to take an instruction
+            mCallerWaiting = true;
+
+            int counts[] = new int[n];
+
+            for(int i = 0; i < n; i++) {
+                if(!compute[i])
+                    continue;
+
+                mRemaining++;
+
+                int l = mPlan.getLeft(i);
+                int r = mPlan.getRight(i);
+
+                if(l >= 0 && compute[l]) {
+                    mPending[i]++;
+                    counts[l]++;
+                }
+                if(r >= 0 && compute[r]) {
+                    mPending[i]++;
+                    counts[r]++;
+                }
+
+                if(mPending[i] == 0)
+                    mReady.add(i);
+            }
+
+            mTotal = mRemaining;
+            mDependents = new int[n][];
+            for(int i = 0; i < n; i++) {
+                mDependents[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+
+            for(int i = 0; i < n; i++) {
+                if(!compute[i])
+                    continue;
+
+                int l = mPlan.getLeft(i);
+                int r = mPlan.getRight(i);
+
+                if(l >= 0 && compute[l])
+                    mDependents[l][counts[l]++] = i;
+                if(r >= 0 && compute[r])
+                    mDependents[r][counts[r]++] = i;
+            }
+        }
+
+        void run() {
+
+            synchronized(this) {
+                dispatch();
+            }
+
+            int i;
+            while((i = take()) >= 0)
+                execute(i, true);
+
+            if(mFailure instanceof RuntimeException)
+                throw (RuntimeException) mFailure;
+            if(mFailure instanceof Error)
+                throw (Error) mFailure;
+        }
+
+        // Waits for a ready instruction for the calling thread. -1 when there's nothing left.
+        // An interrupt cancels the monitor, so the running instructions stop soon
+        private synchronized int take() {
+
+            boolean interrupted = false;
+
+            try {
+                while(true) {
+                    if(mRemaining == 0 || (mFailure != null && mRunning == 0))
+                        return -1;
+
+                    if(mFailure == null && !mReady.isEmpty()) {
+                        mCallerWaiting = false;
+                        mRunning++;
+                        return mReady.poll();
+                    }
+
+                    mCallerWaiting = true;
+
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        interrupted = true;
+
+                        if(mMonitor != null)
+                            mMonitor.cancel();
+                    }
+                }
+            } finally {
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        private void execute(int i, boolean caller) {
+
+            Throwable failure = null;
+            ProgressMonitor previous = caller ? null : ProgressMonitor.enter(mMonitor);
+
+            try {
+                if(mMonitor != null)
+                    mMonitor.check();
+
+                step(i);
+            } catch(RuntimeException e) {
+                failure = e;
+            } catch(Error e) {
+                failure = e;
+            } finally {
+                if(!caller)
+                    ProgressMonitor.exit(previous);
+            }
+
+            finish(i, failure, caller);
+        }
+
+        private synchronized void finish(int i, Throwable failure, boolean caller) {
+
+            mRunning--;
+            mRemaining--;
+
+            if(caller)
+                mCallerWaiting = true;
+
+            if(failure != null && mFailure == null)
+                mFailure = failure;
+
+            for(int d : mDependents[i])
+                if(--mPending[d] == 0)
+                    mReady.add(d);
+
+            if(mMonitor != null && failure == null)
+                mMonitor.setProgress(mTotal - mRemaining, mTotal);
+
+            dispatch();
+            notifyAll();
+        }
+
+        // Sends ready instructions to the executor, leaving one for the calling thread if it's free
+        private void dispatch() {
+
+            int caller = mCallerWaiting ? 1 : 0;
+
+            while(mFailure == null && mRunning + caller < mParallelism && mReady.size() > caller) {
+                final int i = mReady.poll();
+
+                mRunning++;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(i, false);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Node of the tree of an expression
+     */
+    static class Node {
+
+        // Instruction of the plan
+        int mOp;
+
+        // Id of the loaded matrix
+        int mId;
+
+        // Name of the loaded matrix. Null if it's loaded by id
+        String mName;
+
+        // Operands. Null for matrices
+        Node mLeft;
+        Node mRight;
+
+        // Register of the node in the plan
+        int mRegister;
+
+        Node(int id) {
+            mOp = ExpressionPlan.OP_LOAD;
+            mId = id;
+        }
+
+        Node(String name) {
+            mOp = ExpressionPlan.OP_LOAD;
+            mName = name;
+        }
+
+        Node(int op, Node left, Node right) {
+            mOp = op;
+            mLeft = left;
+            mRight = right;
+        }
+
+        Node copy() {
+
+            Node node = new Node(mOp, mLeft != null ? mLeft.copy() : null, mRight != null ? mRight.copy() : null);
+            node.mId = mId;
+            node.mName = mName;
+
+            return node;
+        }
+
+        // Adds the nodes in evaluation order and numbers their registers
+        void flatten(List<Node> instructions) {
+
+            if(mLeft != null)
+                mLeft.flatten(instructions);
+            if(mRight != null)
+                mRight.flatten(instructions);
+
+            mRegister = instructions.size();
+            instructions.add(this);
+        }
     }
 }
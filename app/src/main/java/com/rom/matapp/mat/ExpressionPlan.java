@@ -0,0 +1,228 @@
+package com.rom.matapp.mat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled expression: a list of instructions in evaluation order. Every instruction writes
+ * its own register and reads the registers of earlier instructions, so the last instruction
+ * holds the result. Matrices are loaded through references resolved at compile time.
+ *
+ * A plan is immutable. It stays valid while the matrices it loads are the ones of the
+ * workspace and keep their dimensions, since the order of the products depends on them.
+ * When that changes the plan is compiled again from its tree, without parsing the text.
+ */
+public class ExpressionPlan {
+
+    // Instructions
+    public static final int OP_LOAD = 0;
+    public static final int OP_ADD = 1;
+    public static final int OP_SUBTRACT = 2;
+    public static final int OP_MULTIPLY = 3;
+    public static final int OP_INVERSE = 4;
+
+    // X \ Y = X ^-1 * Y and Y / X = Y * X ^-1
+    public static final int OP_LEFT_SOLVE = 5;
+    public static final int OP_RIGHT_SOLVE = 6;
+
+    private final String mText;
+
+    // Status of the compilation. Plans which aren't RESULT_OK have no instructions
+    private final int mStatus;
+
+    // Parsed tree before the optimizations
+    private final Expression.Node mTree;
+
+    // Instruction i computes mOps[i] over the registers mLeft[i] and mRight[i] (-1 if not used)
+    private final int mOps[];
+    private final int mLeft[];
+    private final int mRight[];
+
+    // Loaded matrix of each instruction, null if it isn't a load or the matrix wasn't found.
+    // The name is null unless the matrix is loaded by name
+    private final int mIds[];
+    private final String mNames[];
+    private final Matrix mMatrices[];
+
+    // Rows and cols of each loaded matrix when the plan was compiled
+    private final int mRows[];
+    private final int mCols[];
+
+    ExpressionPlan(String text, int status) {
+        this(text, status, null, new int[0], new int[0], new int[0], new int[0], new String[0], new Matrix[0]);
+    }
+
+    ExpressionPlan(String text, int status, Expression.Node tree, int ops[], int left[], int right[],
+                   int ids[], String names[], Matrix matrices[]) {
+        mText = text;
+        mStatus = status;
+        mTree = tree;
+        mOps = ops;
+        mLeft = left;
+        mRight = right;
+        mIds = ids;
+        mNames = names;
+        mMatrices = matrices;
+
+        mRows = new int[ops.length];
+        mCols = new int[ops.length];
+
+        for(int i = 0; i < ops.length; i++)
+            if(matrices[i] != null) {
+                mRows[i] = matrices[i].getRows();
+                mCols[i] = matrices[i].getCols();
+            }
+    }
+
+    /**
+     * Joins valid plans into one where equal subexpressions are computed once. Two instructions are
+     * equal if they have the same operation over the same registers, or load the same matrix.
+     *
+     * @param plans Plans to join, all valid
+     * @param roots Destination of the register of the result of each plan in the joined plan
+     * @return The joined plan
+     */
+    static ExpressionPlan join(List<ExpressionPlan> plans, int roots[]) {
+
+        Map<String, Integer> registers = new HashMap<String, Integer>();
+
+        int size = 0;
+        for(ExpressionPlan plan : plans)
+            size += plan.size();
+
+        int ops[] = new int[size];
+        int left[] = new int[size];
+        int right[] = new int[size];
+        int ids[] = new int[size];
+        String names[] = new String[size];
+        Matrix matrices[] = new Matrix[size];
+
+        int n = 0;
+
+        for(int p = 0; p < plans.size(); p++) {
+            ExpressionPlan plan = plans.get(p);
+
+            // Register of each instruction of the plan in the joined plan
+            int map[] = new int[plan.size()];
+
+            for(int i = 0; i < plan.size(); i++) {
+                int op = plan.mOps[i];
+                int l = plan.mLeft[i] >= 0 ? map[plan.mLeft[i]] : -1;
+                int r = plan.mRight[i] >= 0 ? map[plan.mRight[i]] : -1;
+
+                // The sum is commutative
+                if(op == OP_ADD && r < l) {
+                    int aux = l;
+                    l = r;
+                    r = aux;
+                }
+
+                String key;
+
+                if(op != OP_LOAD)
+                    key = op + ":" + l + ":" + r;
+                else if(plan.mMatrices[i] == null && plan.mNames[i] != null)
+                    key = "N" + plan.mNames[i];
+                else
+                    key = "L" + plan.mIds[i];
+                Integer register = registers.get(key);
+
+                if(register == null) {
+                    register = n++;
+
+                    ops[register] = op;
+                    left[register] = l;
+                    right[register] = r;
+                    ids[register] = plan.mIds[i];
+                    names[register] = plan.mNames[i];
+                    matrices[register] = plan.mMatrices[i];
+
+                    registers.put(key, register);
+                }
+
+                map[i] = register;
+            }
+
+            roots[p] = map[plan.size() - 1];
+        }
+
+        return new ExpressionPlan(null, WorkSpace.RESULT_OK, null, Arrays.copyOf(ops, n),
+                Arrays.copyOf(left, n), Arrays.copyOf(right, n), Arrays.copyOf(ids, n), Arrays.copyOf(names, n), Arrays.copyOf(matrices, n));
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return RESULT_OK or the error found while compiling
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    Expression.Node getTree() {
+        return mTree;
+    }
+
+    public int size() {
+        return mOps.length;
+    }
+
+    public int getOp(int i) {
+        return mOps[i];
+    }
+
+    public int getLeft(int i) {
+        return mLeft[i];
+    }
+
+    public int getRight(int i) {
+        return mRight[i];
+    }
+
+    public int getId(int i) {
+        return mIds[i];
+    }
+
+    /**
+     * @return The name of the matrix loaded by the instruction or null if it's loaded by id
+     */
+    public String getName(int i) {
+        return mNames[i];
+    }
+
+    /**
+     * @return The matrix loaded by the instruction or null if it wasn't found when compiling
+     */
+    public Matrix getMatrix(int i) {
+        return mMatrices[i];
+    }
+
+    /**
+     * Checks if the plan can be executed over the current matrices of the workspace:
+     * the ids and the names load the same matrices, with the same dimensions
+     *
+     * @param ws WorkSpace
+     * @return True if the plan is still valid
+     */
+    public boolean isValid(WorkSpace ws) {
+
+        for(int i = 0; i < mOps.length; i++) {
+            if(mOps[i] != OP_LOAD)
+                continue;
+
+            Matrix m = mNames[i] != null ? ws.findMatrixByName(mNames[i]) : ws.findMatrixById(mIds[i]);
+
+            if(m != mMatrices[i])
+                return false;
+
+            if(m != null && (m.getRows() != mRows[i] || m.getCols() != mCols[i]))
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package com.rom.matapp.mat;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Factorization of a square matrix A which can be used for any number of solves.
+ *
+ * @see LUFactorization
+ * @see CholeskyFactorization
+ */
+public interface Factorization {
+
+    /**
+     * @return The size of the factored matrix
+     */
+    int getSize();
+
+    /**
+     * @return True if the systems of the factored matrix can't be solved
+     */
+    boolean isSingular();
+
+    /**
+     * @return The determinant of the factored matrix
+     */
+    double determinant();
+
+    /**
+     * Solves the system A x = b for each column of b
+     *
+     * @param b Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    Matrix solve(Matrix b);
+
+    /**
+     * Solves the system A x = b for each column of b and stores the solution in x.
+     * Blocks of columns are solved in parallel if a pool is given.
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @param pool The pool or null to solve in the calling thread
+     * @return X or null if the dimensions don't agree or the matrix is singular
+     */
+    Matrix solveInto(Matrix b, Matrix x, ForkJoinPool pool);
+
+    /**
+     * Solves the system x A = b for each row of b and stores the solution in x. Equivalent to b * A^-1
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @return X or null if the dimensions don't agree or the matrix is singular
+     */
+    Matrix solveRightInto(Matrix b, Matrix x);
+
+    /**
+     * Inverses the matrix
+     *
+     * @return The inverse or null if the matrix is singular
+     */
+    Matrix inverse();
+
+    /**
+     * Inverses the matrix and stores the result in dest.
+     * Blocks of columns are solved in parallel if a pool is given.
+     *
+     * @param dest Destination matrix
+     * @param pool The pool or null to solve in the calling thread
+     * @return Dest or null if the matrix is singular or the dimensions of dest don't agree
+     */
+    Matrix inverseInto(Matrix dest, ForkJoinPool pool);
+}
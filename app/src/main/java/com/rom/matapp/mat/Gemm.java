@@ -0,0 +1,312 @@
+package com.rom.matapp.mat;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cache blocked matrix multiplication kernel.
+ *
+ * The product is computed by panels: a block of kc rows of B is reused by every block of mc rows
+ * of A, and each row block is updated four rows at a time so every value loaded from B feeds four
+ * accumulations. The columns of the result are split in blocks of nc so the panel of B stays in cache.
+ *
+ * The products of every element are accumulated in increasing order of the inner index,
+ * therefore the results are the same as the ones of the classic triple loop.
+ *
+ * When a pool is given and the product is big enough, the result is split in tiles which are
+ * computed in parallel. Every tile is computed by a single task over the full inner dimension,
+ * so the parallel results are the same as the serial ones.
+ *
+ * The {@link ProgressMonitor} of the calling thread is checked between blocks.
+ */
+public class Gemm {
+
+    // Block sizes
+    private static volatile int sRowBlock = 64;
+    private static volatile int sColBlock = 256;
+    private static volatile int sInnerBlock = 128;
+
+    // Minimum number of multiplications (rows * inner * cols) to compute the product in parallel
+    private static volatile long sParallelThreshold = 128 * 128 * 128;
+
+    /**
+     * Sets the block sizes used by the kernel
+     *
+     * @param rowBlock Rows of A computed together (mc)
+     * @param colBlock Cols of B computed together (nc)
+     * @param innerBlock Cols of A and rows of B computed together (kc)
+     */
+    public static void setBlockSizes(int rowBlock, int colBlock, int innerBlock) {
+
+        if(rowBlock < 1 || colBlock < 1 || innerBlock < 1)
+            throw new IllegalArgumentException("The block sizes must be positive");
+
+        sRowBlock = rowBlock;
+        sColBlock = colBlock;
+        sInnerBlock = innerBlock;
+    }
+
+    public static int getRowBlock() {
+        return sRowBlock;
+    }
+
+    public static int getColBlock() {
+        return sColBlock;
+    }
+
+    public static int getInnerBlock() {
+        return sInnerBlock;
+    }
+
+    /**
+     * Sets the minimum number of scalar multiplications of a product to be computed in parallel.
+     * Smaller products are computed in the calling thread.
+     *
+     * @param threshold Minimum number of multiplications
+     */
+    public static void setParallelThreshold(long threshold) {
+        sParallelThreshold = threshold;
+    }
+
+    public static long getParallelThreshold() {
+        return sParallelThreshold;
+    }
+
+    /**
+     * Multiply a by b
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public static Matrix multiply(Matrix a, Matrix b) {
+        return multiply(a, b, null);
+    }
+
+    /**
+     * Multiply a by b using the given pool for big products
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @param pool The pool or null to compute the product in the calling thread
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public static Matrix multiply(Matrix a, Matrix b, ForkJoinPool pool) {
+
+        if (a.getCols() != b.getRows()) return null;
+
+        Matrix c = new Matrix(a.getRows(), b.getCols());
+
+        multiplyAdd(a, b, c, pool);
+
+        return c;
+    }
+
+    /**
+     * Computes C = C + A * B. The dimensions must agree and C must not share values with A or B.
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @param c Matrix C
+     */
+    public static void multiplyAdd(Matrix a, Matrix b, Matrix c) {
+        multiplyAdd(1, a, b, c, null);
+    }
+
+    /**
+     * Computes C = C + A * B using the given pool for big products.
+     * The dimensions must agree and C must not share values with A or B.
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @param c Matrix C
+     * @param pool The pool or null to compute the product in the calling thread
+     */
+    public static void multiplyAdd(Matrix a, Matrix b, Matrix c, ForkJoinPool pool) {
+        multiplyAdd(1, a, b, c, pool);
+    }
+
+    /**
+     * Computes C = C + alpha * A * B using the given pool for big products.
+     * The dimensions must agree and C must not share values with A or B.
+     * Sparse operands are multiplied as dense matrices.
+     *
+     * @param alpha Factor of the product
+     * @param a Matrix A
+     * @param b Matrix B
+     * @param c Matrix C, which must be dense
+     * @param pool The pool or null to compute the product in the calling thread
+     */
+    public static void multiplyAdd(double alpha, Matrix a, Matrix b, Matrix c, ForkJoinPool pool) {
+
+        Matrix.checkDense(c);
+
+        // The kernel reads the buffers
+        a = a.toDense();
+        b = b.toDense();
+
+        long work = (long) c.getRows() * c.getCols() * a.getCols();
+
+        if(pool == null || work < sParallelThreshold)
+            multiplyAdd(alpha, a, b, c, 0, c.getRows(), 0, c.getCols());
+        else
+            pool.invoke(new MultiplyTask(alpha, a, b, c, 0, c.getRows(), 0, c.getCols()));
+
+        c.markModified();
+    }
+
+    /**
+     * Computes C = C + alpha * A * B over the given region of C. The version of C isn't changed.
+     *
+     * @param alpha Factor of the product
+     * @param a Matrix A
+     * @param b Matrix B
+     * @param c Matrix C
+     * @param rowFrom First row of C
+     * @param rowTo Last row of C (exclusive)
+     * @param colFrom First col of C
+     * @param colTo Last col of C (exclusive)
+     */
+    static void multiplyAdd(double alpha, Matrix a, Matrix b, Matrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+
+        int inner = a.getCols();
+
+        double ad[] = a.getBuffer();
+        double bd[] = b.getBuffer();
+        double cd[] = c.editBuffer();
+
+        int aOff = a.getOffset();
+        int bOff = b.getOffset();
+        int cOff = c.getOffset();
+
+        int as = a.getStride();
+        int bs = b.getStride();
+        int cs = c.getStride();
+
+        int mc = sRowBlock;
+        int nc = sColBlock;
+        int kc = sInnerBlock;
+
+        for (int jj = colFrom; jj < colTo; jj += nc) {
+            int jEnd = Math.min(jj + nc, colTo);
+
+            for (int kk = 0; kk < inner; kk += kc) {
+                int kEnd = Math.min(kk + kc, inner);
+
+                ProgressMonitor.checkCurrent();
+
+                for (int ii = rowFrom; ii < rowTo; ii += mc) {
+                    int iEnd = Math.min(ii + mc, rowTo);
+
+                    int i = ii;
+
+                    // Four rows at a time
+                    for (; i + 3 < iEnd; i += 4) {
+                        int a0 = aOff + i * as;
+                        int a1 = a0 + as;
+                        int a2 = a1 + as;
+                        int a3 = a2 + as;
+
+                        int c0 = cOff + i * cs;
+                        int c1 = c0 + cs;
+                        int c2 = c1 + cs;
+                        int c3 = c2 + cs;
+
+                        for (int k = kk; k < kEnd; k++) {
+                            double v0 = alpha * ad[a0 + k];
+                            double v1 = alpha * ad[a1 + k];
+                            double v2 = alpha * ad[a2 + k];
+                            double v3 = alpha * ad[a3 + k];
+
+                            int bi = bOff + k * bs;
+
+                            for (int j = jj; j < jEnd; j++) {
+                                double w = bd[bi + j];
+
+                                cd[c0 + j] += v0 * w;
+                                cd[c1 + j] += v1 * w;
+                                cd[c2 + j] += v2 * w;
+                                cd[c3 + j] += v3 * w;
+                            }
+                        }
+                    }
+
+                    // Remaining rows
+                    for (; i < iEnd; i++) {
+                        int ai = aOff + i * as;
+                        int ci = cOff + i * cs;
+
+                        for (int k = kk; k < kEnd; k++) {
+                            double v = alpha * ad[ai + k];
+                            int bi = bOff + k * bs;
+
+                            for (int j = jj; j < jEnd; j++)
+                                cd[ci + j] += v * bd[bi + j];
+                        }
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Task computing a tile of the result. Splits the tile by its longest side
+     * until it is not bigger than a block of the kernel.
+     */
+    private static class MultiplyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double mAlpha;
+        private final Matrix mA;
+        private final Matrix mB;
+        private final Matrix mC;
+
+        private final int mRowFrom;
+        private final int mRowTo;
+        private final int mColFrom;
+        private final int mColTo;
+
+        // Monitor of the thread which created the task
+        private final ProgressMonitor mMonitor = ProgressMonitor.current();
+
+        MultiplyTask(double alpha, Matrix a, Matrix b, Matrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+            mAlpha = alpha;
+            mA = a;
+            mB = b;
+            mC = c;
+            mRowFrom = rowFrom;
+            mRowTo = rowTo;
+            mColFrom = colFrom;
+            mColTo = colTo;
+        }
+
+        @Override
+        protected void compute() {
+            ProgressMonitor previous = ProgressMonitor.enter(mMonitor);
+
+            try {
+                int rows = mRowTo - mRowFrom;
+                int cols = mColTo - mColFrom;
+
+                if(rows <= sRowBlock && cols <= sColBlock) {
+                    multiplyAdd(mAlpha, mA, mB, mC, mRowFrom, mRowTo, mColFrom, mColTo);
+                    return;
+                }
+
+                if(rows * (long) sColBlock >= cols * (long) sRowBlock) {
+                    int mid = mRowFrom + rows / 2;
+                    invokeAll(new MultiplyTask(mAlpha, mA, mB, mC, mRowFrom, mid, mColFrom, mColTo),
+                            new MultiplyTask(mAlpha, mA, mB, mC, mid, mRowTo, mColFrom, mColTo));
+                } else {
+                    int mid = mColFrom + cols / 2;
+                    invokeAll(new MultiplyTask(mAlpha, mA, mB, mC, mRowFrom, mRowTo, mColFrom, mid),
+                            new MultiplyTask(mAlpha, mA, mB, mC, mRowFrom, mRowTo, mid, mColTo));
+                }
+            } finally {
+                ProgressMonitor.exit(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.rom.matapp.mat;
+
+import java.util.Arrays;
+
+/**
+ * Incomplete LU factorization without fill: M = L U where L and U only have values
+ * where A has them. The factors share the compressed rows of A, so they need the same
+ * memory and each application costs two sparse triangular solves.
+ */
+public class ILU0Preconditioner implements Preconditioner {
+
+    private int mSize;
+
+    // Pattern of A
+    private int mRowPtr[];
+    private int mColIdx[];
+
+    // L (unit diagonal, not stored) and U packed in the pattern of A
+    private double mValues[];
+
+    // Index of the diagonal value of each row
+    private int mDiag[];
+
+    /**
+     * Factors the given square matrix. Dense matrices are compressed first.
+     *
+     * @param m Matrix
+     * @throws IllegalArgumentException If the matrix is not square or a pivot is zero or missing
+     */
+    public ILU0Preconditioner(Matrix m) {
+
+        if(!m.isSquare())
+            throw new IllegalArgumentException("The matrix must be square");
+
+        SparseMatrix a = m.isSparse() ? (SparseMatrix) m : SparseMatrix.fromDense(m);
+
+        int n = a.getRows();
+        // The arrays of the matrix are copied, its writes shift them in place
+        int rowPtr[] = a.getRowPointers().clone();
+        int colIdx[] = Arrays.copyOf(a.getColumnIndices(), a.getNonZeros());
+        double lu[] = Arrays.copyOf(a.getValues(), a.getNonZeros());
+
+        mSize = n;
+        mRowPtr = rowPtr;
+        mColIdx = colIdx;
+        mValues = lu;
+        mDiag = new int[n];
+
+        // Position of each column in the current row, -1 if it's not in the pattern
+        int position[] = new int[n];
+        for(int j = 0; j < n; j++)
+            position[j] = -1;
+
+        for(int i = 0; i < n; i++) {
+            mDiag[i] = -1;
+
+            for(int p = rowPtr[i]; p < rowPtr[i + 1]; p++) {
+                position[colIdx[p]] = p;
+
+                if(colIdx[p] == i)
+                    mDiag[i] = p;
+            }
+
+            if(mDiag[i] < 0)
+                throw new IllegalArgumentException("Missing diagonal value at " + i);
+
+            // Eliminates the values before the diagonal with the rows already factored
+            for(int p = rowPtr[i]; p < mDiag[i]; p++) {
+                int k = colIdx[p];
+
+                lu[p] /= lu[mDiag[k]];
+
+                double factor = lu[p];
+                for(int q = mDiag[k] + 1; q < rowPtr[k + 1]; q++) {
+                    int pos = position[colIdx[q]];
+
+                    if(pos >= 0)
+                        lu[pos] -= factor * lu[q];
+                }
+            }
+
+            if(lu[mDiag[i]] == 0)
+                throw new IllegalArgumentException("Zero pivot at " + i);
+
+            for(int p = rowPtr[i]; p < rowPtr[i + 1]; p++)
+                position[colIdx[p]] = -1;
+        }
+    }
+
+    @Override
+    public void apply(double r[], double z[]) {
+
+        int n = mSize;
+
+        // L y = r
+        for(int i = 0; i < n; i++) {
+            double sum = r[i];
+
+            for(int p = mRowPtr[i]; p < mDiag[i]; p++)
+                sum -= mValues[p] * z[mColIdx[p]];
+
+            z[i] = sum;
+        }
+
+        // U z = y
+        for(int i = n - 1; i >= 0; i--) {
+            double sum = z[i];
+
+            for(int p = mDiag[i] + 1; p < mRowPtr[i + 1]; p++)
+                sum -= mValues[p] * z[mColIdx[p]];
+
+            z[i] = sum / mValues[mDiag[i]];
+        }
+    }
+}
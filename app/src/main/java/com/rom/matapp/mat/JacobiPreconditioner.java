@@ -0,0 +1,40 @@
+package com.rom.matapp.mat;
+
+/**
+ * Diagonal preconditioner: M = diag(A).
+ */
+public class JacobiPreconditioner implements Preconditioner {
+
+    // Inverse of the diagonal
+    private double mInverse[];
+
+    /**
+     * Creates the preconditioner of the given square matrix
+     *
+     * @param m Matrix
+     * @throws IllegalArgumentException If the matrix is not square or has a zero on its diagonal
+     */
+    public JacobiPreconditioner(Matrix m) {
+
+        if(!m.isSquare())
+            throw new IllegalArgumentException("The matrix must be square");
+
+        int n = m.getRows();
+        mInverse = new double[n];
+
+        for(int i = 0; i < n; i++) {
+            double d = m.getValue(i, i);
+
+            if(d == 0)
+                throw new IllegalArgumentException("Zero on the diagonal at " + i);
+
+            mInverse[i] = 1 / d;
+        }
+    }
+
+    @Override
+    public void apply(double r[], double z[]) {
+        for(int i = 0; i < mInverse.length; i++)
+            z[i] = mInverse[i] * r[i];
+    }
+}
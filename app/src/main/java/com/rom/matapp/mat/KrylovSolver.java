@@ -0,0 +1,494 @@
+package com.rom.matapp.mat;
+
+/**
+ * Iterative solver of A x = b which only needs the products of A by vectors,
+ * so big sparse systems are solved in O(iterations * non zero values) time and O(n) memory.
+ *
+ * Conjugate gradient is for symmetric positive definite matrices, BiCGSTAB and restarted GMRES
+ * for any other. The system is preconditioned if a {@link Preconditioner} is given
+ * (on the left for conjugate gradient, on the right for the others, so the reported residual
+ * is always the one of the original system).
+ *
+ * The iteration stops when ||b - A x|| <= tolerance * ||b|| or the maximum number of iterations is reached.
+ */
+public class KrylovSolver {
+
+    // Methods
+    public static final int METHOD_CG = 1;
+    public static final int METHOD_BICGSTAB = 2;
+    public static final int METHOD_GMRES = 3;
+
+    /**
+     * Receives the relative residual of every iteration
+     */
+    public interface IterationListener {
+
+        /**
+         * @param iteration Number of the iteration, from 1
+         * @param residual ||b - A x|| / ||b||
+         */
+        void onIteration(int iteration, double residual);
+    }
+
+    private int mMethod;
+
+    private double mTolerance;
+    private int mMaxIterations;
+
+    // Iterations between GMRES restarts
+    private int mRestart;
+
+    private Preconditioner mPreconditioner;
+    private IterationListener mListener;
+
+    // Result of the last solve
+    private int mIterations;
+    private double mResidual;
+
+    public KrylovSolver(int method) {
+        mMethod = method;
+        mTolerance = 1e-10;
+        mMaxIterations = 1000;
+        mRestart = 30;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    public void setTolerance(double tolerance) {
+        mTolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return mTolerance;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        mMaxIterations = maxIterations;
+    }
+
+    public int getMaxIterations() {
+        return mMaxIterations;
+    }
+
+    public void setRestart(int restart) {
+
+        if(restart < 1)
+            throw new IllegalArgumentException("The restart must be positive");
+
+        mRestart = restart;
+    }
+
+    public int getRestart() {
+        return mRestart;
+    }
+
+    /**
+     * @param preconditioner The preconditioner or null to solve the system as it is
+     */
+    public void setPreconditioner(Preconditioner preconditioner) {
+        mPreconditioner = preconditioner;
+    }
+
+    public Preconditioner getPreconditioner() {
+        return mPreconditioner;
+    }
+
+    public void setIterationListener(IterationListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The iterations of the last solve
+     */
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * @return The relative residual reached by the last solve
+     */
+    public double getResidual() {
+        return mResidual;
+    }
+
+    /**
+     * Solves A x = b for each column of b, starting from zero
+     *
+     * @param a Square operator A
+     * @param b Matrix b
+     * @return The solution or null if the dimensions don't agree or any column didn't converge
+     */
+    public Matrix solve(LinearOperator a, Matrix b) {
+
+        int n = a.getRows();
+
+        if(a.getCols() != n || b.getRows() != n)
+            return null;
+
+        Matrix x = new Matrix(n, b.getCols());
+        double xd[] = x.editBuffer();
+        int k = b.getCols();
+
+        double bc[] = new double[n];
+        double xc[] = new double[n];
+
+        int iterations = 0;
+        double residual = 0;
+
+        for(int col = 0; col < b.getCols(); col++) {
+
+            for(int i = 0; i < n; i++) {
+                bc[i] = b.getValue(i, col);
+                xc[i] = 0;
+            }
+
+            if(!solve(a, bc, xc))
+                return null;
+
+            for(int i = 0; i < n; i++)
+                xd[i * k + col] = xc[i];
+
+            iterations = Math.max(iterations, mIterations);
+            residual = Math.max(residual, mResidual);
+        }
+
+        mIterations = iterations;
+        mResidual = residual;
+
+        x.markModified();
+
+        return x;
+    }
+
+    /**
+     * Solves A x = b with the method of the solver
+     *
+     * @param a Square operator A
+     * @param b Vector b
+     * @param x Initial guess. Overwritten with the solution
+     * @return True if the tolerance was reached
+     */
+    public boolean solve(LinearOperator a, double b[], double x[]) {
+
+        mIterations = 0;
+        mResidual = Double.NaN;
+
+        if(a.getRows() != a.getCols() || b.length != a.getRows() || x.length != b.length)
+            return false;
+
+        switch(mMethod) {
+            case METHOD_CG:
+                return conjugateGradient(a, b, x);
+            case METHOD_BICGSTAB:
+                return biCGStab(a, b, x);
+            case METHOD_GMRES:
+                return gmres(a, b, x);
+            default:
+                throw new IllegalStateException("Unknown method " + mMethod);
+        }
+    }
+
+    /**
+     * Preconditioned conjugate gradient. Stops if A turns out not to be positive definite.
+     */
+    private boolean conjugateGradient(LinearOperator a, double b[], double x[]) {
+
+        int n = b.length;
+
+        double r[] = new double[n];
+        double z[] = new double[n];
+        double p[] = new double[n];
+        double ap[] = new double[n];
+
+        double bNorm = norm(b);
+        if(bNorm == 0)
+            bNorm = 1;
+
+        residual(a, b, x, r);
+
+        if(converged(norm(r) / bNorm))
+            return true;
+
+        precondition(r, z);
+        System.arraycopy(z, 0, p, 0, n);
+
+        double rz = dot(r, z);
+
+        while(mIterations < mMaxIterations) {
+
+            a.apply(p, ap);
+
+            double pap = dot(p, ap);
+            if(!(pap > 0))
+                return false;
+
+            double alpha = rz / pap;
+
+            axpy(alpha, p, x);
+            axpy(-alpha, ap, r);
+
+            if(report(norm(r) / bNorm))
+                return true;
+
+            precondition(r, z);
+
+            double rzNew = dot(r, z);
+            double beta = rzNew / rz;
+            rz = rzNew;
+
+            for(int i = 0; i < n; i++)
+                p[i] = z[i] + beta * p[i];
+        }
+
+        return false;
+    }
+
+    /**
+     * Right preconditioned BiCGSTAB. Stops if the iteration breaks down.
+     */
+    private boolean biCGStab(LinearOperator a, double b[], double x[]) {
+
+        int n = b.length;
+
+        double r[] = new double[n];
+        double rHat[] = new double[n];
+        double p[] = new double[n];
+        double v[] = new double[n];
+        double s[] = new double[n];
+        double t[] = new double[n];
+        double pHat[] = new double[n];
+        double sHat[] = new double[n];
+
+        double bNorm = norm(b);
+        if(bNorm == 0)
+            bNorm = 1;
+
+        residual(a, b, x, r);
+
+        if(converged(norm(r) / bNorm))
+            return true;
+
+        System.arraycopy(r, 0, rHat, 0, n);
+
+        double rho = 1;
+        double alpha = 1;
+        double omega = 1;
+
+        while(mIterations < mMaxIterations) {
+
+            double rhoNew = dot(rHat, r);
+            if(rhoNew == 0 || omega == 0)
+                return false;
+
+            double beta = (rhoNew / rho) * (alpha / omega);
+            rho = rhoNew;
+
+            for(int i = 0; i < n; i++)
+                p[i] = r[i] + beta * (p[i] - omega * v[i]);
+
+            precondition(p, pHat);
+            a.apply(pHat, v);
+
+            double rv = dot(rHat, v);
+            if(rv == 0)
+                return false;
+
+            alpha = rho / rv;
+
+            for(int i = 0; i < n; i++)
+                s[i] = r[i] - alpha * v[i];
+
+            double sNorm = norm(s) / bNorm;
+            if(sNorm <= mTolerance) {
+                axpy(alpha, pHat, x);
+                return report(sNorm);
+            }
+
+            precondition(s, sHat);
+            a.apply(sHat, t);
+
+            double tt = dot(t, t);
+            omega = tt == 0 ? 0 : dot(t, s) / tt;
+
+            for(int i = 0; i < n; i++) {
+                x[i] += alpha * pHat[i] + omega * sHat[i];
+                r[i] = s[i] - omega * t[i];
+            }
+
+            if(report(norm(r) / bNorm))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Right preconditioned GMRES restarted every {@link #getRestart()} iterations.
+     * The Hessenberg matrix is reduced with Givens rotations as it grows, so the residual
+     * of every iteration is known without forming x.
+     */
+    private boolean gmres(LinearOperator a, double b[], double x[]) {
+
+        int n = b.length;
+        int m = Math.min(mRestart, n);
+
+        double basis[][] = new double[m + 1][n];
+        double h[][] = new double[m + 1][m];
+        double cs[] = new double[m];
+        double sn[] = new double[m];
+        double g[] = new double[m + 1];
+        double w[] = new double[n];
+        double z[] = new double[n];
+
+        double bNorm = norm(b);
+        if(bNorm == 0)
+            bNorm = 1;
+
+        while(true) {
+
+            residual(a, b, x, basis[0]);
+
+            double beta = norm(basis[0]);
+
+            if(mIterations == 0 && converged(beta / bNorm))
+                return true;
+
+            if(beta == 0 || mIterations >= mMaxIterations) {
+                mResidual = beta / bNorm;
+                return mResidual <= mTolerance;
+            }
+
+            for(int i = 0; i < n; i++)
+                basis[0][i] /= beta;
+
+            g[0] = beta;
+            for(int i = 1; i <= m; i++)
+                g[i] = 0;
+
+            int j = 0;
+            boolean done = false;
+
+            while(j < m && mIterations < mMaxIterations && !done) {
+
+                precondition(basis[j], z);
+                a.apply(z, w);
+
+                // Modified Gram-Schmidt
+                for(int i = 0; i <= j; i++) {
+                    h[i][j] = dot(w, basis[i]);
+                    axpy(-h[i][j], basis[i], w);
+                }
+
+                h[j + 1][j] = norm(w);
+
+                // Previous rotations
+                for(int i = 0; i < j; i++) {
+                    double aux = cs[i] * h[i][j] + sn[i] * h[i + 1][j];
+                    h[i + 1][j] = -sn[i] * h[i][j] + cs[i] * h[i + 1][j];
+                    h[i][j] = aux;
+                }
+
+                // New rotation, which zeroes h(j + 1, j)
+                double den = Math.hypot(h[j][j], h[j + 1][j]);
+                if(den == 0)
+                    return false;
+
+                cs[j] = h[j][j] / den;
+                sn[j] = h[j + 1][j] / den;
+
+                boolean lucky = h[j + 1][j] == 0;
+
+                if(!lucky)
+                    for(int i = 0; i < n; i++)
+                        basis[j + 1][i] = w[i] / h[j + 1][j];
+
+                h[j][j] = den;
+                h[j + 1][j] = 0;
+
+                g[j + 1] = -sn[j] * g[j];
+                g[j] = cs[j] * g[j];
+
+                done = report(Math.abs(g[j + 1]) / bNorm) || lucky;
+
+                j++;
+            }
+
+            // y = H^-1 g, x = x + M^-1 V y
+            double y[] = new double[j];
+            for(int i = j - 1; i >= 0; i--) {
+                double sum = g[i];
+                for(int k = i + 1; k < j; k++)
+                    sum -= h[i][k] * y[k];
+                y[i] = sum / h[i][i];
+            }
+
+            for(int i = 0; i < n; i++)
+                w[i] = 0;
+            for(int k = 0; k < j; k++)
+                axpy(y[k], basis[k], w);
+
+            precondition(w, z);
+            axpy(1, z, x);
+
+            if(done)
+                return mResidual <= mTolerance;
+        }
+    }
+
+    // Stores the residual of the initial guess
+    private boolean converged(double residual) {
+        mResidual = residual;
+        return residual <= mTolerance;
+    }
+
+    // Counts an iteration and reports its residual
+    private boolean report(double residual) {
+
+        ProgressMonitor.checkCurrent();
+
+        mIterations++;
+        mResidual = residual;
+
+        if(mListener != null)
+            mListener.onIteration(mIterations, residual);
+
+        return residual <= mTolerance;
+    }
+
+    private void precondition(double r[], double z[]) {
+        if(mPreconditioner == null)
+            System.arraycopy(r, 0, z, 0, r.length);
+        else
+            mPreconditioner.apply(r, z);
+    }
+
+    // r = b - A x
+    private static void residual(LinearOperator a, double b[], double x[], double r[]) {
+
+        a.apply(x, r);
+
+        for(int i = 0; i < r.length; i++)
+            r[i] = b[i] - r[i];
+    }
+
+    // y = y + alpha x
+    private static void axpy(double alpha, double x[], double y[]) {
+        for(int i = 0; i < y.length; i++)
+            y[i] += alpha * x[i];
+    }
+
+    private static double dot(double x[], double y[]) {
+
+        double sum = 0;
+        for(int i = 0; i < x.length; i++)
+            sum += x[i] * y[i];
+
+        return sum;
+    }
+
+    private static double norm(double x[]) {
+        return Math.sqrt(dot(x, x));
+    }
+}
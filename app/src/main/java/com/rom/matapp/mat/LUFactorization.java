@@ -0,0 +1,521 @@
+package com.rom.matapp.mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * LU factorization with scaled partial pivoting of a square matrix: P A = L U.
+ *
+ * L and U are packed in a single row-major buffer (L has a unit diagonal which is not stored)
+ * and P is kept as the original index of each row. The factorization is immutable, so it can
+ * be computed once and used for any number of solves.
+ */
+public class LUFactorization implements Factorization {
+
+    // Minimum allowed scaled pivot. Smaller pivots make the matrix singular
+    public static final double DEFAULT_TOLERANCE = 0.01;
+
+    // Columns factored together
+    private static final int PANEL_SIZE = 64;
+
+    // Columns of the right hand side substituted together
+    private static final int COLUMN_BLOCK = 256;
+
+    // Columns of the right hand side substituted by each parallel task
+    private static final int PARALLEL_COLUMN_BLOCK = 32;
+
+    private final int mSize;
+
+    // Packed L and U
+    private final double mLU[];
+
+    // Original row of each row of LU
+    private final int mPermutation[];
+
+    // Number of row swaps
+    private final int mSwaps;
+
+    private final boolean mSingular;
+
+    private LUFactorization(int n, double lu[], int permutation[], int swaps, boolean singular) {
+        mSize = n;
+        mLU = lu;
+        mPermutation = permutation;
+        mSwaps = swaps;
+        mSingular = singular;
+    }
+
+    /**
+     * Decomposes the given matrix with the default tolerance
+     *
+     * @param m Matrix
+     * @return The factorization or null if the matrix is not square
+     */
+    public static LUFactorization decompose(Matrix m) {
+        return decompose(m, DEFAULT_TOLERANCE, null);
+    }
+
+    /**
+     * Decomposes the given matrix with the default tolerance using the given pool for big matrices
+     *
+     * @param m Matrix
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square
+     */
+    public static LUFactorization decompose(Matrix m, ForkJoinPool pool) {
+        return decompose(m, DEFAULT_TOLERANCE, pool);
+    }
+
+    /**
+     * Decomposes the given matrix. The columns are factored by panels: each panel is factored
+     * with scaled partial pivoting, then the rows of U to its right are solved and the rest
+     * of the matrix is updated with a single product, which is computed in parallel if a pool is given.
+     *
+     * @param m Matrix
+     * @param tolerance Minimum allowed scaled pivot
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square
+     */
+    public static LUFactorization decompose(Matrix m, double tolerance, ForkJoinPool pool) {
+
+        if(!m.isSquare())
+            return null;
+
+        int n = m.getRows();
+
+        Matrix a = new Matrix(n, n);
+        Matrix.copyValues(m, a);
+
+        double lu[] = a.editBuffer();
+        int o[] = new int[n];
+        double s[] = new double[n];
+
+        // Gets the highest values of each row
+        for(int i = 0; i < n; i++) {
+            o[i] = i;
+
+            for(int j = 0; j < n; j++)
+                s[i] = Math.max(s[i], Math.abs(lu[i * n + j]));
+        }
+
+        int swaps = 0;
+        boolean singular = false;
+
+        for(int kb = 0; kb < n; kb += PANEL_SIZE) {
+            int end = Math.min(kb + PANEL_SIZE, n);
+
+            ProgressMonitor.checkCurrent();
+
+            // Panel factorization
+            for(int k = kb; k < end; k++) {
+
+                // Pivot
+                int p = k;
+                double big = Math.abs(lu[k * n + k] / s[k]);
+
+                for(int i = k + 1; i < n; i++) {
+                    double aux = Math.abs(lu[i * n + k] / s[i]);
+                    if(aux > big) {
+                        big = aux;
+                        p = i;
+                    }
+                }
+
+                if(p != k) {
+                    swapRows(lu, n, p, k);
+
+                    int tmp = o[p];
+                    o[p] = o[k];
+                    o[k] = tmp;
+
+                    double aux = s[p];
+                    s[p] = s[k];
+                    s[k] = aux;
+
+                    swaps++;
+                }
+
+                // Also rejects rows of zeros
+                if(!(big >= tolerance))
+                    singular = true;
+
+                double pivot = lu[k * n + k];
+                if(pivot == 0)
+                    continue;
+
+                for(int i = k + 1; i < n; i++) {
+                    int ri = i * n;
+                    double factor = lu[ri + k] / pivot;
+
+                    // L Storage
+                    lu[ri + k] = factor;
+
+                    // U Storage, only inside the panel
+                    for(int j = k + 1; j < end; j++)
+                        lu[ri + j] -= factor * lu[k * n + j];
+                }
+            }
+
+            if(end == n)
+                break;
+
+            // U12 = L11^-1 A12
+            for(int k = kb + 1; k < end; k++)
+                for(int j = kb; j < k; j++) {
+                    double l = lu[k * n + j];
+
+                    if(l == 0) continue;
+
+                    for(int col = end; col < n; col++)
+                        lu[k * n + col] -= l * lu[j * n + col];
+                }
+
+            // A22 = A22 - L21 U12
+            Gemm.multiplyAdd(-1, a.view(end, kb, n - end, end - kb), a.view(kb, end, end - kb, n - end),
+                    a.view(end, end, n - end, n - end), pool);
+        }
+
+        return new LUFactorization(n, lu, o, swaps, singular);
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Checks if a scaled pivot was lower than the tolerance
+     *
+     * @return True if the matrix is singular
+     */
+    @Override
+    public boolean isSingular() {
+        return mSingular;
+    }
+
+    /**
+     * Returns a copy of the original row of each row of L U
+     */
+    public int[] getPermutation() {
+        return mPermutation.clone();
+    }
+
+    /**
+     * Returns a copy of L and U packed in a matrix. L has a unit diagonal which is not stored
+     */
+    public Matrix getLU() {
+        return Matrix.shared(mLU, mSize, mSize);
+    }
+
+    /**
+     * Gets the determinant of the matrix
+     *
+     * @return The determinant
+     */
+    @Override
+    public double determinant() {
+
+        double det = mSwaps % 2 == 0 ? 1 : -1;
+
+        for(int i = 0; i < mSize; i++)
+            det *= mLU[i * mSize + i];
+
+        return det;
+    }
+
+    /**
+     * Solves the system A x = b for each column of b
+     *
+     * @param b Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    @Override
+    public Matrix solve(Matrix b) {
+
+        if(b.getRows() != mSize)
+            return null;
+
+        return solveInto(b, new Matrix(mSize, b.getCols()), null);
+    }
+
+    /**
+     * Solves the system A x = b for each column of b and stores the solution in x
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @return X or null if the dimensions don't agree or the matrix is singular
+     */
+    public Matrix solveInto(Matrix b, Matrix x) {
+        return solveInto(b, x, null);
+    }
+
+    /**
+     * Solves the system A x = b for each column of b and stores the solution in x.
+     * Blocks of columns are solved in parallel if a pool is given.
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @param pool The pool or null to solve in the calling thread
+     * @return X or null if the dimensions don't agree or the matrix is singular
+     */
+    @Override
+    public Matrix solveInto(Matrix b, Matrix x, ForkJoinPool pool) {
+
+        if(mSingular || b.getRows() != mSize || x.getRows() != mSize || x.getCols() != b.getCols())
+            return null;
+
+        Matrix.checkDense(x);
+
+        int n = mSize;
+        int k = b.getCols();
+
+        // x = P b. The rows are permuted through a copy when b and x are the same matrix.
+        // The copy shares the values of b, x is copied when it is written
+        Matrix src = b == x || b.getBuffer() == x.getBuffer() ? b.copy() : b.toDense();
+
+        double sd[] = src.getBuffer();
+        double xd[] = x.editBuffer();
+
+        for(int i = 0; i < n; i++)
+            System.arraycopy(sd, src.getOffset() + mPermutation[i] * src.getStride(),
+                    xd, x.getOffset() + i * x.getStride(), k);
+
+        substitute(x, pool);
+        x.markModified();
+
+        return x;
+    }
+
+    /**
+     * Solves the system x A = b for each row of b. Equivalent to b * A^-1
+     *
+     * @param b Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    public Matrix solveRight(Matrix b) {
+
+        if(b.getCols() != mSize)
+            return null;
+
+        return solveRightInto(b, new Matrix(b.getRows(), mSize));
+    }
+
+    /**
+     * Solves the system x A = b for each row of b and stores the solution in x.
+     * A = P^T L U, so x = b U^-1 L^-1 P.
+     *
+     * @param b Matrix b
+     * @param x Destination matrix. It can be b
+     * @return X or null if the dimensions don't agree or the matrix is singular
+     */
+    @Override
+    public Matrix solveRightInto(Matrix b, Matrix x) {
+
+        if(mSingular || b.getCols() != mSize || x.getCols() != mSize || x.getRows() != b.getRows())
+            return null;
+
+        Matrix.checkDense(x);
+
+        int n = mSize;
+        double lu[] = mLU;
+        double w[] = new double[n];
+
+        double xd[] = x.editBuffer();
+        int off = x.getOffset();
+        int stride = x.getStride();
+
+        for(int row = 0; row < b.getRows(); row++) {
+
+            for(int j = 0; j < n; j++)
+                w[j] = b.getValue(row, j);
+
+            // w U = b
+            for(int i = 0; i < n; i++) {
+                w[i] /= lu[i * n + i];
+
+                double v = w[i];
+                for(int j = i + 1; j < n; j++)
+                    w[j] -= v * lu[i * n + j];
+            }
+
+            // v L = w
+            for(int i = n - 1; i > 0; i--) {
+                double v = w[i];
+                for(int j = 0; j < i; j++)
+                    w[j] -= v * lu[i * n + j];
+            }
+
+            // x = v P
+            for(int k = 0; k < n; k++)
+                xd[off + row * stride + mPermutation[k]] = w[k];
+        }
+
+        x.markModified();
+
+        return x;
+    }
+
+    /**
+     * Inverses the matrix
+     *
+     * @return The inverse or null if the matrix is singular
+     */
+    @Override
+    public Matrix inverse() {
+        return inverseInto(new Matrix(mSize, mSize), null);
+    }
+
+    /**
+     * Inverses the matrix and stores the result in dest.
+     * Blocks of columns are solved in parallel if a pool is given.
+     *
+     * @param dest Destination matrix
+     * @param pool The pool or null to solve in the calling thread
+     * @return Dest or null if the matrix is singular or the dimensions of dest don't agree
+     */
+    @Override
+    public Matrix inverseInto(Matrix dest, ForkJoinPool pool) {
+
+        if(mSingular || dest.getRows() != mSize || dest.getCols() != mSize)
+            return null;
+
+        Matrix.checkDense(dest);
+
+        // P I
+        dest.fill(0);
+        for(int i = 0; i < mSize; i++)
+            dest.setValue(1, i, mPermutation[i]);
+
+        substitute(dest, pool);
+        dest.markModified();
+
+        return dest;
+    }
+
+    /**
+     * Substitutes every column of x = P b, in parallel by blocks of columns if a pool is given
+     * and there are enough columns.
+     */
+    private void substitute(Matrix x, ForkJoinPool pool) {
+
+        int k = x.getCols();
+
+        if(pool == null || k <= PARALLEL_COLUMN_BLOCK || (long) mSize * mSize * k < Gemm.getParallelThreshold()) {
+            substitute(x, 0, k);
+            return;
+        }
+
+        final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+        for(int cc = 0; cc < k; cc += PARALLEL_COLUMN_BLOCK)
+            tasks.add(new SubstituteTask(x, cc, Math.min(cc + PARALLEL_COLUMN_BLOCK, k)));
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Forward and back substitution of the given columns of x = P b. The solution overwrites x.
+     * The columns are processed in blocks, so the block of rows used by each row stays in cache.
+     *
+     * @param x P b
+     * @param from First column
+     * @param to Last column (exclusive)
+     */
+    private void substitute(Matrix x, int from, int to) {
+
+        int n = mSize;
+
+        double lu[] = mLU;
+        double xd[] = x.editBuffer();
+        int off = x.getOffset();
+        int stride = x.getStride();
+
+        for(int cc = from; cc < to; cc += COLUMN_BLOCK) {
+            int cEnd = Math.min(cc + COLUMN_BLOCK, to);
+
+            ProgressMonitor.checkCurrent();
+
+            // L y = P b
+            for(int i = 1; i < n; i++) {
+                int xi = off + i * stride;
+
+                for(int j = 0; j < i; j++) {
+                    double l = lu[i * n + j];
+
+                    if(l == 0) continue;
+
+                    int xj = off + j * stride;
+                    for(int col = cc; col < cEnd; col++)
+                        xd[xi + col] -= l * xd[xj + col];
+                }
+            }
+
+            // U x = y
+            for(int i = n - 1; i >= 0; i--) {
+                int xi = off + i * stride;
+
+                for(int j = i + 1; j < n; j++) {
+                    double u = lu[i * n + j];
+
+                    if(u == 0) continue;
+
+                    int xj = off + j * stride;
+                    for(int col = cc; col < cEnd; col++)
+                        xd[xi + col] -= u * xd[xj + col];
+                }
+
+                double pivot = lu[i * n + i];
+                for(int col = cc; col < cEnd; col++)
+                    xd[xi + col] /= pivot;
+            }
+        }
+    }
+
+    private static void swapRows(double a[], int n, int r1, int r2) {
+        for(int col = 0; col < n; col++) {
+            double aux = a[r1 * n + col];
+            a[r1 * n + col] = a[r2 * n + col];
+            a[r2 * n + col] = aux;
+        }
+    }
+
+    /**
+     * Task substituting a block of columns
+     */
+    private class SubstituteTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix mX;
+        private final int mFrom;
+        private final int mTo;
+
+        // Monitor of the thread which created the task
+        private final ProgressMonitor mMonitor = ProgressMonitor.current();
+
+        SubstituteTask(Matrix x, int from, int to) {
+            mX = x;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            ProgressMonitor previous = ProgressMonitor.enter(mMonitor);
+
+            try {
+                substitute(mX, mFrom, mTo);
+            } finally {
+                ProgressMonitor.exit(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.rom.matapp.mat;
+
+/**
+ * Linear map y = A x which is only known by its product with a vector.
+ * Used by {@link KrylovSolver}, so the matrix doesn't need to be stored or factored.
+ */
+public interface LinearOperator {
+
+    int getRows();
+
+    int getCols();
+
+    /**
+     * Computes y = A x
+     *
+     * @param x Vector of cols values
+     * @param y Destination vector of rows values. It must not be x
+     */
+    void apply(double x[], double y[]);
+}
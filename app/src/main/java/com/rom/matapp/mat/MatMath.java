@@ -4,14 +4,17 @@ package com.rom.matapp.mat;
  * Created by rom on 21/08/14.
  */
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class provides methods for matrix operations
  */
 public class MatMath {
 
+    // Multiplication algorithms
+    public static final int ALGORITHM_CLASSIC = 1;
+    public static final int ALGORITHM_STRASSEN = 2;
+
     /**
      * Adds two matrices
      *
@@ -20,20 +23,7 @@ public class MatMath {
      * @return The result matrix or null if the dimensions don't match
      */
     public static Matrix add(final Matrix m1, final Matrix m2) {
-
-        if (m1.getRows() != m2.getRows() || m1.getCols() != m2.getCols())
-            return null;
-
-        int rows = m1.getRows();
-        int cols = m1.getCols();
-
-        double result[][] = new double[rows][cols];
-
-        for (int row = 0; row < rows; row++)
-            for (int col = 0; col < cols; col++)
-                result[row][col] = m1.getValue(row, col) + m2.getValue(row, col);
-
-        return new Matrix(result);
+        return m1.add(m2);
     }
 
     /**
@@ -44,20 +34,7 @@ public class MatMath {
      * @return The result matrix or null if the dimensions don't agree
      */
     public static Matrix subtract(Matrix m1, Matrix m2) {
-
-        if (m1.getRows() != m2.getRows() || m1.getCols() != m2.getCols())
-            return null;
-
-        int rows = m1.getRows();
-        int cols = m1.getCols();
-
-        double[][] result = new double[rows][cols];
-
-        for (int row = 0; row < rows; row++)
-            for (int col = 0; col < cols; col++)
-                result[row][col] = m1.getValue(row, col) - m2.getValue(row, col);
-
-        return new Matrix(result);
+        return m1.subtract(m2);
     }
 
     /**
@@ -68,21 +45,39 @@ public class MatMath {
      * @return The result matrix or null if the dimensions don't agree
      */
     public static Matrix multiply(Matrix m1, Matrix m2) {
+        return m1.multiply(m2);
+    }
 
-        if (m1.getCols() != m2.getRows()) return null;
-
-        int rows1 = m1.getRows();
-        int cols1 = m1.getCols();
-        int cols2 = m2.getCols();
+    /**
+     * Multiply matrix 1 by matrix 2 using the given pool for big products
+     *
+     * @param m1 Matrix 1
+     * @param m2 Matrix 2
+     * @param pool The pool or null to multiply in the calling thread
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public static Matrix multiply(Matrix m1, Matrix m2, ForkJoinPool pool) {
+        return m1.multiply(m2, pool);
+    }
 
-        double result[][] = new double[rows1][cols2];
+    /**
+     * Multiply matrix 1 by matrix 2 with the given algorithm.
+     * The Strassen algorithm is only used for square matrices bigger than {@link Strassen#getCrossover()},
+     * the classic algorithm is used otherwise.
+     *
+     * @param m1 Matrix 1
+     * @param m2 Matrix 2
+     * @param algorithm ALGORITHM_CLASSIC or ALGORITHM_STRASSEN
+     * @param pool The pool or null to multiply in the calling thread
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public static Matrix multiply(Matrix m1, Matrix m2, int algorithm, ForkJoinPool pool) {
 
-        for (int row = 0; row < rows1; row++)
-            for (int col = 0; col < cols2; col++)
-                for (int cr = 0; cr < cols1; cr++)
-                    result[row][col] += m1.getValue(row, cr) * m2.getValue(cr, col);
+        if (algorithm == ALGORITHM_STRASSEN && !m1.isSparse() && !m2.isSparse() && m1.isSquare() && m2.isSquare()
+                && m1.getCols() == m2.getRows() && m1.getRows() > Strassen.getCrossover())
+            return Strassen.multiply(m1, m2, pool);
 
-        return new Matrix(result);
+        return m1.multiply(m2, pool);
     }
 
     /**
@@ -92,36 +87,12 @@ public class MatMath {
      * @return The result matrix or null if there was any error
      */
     public static Matrix inverse(Matrix m) {
-
-        if (!m.isSquare()) return null;
-
-        int n = m.getRows();
-
-        double result[][] = new double[n][n];
-
-        Matrix b = new Matrix(n, 1);
-        Matrix LU = LUDecompose(m);
-        Matrix aux;
-
-        for (int col = 0; col < n; col++) {
-
-            for (int k = 0; k < n; k++)
-                if (col == k)
-                    b.setValue(1, k, 0);
-                else
-                    b.setValue(0, k, 0);
-
-            aux = LUSubstitute(LU, b);
-
-            for (int k = 0; k < n; k++)
-                result[k][col] = aux.getValue(k, 0);
-        }
-
-        return new Matrix(result);
+        return m.inverse();
     }
 
     /**
-     * Decomposes the matrix in LU. Auxiliary method for inverse a matrix.
+     * Decomposes the matrix in LU without pivoting. See {@link LUFactorization} for the pivoted
+     * factorization used by the inverse.
      *
      * @param m Matrix
      * @return A matrix containing the L and U matrices or null if there were any errors
@@ -132,58 +103,21 @@ public class MatMath {
 
         int n = m.getRows();
 
-        double result[][] = m.getData().clone();
+        Matrix lu = new Matrix(m);
+        double result[] = lu.editBuffer();
         double factor;
 
         for (int col = 0; col < n - 1; col++)
             for (int row = col + 1; row < n; row++) {
 
-                factor = result[row][col] / result[col][col];
+                factor = result[row * n + col] / result[col * n + col];
                 // L storage
-                result[row][col] = factor;
+                result[row * n + col] = factor;
 
                 for (int k = col + 1; k < n; k++)
-                    result[row][k] -= result[col][k] * factor;
+                    result[row * n + k] -= result[col * n + k] * factor;
             }
 
-        return new Matrix(result);
-    }
-
-    /**
-     * Auxiliary method to calculate the inverse of a matrix
-     *
-     * @param a Matrix A
-     * @param b Matrix b
-     * @return The result matrix or null if there was any errors
-     */
-    private static Matrix LUSubstitute(Matrix a, Matrix b) {
-
-        if (!a.isSquare() || b.getCols() != 1 || a.getRows() != b.getRows()) return null;
-
-        int n = a.getRows();
-
-        double x[][] = new double[n][1];
-        double sum;
-
-        for (int row = 1; row < n; row++) {
-            sum = b.getValue(row, 0);
-
-            for (int col = 0; col < row; col++)
-                sum -= a.getValue(row, col) * b.getValue(col, 0);
-
-            b.setValue(sum, row, 0);
-        }
-
-        x[n - 1][0] = b.getValue(n - 1, 0) / a.getValue(n - 1, n - 1);
-        for (int row = n - 2; row >= 0; row--) {
-            sum = 0;
-
-            for (int col = row + 1; col < n; col++)
-                sum += a.getValue(row, col) * x[col][0];
-
-            x[row][0] = (b.getValue(row, 0) - sum) / a.getValue(row, row);
-        }
-
-        return new Matrix(x);
+        return lu;
     }
-}
\ No newline at end of file
+}
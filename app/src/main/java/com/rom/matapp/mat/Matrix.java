@@ -1,21 +1,51 @@
 package com.rom.matapp.mat;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * This class represents a numeric matrix
+ * This class represents a numeric matrix.
+ * The values are stored row by row in a single contiguous buffer. The element (row, col)
+ * is found at offset + row * stride + col, so a matrix can also be a view over a
+ * region of a bigger buffer.
+ *
+ * Copies and snapshots share the buffer of the matrix until one of them is written, so
+ * they cost nothing. The buffer is copied, with its views, by the first write to a shared one.
  */
-public class Matrix {
+public class Matrix implements LinearOperator {
 
     // Matrix ID
     private int mId;
 
     // Matrix name
-    private String mName;
+    private volatile String mName;
+
+    // Index of the registry which holds the matrix, told when the name changes
+    private volatile NameListener mNameListener;
 
     // Matrix dimensions
     private int mRows;
     private int mCols;
 
-    private double mValues[][];
+    // Row-major storage, shared with the views. It's replaced after the dimensions, so a thread
+    // which reads the new buffer also reads the new dimensions
+    private volatile Buffer mBuffer;
+    private int mOffset;
+    private int mStride;
+
+    // Stamp of the current values and dimensions. 0 if they changed since the last stamp
+    private long mVersion;
+
+    // Last stamp given to any matrix
+    private static final AtomicLong sVersions = new AtomicLong();
+
+    /**
+     * Receives the changes of the name of a matrix, so it can be found by name in O(1)
+     */
+    interface NameListener {
+        void onNameChanged(Matrix m);
+    }
 
     /**
      * Creates a new matrix with the given dimensions
@@ -24,29 +54,96 @@ public class Matrix {
      * @param c Cols
      */
     public Matrix(int r, int c) {
-        this(new double[r][c]);
+        this(new double[r * c], 0, c, r, c);
     }
 
     /**
-     * Creates a new matrix with the given values
+     * Creates a new matrix with the given values. The values are copied.
      *
      * @param data Values
      */
     public Matrix(double data[][]) {
+        this(data.length, data[0].length);
 
-        mRows = data.length;
-        mCols = data[0].length;
+        for(int row = 0; row < mRows; row++)
+            System.arraycopy(data[row], 0, mBuffer.mData, row * mStride, mCols);
+    }
+
+    /**
+     * Creates a new matrix backed by the given row-major buffer. The buffer is not copied.
+     *
+     * @param data Values
+     * @param r Rows
+     * @param c Cols
+     */
+    public Matrix(double data[], int r, int c) {
+        this(data, 0, c, r, c);
+    }
 
-        mValues = data;
+    /**
+     * Creates a new matrix backed by a region of the given row-major buffer.
+     * The buffer is not copied.
+     *
+     * @param data Buffer
+     * @param offset Index of the element (0, 0)
+     * @param stride Distance between two consecutive rows
+     * @param r Rows
+     * @param c Cols
+     */
+    public Matrix(double data[], int offset, int stride, int r, int c) {
+        this(new Buffer(data), offset, stride, r, c);
     }
 
+    private Matrix(Buffer buffer, int offset, int stride, int r, int c) {
+        mOffset = offset;
+        mStride = stride;
+        mRows = r;
+        mCols = c;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Creates a dense copy of the given matrix with its rows stored one after another.
+     * The copy of such a dense matrix shares its values until one of them is written,
+     * the values of a view or a sparse matrix are copied.
+     *
+     * @param m Matrix
+     */
     public Matrix(Matrix m) {
-        mRows = m.mRows;
-        mCols = m.mCols;
+        this(isPacked(m) ? Buffer.share(m.mBuffer.share()) : new Buffer(new double[m.mRows * m.mCols]),
+                0, m.mCols, m.mRows, m.mCols);
 
-        mValues = new double[mRows][mCols];
+        if(!isPacked(m))
+            copyValues(m, this);
+    }
+
+    // Whether the rows of the matrix are stored one after another from the start of the buffer
+    private static boolean isPacked(Matrix m) {
+        return !m.isSparse() && m.mOffset == 0 && m.mStride == m.mCols;
+    }
+
+    /**
+     * Returns a copy of this matrix with the same representation. The copy shares the
+     * values until this or the copy is written.
+     *
+     * @return The copy
+     */
+    public Matrix copy() {
+        return new Matrix(this);
+    }
+
+    /**
+     * Creates a matrix over a buffer which its owner doesn't write anymore. The matrix
+     * copies the buffer before writing it, so the owner can keep reading it.
+     *
+     * @param data Values
+     * @param r Rows
+     * @param c Cols
+     * @return The matrix
+     */
+    static Matrix shared(double data[], int r, int c) {
 
-        copyValues(m.getData(), mValues);
+        return new Matrix(Buffer.share(data), 0, c, r, c);
     }
 
     public void setId(int id) {
@@ -59,12 +156,24 @@ public class Matrix {
 
     public void setName(String name) {
         mName = name;
+
+        NameListener listener = mNameListener;
+        if(listener != null)
+            listener.onNameChanged(this);
     }
 
     public String getName() {
         return mName;
     }
 
+    void setNameListener(NameListener listener) {
+        mNameListener = listener;
+    }
+
+    NameListener getNameListener() {
+        return mNameListener;
+    }
+
     public int getRows() {
         return mRows;
     }
@@ -74,37 +183,194 @@ public class Matrix {
     }
 
     public double getValue(int row, int col) {
-        return mValues[row][col];
+        return mBuffer.mData[mOffset + row * mStride + col];
+    }
+
+    public synchronized void setValue(double value, int row, int col) {
+        mBuffer.set(mOffset + row * mStride + col, value);
+        mVersion = 0;
+    }
+
+    /**
+     * Gets the version of the matrix. It changes every time a value or the dimensions change
+     * through the methods of the matrix, so a result can know if it was computed from the current values.
+     * Versions are never repeated, not even by different matrices.
+     *
+     * @return The version
+     */
+    public synchronized long getVersion() {
+
+        // The stamp is taken when it's asked, so setting many values costs nothing
+        if(mVersion == 0)
+            mVersion = sVersions.incrementAndGet();
+
+        return mVersion;
+    }
+
+    /**
+     * Takes a copy of the matrix with its current values and version. The changes made to the
+     * matrix by other threads are made before or after the copy, never during it.
+     * Like {@link #copy()}, it shares the values until the matrix is written.
+     *
+     * @return The copy, which must not be modified
+     */
+    public synchronized Matrix snapshot() {
+
+        Matrix s = copy();
+        s.mVersion = getVersion();
+
+        return s;
     }
 
-    public void setValue(double value, int row, int col) {
-        mValues[row][col] = value;
+    /**
+     * Changes the version of the matrix. Must be called after writing the buffer
+     * returned by {@link #editBuffer()}.
+     */
+    public synchronized void markModified() {
+        mVersion = 0;
     }
 
-    public double[][] getData() {
-        return mValues;
+    /**
+     * Checks if the matrix only stores its non zero values. See {@link SparseMatrix}
+     *
+     * @return True if the matrix is sparse
+     */
+    public boolean isSparse() {
+        return false;
+    }
+
+    /**
+     * Returns this matrix with dense storage
+     *
+     * @return This or a dense copy if this matrix is sparse
+     */
+    public Matrix toDense() {
+        return this;
+    }
+
+    /**
+     * Returns the buffer backing this matrix to read it, or null if the matrix is sparse.
+     * It must not be written, see {@link #editBuffer()}
+     */
+    public double[] getBuffer() {
+        return mBuffer.mData;
+    }
+
+    /**
+     * Returns the buffer backing this matrix to write it, or null if the matrix is sparse.
+     * If the buffer is shared with a copy it's copied first, so the buffer read before
+     * calling this may not be the one of the matrix anymore.
+     */
+    public double[] editBuffer() {
+        return mBuffer.edit();
+    }
+
+    /**
+     * Returns the index of the element (0, 0) in the buffer
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Returns the distance between two consecutive rows in the buffer
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    /**
+     * Returns a copy of the values as an array of rows
+     *
+     * @return The values
+     */
+    public double[][] toArray() {
+
+        double data[][] = new double[mRows][mCols];
+
+        for(int row = 0; row < mRows; row++)
+            System.arraycopy(mBuffer.mData, mOffset + row * mStride, data[row], 0, mCols);
+
+        return data;
+    }
+
+    /**
+     * Returns a matrix sharing the values of the given region of this matrix
+     *
+     * @param row First row
+     * @param col First col
+     * @param r Rows
+     * @param c Cols
+     * @return The view
+     */
+    public Matrix view(int row, int col, int r, int c) {
+        return new Matrix(mBuffer, mOffset + row * mStride + col, mStride, r, c);
     }
 
     public boolean isSquare() {
         return mRows == mCols;
     }
 
+    /**
+     * Checks if the matrix is equal to its transpose. Stops at the first different pair.
+     *
+     * @return True if the matrix is symmetric
+     */
+    public boolean isSymmetric() {
+
+        if(!isSquare())
+            return false;
+
+        for(int row = 1; row < mRows; row++)
+            for(int col = 0; col < row; col++)
+                if(getValue(row, col) != getValue(col, row))
+                    return false;
+
+        return true;
+    }
+
     /**
      * Change the matrix dimensions
      *
      * @param newRows New rows
      * @param newCols New cols
      */
-    public void changeDimensions(int newRows, int newCols) {
+    public synchronized void changeDimensions(int newRows, int newCols) {
 
-        double newValues[][] = new double[newRows][newCols];
+        Matrix m = new Matrix(newRows, newCols);
 
-        copyValues(mValues, newValues);
+        copyValues(this, m);
 
-        mValues = newValues;
+        mOffset = 0;
+        mStride = newCols;
         mRows = newRows;
         mCols = newCols;
+        mVersion = 0;
+        mBuffer = m.mBuffer;
+
+    }
 
+    // Changes the dimensions without touching the values
+    synchronized void setShape(int rows, int cols) {
+        mRows = rows;
+        mCols = cols;
+        mVersion = 0;
+    }
+
+    /**
+     * Replaces the dimensions and the values with the ones of the given matrix.
+     * The views of this matrix keep the old values.
+     *
+     * @param m Matrix
+     */
+    synchronized void assign(Matrix m) {
+
+        Matrix d = m.isSparse() ? m.toDense() : m.copy();
+
+        mOffset = d.mOffset;
+        mStride = d.mStride;
+        setShape(d.mRows, d.mCols);
+        mBuffer = d.mBuffer;
     }
 
     /**
@@ -118,16 +384,59 @@ public class Matrix {
         if (mRows != m.getRows() || mCols != m.getCols())
             return null;
 
+        if (m.isSparse())
+            return m.add(this);
+
+        return addInto(m, new Matrix(mRows, mCols));
+    }
+
+    /**
+     * Adds the given matrix to this and stores the result in dest.
+     * Dest can be this or the given matrix.
+     *
+     * @param m
+     * @param dest Destination matrix
+     * @return Dest or null if the dimensions don't match
+     */
+    public Matrix addInto(final Matrix m, Matrix dest) {
+
+        if (mRows != m.getRows() || mCols != m.getCols() || mRows != dest.mRows || mCols != dest.mCols)
+            return null;
+
+        checkDense(dest);
+
+        if (m.isSparse())
+            return m.addInto(this, dest);
+
         int rows = mRows;
         int cols = mCols;
 
-        double result[][] = new double[rows][cols];
+        double result[] = dest.editBuffer();
+        double a[] = mBuffer.mData;
+        double b[] = m.mBuffer.mData;
+
+        for (int row = 0; row < rows; row++) {
+            int ai = mOffset + row * mStride;
+            int bi = m.mOffset + row * m.mStride;
+            int ri = dest.mOffset + row * dest.mStride;
 
-        for (int row = 0; row < rows; row++)
             for (int col = 0; col < cols; col++)
-                result[row][col] = getValue(row, col) + m.getValue(row, col);
+                result[ri + col] = a[ai + col] + b[bi + col];
+        }
+
+        dest.mVersion = 0;
 
-        return new Matrix(result);
+        return dest;
+    }
+
+    /**
+     * Adds the given matrix to this (this += m)
+     *
+     * @param m
+     * @return This or null if the dimensions don't match
+     */
+    public Matrix addInPlace(final Matrix m) {
+        return addInto(m, this);
     }
 
     /**
@@ -153,318 +462,383 @@ public class Matrix {
         if (mRows != m.getRows() || mCols != m.getCols())
             return null;
 
-        int rows = mRows;
-        int cols = mCols;
-
-        double result[][] = new double[rows][cols];
-
-        for (int row = 0; row < rows; row++)
-            for (int col = 0; col < cols; col++)
-                if(inverted)
-                    result[row][col] = m.getValue(row, col) - getValue(row, col);
-                else
-                    result[row][col] = getValue(row, col) - m.getValue(row, col);
+        if (m.isSparse())
+            return m.subtract(this, !inverted);
 
-        return new Matrix(result);
+        return subtractInto(m, inverted, new Matrix(mRows, mCols));
     }
 
     /**
-     * Multiply the given matrix with this
+     * Subtract the given matrix from this and stores the result in dest.
+     * Dest can be this or the given matrix.
      *
-     * @param m Matrix
-     * @return The result matrix or null if the dimensions don't agree
+     * @param m
+     * @param dest Destination matrix
+     * @return Dest or null if the dimensions don't match
      */
-    public Matrix multiply(final Matrix m) {
-
-        if (getCols() != m.getRows()) return null;
-
-        int rows1 = getRows();
-        int cols1 = getCols();
-        int cols2 = m.getCols();
-
-        double result[][] = new double[rows1][cols2];
-
-        for (int k = 0; k < rows1; k++)
-            for (int i = 0; i < cols2; i++)
-                for (int j = 0; j < cols1; j++)
-                    result[k][i] += getValue(k, j) * m.getValue(j, i);
-
-        return new Matrix(result);
+    public Matrix subtractInto(final Matrix m, Matrix dest) {
+        return subtractInto(m, false, dest);
     }
 
+    /**
+     * Subtract the given matrix from this if inverted is false or
+     * subtract this from the given matrix if inverted is true, and stores the result in dest.
+     * Dest can be this or the given matrix.
+     *
+     * @param m
+     * @param inverted Indicates if subtracts the given matrix from this or this from the matrix
+     * @param dest Destination matrix
+     * @return Dest or null if the dimensions don't match
+     */
+    public Matrix subtractInto(final Matrix m, boolean inverted, Matrix dest) {
 
-    public Matrix solveSystem(Matrix mb) {
-
-        // Checks dimensions
-        if(!isSquare() || mCols != mb.mRows)
+        if (mRows != m.getRows() || mCols != m.getCols() || mRows != dest.mRows || mCols != dest.mCols)
             return null;
 
-        int n = mCols;
-
-        Matrix a = new Matrix(this);
-        Matrix b = new Matrix(mb);
+        checkDense(dest);
 
-        Matrix x = new Matrix(n, 1);
+        if (m.isSparse())
+            return m.subtractInto(this, !inverted, dest);
 
-        /* Gauss method */
+        int rows = mRows;
+        int cols = mCols;
 
-        // Gets the highest values of each row
-        Matrix s = new Matrix(n, 1);
+        // The minuend and the subtrahend
+        Matrix p = inverted ? m : this;
+        Matrix q = inverted ? this : m;
 
-        for(int i = 0; i < n; i++) {
-            s.setValue(Math.abs(a.getValue(i, 0)), i, 0);
-            for(int j = 1; j < n; j++)
-                if(Math.abs(a.getValue(i, j)) > s.getValue(i, 0))
-                    s.setValue(Math.abs(a.getValue(i, j)), i, 0);
-        }
+        double result[] = dest.editBuffer();
+        double a[] = p.mBuffer.mData;
+        double b[] = q.mBuffer.mData;
 
-        double error = 0.01;
+        for (int row = 0; row < rows; row++) {
+            int ai = p.mOffset + row * p.mStride;
+            int bi = q.mOffset + row * q.mStride;
+            int ri = dest.mOffset + row * dest.mStride;
 
-        // Eliminate
-        if(!eliminate(a, b, s, error))
-            return null;
+            for (int col = 0; col < cols; col++)
+                result[ri + col] = a[ai + col] - b[bi + col];
+        }
 
-        // Substitute
-        substitute(a, b, x);
+        dest.mVersion = 0;
 
-        return x;
+        return dest;
     }
 
-    private boolean eliminate(Matrix a, Matrix b, Matrix s, double error) {
-
-        int n = a.getRows();
-
-        int k;
-        for(k = 0; k < n - 1; k ++) {
-
-            pivot(a, b, s, k);
-            if(Math.abs(a.getValue(k, k) / s.getValue(k, 0)) < error)
-                return false;
+    /**
+     * Subtract the given matrix from this (this -= m)
+     *
+     * @param m
+     * @return This or null if the dimensions don't match
+     */
+    public Matrix subtractInPlace(final Matrix m) {
+        return subtractInto(m, false, this);
+    }
 
-            double factor = 0;
-            for(int i = k + 1; i < n; i++) {
+    /**
+     * Multiply the given matrix with this
+     *
+     * @param m Matrix
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public Matrix multiply(final Matrix m) {
+        return multiply(m, null);
+    }
 
-                factor = a.getValue(i, k) / a.getValue(k, k);
-                for(int j = k + 1; j < n; j++)
-                    a.setValue(a.getValue(i, j) - factor * a.getValue(k, j), i, j);
+    /**
+     * Multiply the given matrix with this using the given pool for big products
+     *
+     * @param m Matrix
+     * @param pool The pool or null to multiply in the calling thread
+     * @return The result matrix or null if the dimensions don't agree
+     */
+    public Matrix multiply(final Matrix m, ForkJoinPool pool) {
 
-                b.setValue(b.getValue(i, 0) - factor * b.getValue(k, 0), i, 0);
-            }
+        if (m.isSparse()) {
+            if (mCols != m.mRows) return null;
 
+            return SparseMatrix.multiplyInto(this, (SparseMatrix) m, new Matrix(mRows, m.mCols));
         }
 
-        if(Math.abs(a.getValue(k, k) / s.getValue(k, 0)) < error)
-            return false;
-
-        return true;
-
+        return Gemm.multiply(this, m, pool);
     }
 
-    private void pivot(Matrix a, Matrix b, Matrix s, int k) {
-
-        int n = a.getRows();
+    /**
+     * Multiply the given matrix with this and stores the result in dest.
+     *
+     * @param m Matrix
+     * @param dest Destination matrix. It can't be this or the given matrix
+     * @return Dest or null if the dimensions don't agree
+     */
+    public Matrix multiplyInto(final Matrix m, Matrix dest) {
+        return multiplyInto(m, dest, null);
+    }
 
-        int p = k;
-        double big = Math.abs(a.getValue(k, k) / s.getValue(k, 0));
+    /**
+     * Multiply the given matrix with this using the given pool for big products
+     * and stores the result in dest.
+     *
+     * @param m Matrix
+     * @param dest Destination matrix. It can't be this or the given matrix
+     * @param pool The pool or null to multiply in the calling thread
+     * @return Dest or null if the dimensions don't agree
+     */
+    public Matrix multiplyInto(final Matrix m, Matrix dest, ForkJoinPool pool) {
 
-        double aux = 0;
-        for(int i = k + 1; i < n; i++) {
-            aux = Math.abs(a.getValue(i, k) / s.getValue(i, 0));
-            if(aux > big) {
-                big = aux;
-                p = i;
-            }
-        }
+        if (mCols != m.mRows || dest.mRows != mRows || dest.mCols != m.mCols)
+            return null;
 
-        if(p != k) {
+        checkDense(dest);
 
-            for(int i = k; i < n; i++) {
-                aux = a.getValue(p, i);
-                a.setValue(a.getValue(k, i), p, i);
-                a.setValue(aux, k, i);
-            }
+        // A copy of an operand stops sharing its values here
+        double d[] = dest.editBuffer();
 
-            aux = b.getValue(p, 0);
-            b.setValue(b.getValue(k, 0), p, 0);
-            b.setValue(aux, k, 0);
+        if (d == mBuffer.mData || d == m.mBuffer.mData)
+            throw new IllegalArgumentException("The destination can't share values with the operands");
 
-            aux = s.getValue(p, 0);
-            s.setValue(s.getValue(k, 0), p, 0);
-            s.setValue(aux, k, 0);
+        if (m.isSparse())
+            return SparseMatrix.multiplyInto(this, (SparseMatrix) m, dest);
 
-        }
+        dest.fill(0);
+        Gemm.multiplyAdd(this, m, dest, pool);
 
+        return dest;
     }
 
-    private void substitute(Matrix a, Matrix b, Matrix x) {
-
-        int n = a.getRows();
-
-        x.setValue(b.getValue(n - 1, 0) / a.getValue(n - 1, n - 1), n - 1, 0);
-
-        double sum;
-        for(int i = n - 2; i >= 0; i--) {
-
-            sum = 0.0;
+    /**
+     * Returns the transpose of this matrix
+     *
+     * @return The transpose
+     */
+    public Matrix transpose() {
 
-            for(int j = i + 1; j < n; j++)
-                sum = sum + a.getValue(i, j) * x.getValue(j, 0);
+        Matrix t = new Matrix(mCols, mRows);
 
-            x.setValue((b.getValue(i, 0) - sum) / a.getValue(i, i), i, 0);
+        for (int row = 0; row < mRows; row++) {
+            int i = mOffset + row * mStride;
 
+            for (int col = 0; col < mCols; col++)
+                t.mBuffer.mData[col * mRows + row] = mBuffer.mData[i + col];
         }
 
+        return t;
     }
 
     /**
-     * Inverses the matrix. Inverses the matrix by the LU decomposition approach
+     * Computes y = this * x
      *
-     * @return The result matrix or null if there was any error
+     * @param x Vector of cols values
+     * @param y Destination vector of rows values. It must not be x
      */
-    public Matrix inverse() {
-
-        if (!isSquare()) return null;
-
-        int n = getRows();
-
-        Matrix a = new Matrix(this);
-        Matrix b = new Matrix(n, 1);
-        Matrix o = new Matrix(n, 1);
-        Matrix s = new Matrix(n, 1);
-        Matrix r = new Matrix(n, n);
-
-        double error = 0.01;
-
-        if(LUDecompose(a, o, s, error)) {
-            Matrix x;
-
-            for (int col = 0; col < n; col++) {
-
-                for (int k = 0; k < n; k++)
-                    if (col == k)
-                        b.setValue(1, k, 0);
-                    else
-                        b.setValue(0, k, 0);
+    @Override
+    public void apply(double x[], double y[]) {
+        for (int row = 0; row < mRows; row++) {
+            int i = mOffset + row * mStride;
 
-                x = LUSubstitute(a, b, o);
+            double sum = 0;
+            for (int col = 0; col < mCols; col++)
+                sum += mBuffer.mData[i + col] * x[col];
 
-                for (int k = 0; k < n; k++)
-                    r.setValue(x.getValue(k, 0), k, col);
-            }
+            y[row] = sum;
         }
-        else
-            return null;
-
-        return r;
     }
 
     /**
-     * Decomposes the matrix in LU.
+     * Sets every value of the matrix
      *
-     * @return A matrix containing the L and U matrices or null if there were any errors
+     * @param value Value
      */
-    public boolean LUDecompose(Matrix a, Matrix o, Matrix s, double error) {
+    public synchronized void fill(double value) {
 
-        int n = getRows();
+        double d[] = mBuffer.edit();
 
-        for(int i = 0; i < n; i++) {
+        for (int row = 0; row < mRows; row++) {
+            int i = mOffset + row * mStride;
+            Arrays.fill(d, i, i + mCols, value);
+        }
 
-            o.setValue(i, i, 0);
-            s.setValue(Math.abs(a.getValue(i, 0)), i, 0);
+        mVersion = 0;
+    }
 
-            for(int j = 1; j < n; j++)
-                if(Math.abs(a.getValue(i, j)) > s.getValue(i, 0))
-                    s.setValue(Math.abs(a.getValue(i, j)), i, 0);
 
-        }
+    /**
+     * Solves the system this * x = b for each column of b.
+     * Banded systems are solved by {@link BandedMatrix}, any other by {@link #factorize(ForkJoinPool)}.
+     * Over-determined systems are solved in the least squares sense, see {@link #leastSquares(Matrix)}
+     *
+     * @param mb Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    public Matrix solveSystem(Matrix mb) {
+        return solveSystem(mb, null);
+    }
 
-        double factor;
+    /**
+     * Solves the system this * x = b for each column of b, using the given pool for big systems.
+     *
+     * @param mb Matrix b
+     * @param pool The pool or null to solve in the calling thread
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    public Matrix solveSystem(Matrix mb, ForkJoinPool pool) {
 
-        int k;
-        for (k = 0; k < n - 1; k++) {
+        // Checks dimensions
+        if(mRows < mCols || mRows != mb.mRows)
+            return null;
 
-            pivot2(a, o, s, k);
+        if(mRows > mCols)
+            return leastSquares(mb, pool);
 
-            if(Math.abs(a.getValue((int)o.getValue(k, 0), k) / s.getValue((int)o.getValue(k, 0), 0)) < error)
-                return false;
+        BandedMatrix band = BandedMatrix.detect(this);
+        if(band != null)
+            return band.solve(mb);
 
-            for (int i = k + 1; i < n; i++) {
+        return factorize(pool).solveInto(mb, new Matrix(mRows, mb.mCols), pool);
+    }
 
+    /**
+     * Computes the x which minimizes ||this * x - b|| for each column of b with the QR factorization
+     *
+     * @param mb Matrix b
+     * @return The solution or null if the dimensions don't agree, the matrix has less rows
+     * than cols or its columns are linearly dependent
+     */
+    public Matrix leastSquares(Matrix mb) {
+        return leastSquares(mb, null);
+    }
 
-                factor = a.getValue((int)o.getValue(i, 0), k) / a.getValue((int)o.getValue(k, 0), k);
+    /**
+     * Computes the x which minimizes ||this * x - b|| for each column of b with the QR factorization,
+     * using the given pool for big matrices
+     *
+     * @param mb Matrix b
+     * @param pool The pool or null to solve in the calling thread
+     * @return The solution or null if the dimensions don't agree, the matrix has less rows
+     * than cols or its columns are linearly dependent
+     */
+    public Matrix leastSquares(Matrix mb, ForkJoinPool pool) {
 
-                a.setValue(factor, (int) o.getValue(i, 0), k);
+        if(mRows < mCols || mRows != mb.mRows)
+            return null;
 
-                // U Storage
-                for (int j = k + 1; j < n; j++)
-                    a.setValue(a.getValue((int)o.getValue(i, 0), j) - factor * a.getValue((int)o.getValue(k, 0), j), (int)o.getValue(i, 0), j);
-            }
+        return qr(pool).solveInto(mb, new Matrix(mCols, mb.mCols), pool);
+    }
 
-        }
+    /**
+     * Inverses the matrix. Inverses the matrix by the Cholesky or LU decomposition approach
+     *
+     * @return The result matrix or null if there was any error
+     */
+    public Matrix inverse() {
+        return inverse(null);
+    }
 
-        if(Math.abs(a.getValue((int)o.getValue(k, 0), k) / s.getValue((int)o.getValue(k, 0), 0)) < error)
-            return false;
+    /**
+     * Inverses the matrix using the given pool for big matrices
+     *
+     * @param pool The pool or null to inverse in the calling thread
+     * @return The result matrix or null if there was any error
+     */
+    public Matrix inverse(ForkJoinPool pool) {
 
-        return true;
+        if (!isSquare()) return null;
 
+        return factorize(pool).inverseInto(new Matrix(mRows, mCols), pool);
     }
 
-    private void pivot2(Matrix a, Matrix o, Matrix s, int k) {
+    /**
+     * Decomposes the matrix with the cheapest factorization that works: Cholesky if the matrix
+     * looks positive definite (symmetric with a positive diagonal) and it succeeds, LU otherwise.
+     *
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square
+     */
+    public Factorization factorize(ForkJoinPool pool) {
 
-        int n = a.getRows();
+        if(!isSquare())
+            return null;
 
-        int p = k;
-        double big = Math.abs(a.getValue((int)o.getValue(k, 0), k) / s.getValue((int)o.getValue(k, 0), 0));
+        if(hasPositiveDiagonal() && isSymmetric()) {
+            CholeskyFactorization cholesky = cholesky(pool);
 
-        double aux = 0;
-        for(int i = k + 1; i < n; i++) {
-            aux = Math.abs(a.getValue((int)o.getValue(i, 0), k) / s.getValue((int)o.getValue(i, 0), 0));
-            if(aux > big) {
-                big = aux;
-                p = i;
-            }
+            if(cholesky != null)
+                return cholesky;
         }
 
-        aux = o.getValue(p, 0);
-        o.setValue(o.getValue(k, 0), p, 0);
-        o.setValue(aux, k, 0);
+        return lu(pool);
+    }
 
+    /**
+     * Decomposes the matrix in L L^T. Only the lower triangle is read.
+     *
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square or not positive definite
+     */
+    public CholeskyFactorization cholesky(ForkJoinPool pool) {
+        return CholeskyFactorization.decompose(this, pool);
     }
 
     /**
-     * Auxiliary method to calculate the inverse of a matrix
+     * Decomposes the matrix in Q R
      *
-     * @param a Matrix A
-     * @param b Matrix b
-     * @return The result matrix or null if there was any errors
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix has less rows than cols
      */
-    private Matrix LUSubstitute(Matrix a, Matrix b, Matrix o) {
+    public QRFactorization qr(ForkJoinPool pool) {
+        return QRFactorization.decompose(this, pool);
+    }
 
-        int n = a.getRows();
+    private boolean hasPositiveDiagonal() {
 
-        double sum;
-        double x[][] = new double[n][1];
+        for(int i = 0; i < Math.min(mRows, mCols); i++)
+            if(!(getValue(i, i) > 0))
+                return false;
 
-        for (int i = 1; i < n; i++) {
-            sum = b.getValue((int)o.getValue(i, 0), 0);
+        return true;
+    }
 
-            for (int j = 0; j < i; j++)
-                sum -= a.getValue((int)o.getValue(i, 0), j) * b.getValue((int)o.getValue(j, 0), 0);
+    /**
+     * Decomposes the matrix in LU.
+     *
+     * @return The factorization or null if the matrix is not square
+     */
+    public LUFactorization lu() {
+        return LUFactorization.decompose(this);
+    }
 
-            b.setValue(sum, (int)o.getValue(i, 0), 0);
-        }
+    /**
+     * Decomposes the matrix in LU using the given pool for big matrices
+     *
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix is not square
+     */
+    public LUFactorization lu(ForkJoinPool pool) {
+        return LUFactorization.decompose(this, pool);
+    }
 
-        x[n - 1][0] = b.getValue((int)o.getValue(n-1, 0), 0) / a.getValue((int)o.getValue(n-1, 0), n - 1);
-        for (int i = n - 2; i >= 0; i--) {
-            sum = 0;
+    /**
+     * Inverses the matrix and stores the result in dest
+     *
+     * @param dest Destination matrix. It can be this
+     * @return Dest or null if the matrix is not square or is singular
+     */
+    public Matrix inverseInto(Matrix dest) {
+        return inverseInto(dest, null);
+    }
 
-            for (int j = i + 1; j < n; j++)
-                sum += a.getValue((int)o.getValue(i, 0), j) * x[j][0];
+    /**
+     * Inverses the matrix and stores the result in dest, with the same factorization as
+     * {@link #inverse(ForkJoinPool)}. The factorization copies the matrix, so dest can be this.
+     *
+     * @param dest Destination matrix. It can be this
+     * @param pool The pool or null to inverse in the calling thread
+     * @return Dest or null if the matrix is not square or is singular
+     */
+    public Matrix inverseInto(Matrix dest, ForkJoinPool pool) {
 
-            x[i][0] = (b.getValue((int)o.getValue(i, 0), 0) - sum) / a.getValue((int)o.getValue(i, 0), i);
-        }
+        if (!isSquare() || dest.mRows != mRows || dest.mCols != mCols) return null;
 
-        return new Matrix(x);
+        return factorize(pool).inverseInto(dest, pool);
     }
 
     /**
@@ -474,34 +848,92 @@ public class Matrix {
      * @param src Source
      * @param dest Destiny
      */
-    private void copyValues(double src[][], double dest[][]) {
+    static void copyValues(Matrix src, Matrix dest) {
+
+        if(src.isSparse()) {
+            ((SparseMatrix) src).copyInto(dest);
+            return;
+        }
 
-        int oldR = src.length;
-        int oldC = src[0].length;
+        int rows = Math.min(src.mRows, dest.mRows);
+        int cols = Math.min(src.mCols, dest.mCols);
 
-        int newR = dest.length;
-        int newC = dest[0].length;
+        double d[] = dest.editBuffer();
 
-        for(int row = 0; row < newR && row < oldR; row++)
-            for(int col = 0; col < newC && col < oldC; col++)
-                dest[row][col] = src[row][col];
+        for(int row = 0; row < rows; row++)
+            System.arraycopy(src.mBuffer.mData, src.mOffset + row * src.mStride,
+                    d, dest.mOffset + row * dest.mStride, cols);
+
+        dest.markModified();
+    }
 
+    // Checks the given matrix can be used as the destination of an operation
+    static void checkDense(Matrix dest) {
+        if(dest.isSparse())
+            throw new IllegalArgumentException("The destination must be a dense matrix");
     }
 
     @Override
     public String toString() {
 
-        String str = "";
+        StringBuilder str = new StringBuilder();
 
         for(int row = 0; row < mRows; row++) {
             for (int col = 0; col < mCols; col++)
-                str += mValues[row][col] + " ";
+                str.append(getValue(row, col)).append(" ");
 
-            str += "\n";
+            str.append("\n");
         }
 
-        str += "\n";
+        str.append("\n");
 
-        return str;
+        return str.toString();
+    }
+
+    /**
+     * Values of a matrix and its views. When a copy is taken the array is marked as shared,
+     * and the first write to it copies it, so the copy keeps the old values.
+     */
+    private static final class Buffer {
+
+        // Replaced by the first write after a copy, which other threads must see
+        private volatile double mData[];
+
+        // True if a copy may be reading the array
+        private boolean mShared;
+
+        Buffer(double data[]) {
+            mData = data;
+        }
+
+        // Creates the buffer of a copy of the given array
+        static Buffer share(double data[]) {
+
+            Buffer buffer = new Buffer(data);
+            buffer.mShared = true;
+
+            return buffer;
+        }
+
+        // Gets the array to read it from a copy
+        synchronized double[] share() {
+            mShared = true;
+            return mData;
+        }
+
+        // Gets the array to write it
+        synchronized double[] edit() {
+
+            if(mShared) {
+                mData = mData.clone();
+                mShared = false;
+            }
+
+            return mData;
+        }
+
+        synchronized void set(int i, double value) {
+            edit()[i] = value;
+        }
     }
 }
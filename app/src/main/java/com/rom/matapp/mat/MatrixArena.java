@@ -0,0 +1,97 @@
+package com.rom.matapp.mat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Pool of scratch matrices used while an expression is evaluated.
+ * The matrices are handed out by shape and are reused once they are released,
+ * so a long expression only needs as many temporaries as are alive at the same time.
+ * Instructions computed at the same time share the arena, so its methods are synchronized.
+ */
+public class MatrixArena {
+
+    // Released matrices by shape
+    private Map<Long, Deque<Matrix>> mFree;
+
+    // Matrices handed out and not released yet
+    private Map<Matrix, Boolean> mUsed;
+
+    public MatrixArena() {
+        mFree = new HashMap<Long, Deque<Matrix>>();
+        mUsed = new IdentityHashMap<Matrix, Boolean>();
+    }
+
+    /**
+     * Gets a scratch matrix with the given dimensions. Its values are undefined.
+     *
+     * @param rows Rows
+     * @param cols Cols
+     * @return The matrix
+     */
+    public synchronized Matrix acquire(int rows, int cols) {
+
+        Deque<Matrix> free = mFree.get(shape(rows, cols));
+
+        Matrix m = free != null && !free.isEmpty() ? free.pop() : new Matrix(rows, cols);
+
+        mUsed.put(m, Boolean.TRUE);
+
+        return m;
+    }
+
+    /**
+     * Gives back a matrix to the arena. Matrices not handed out by the arena are ignored.
+     *
+     * @param m Matrix
+     */
+    public synchronized void release(Matrix m) {
+
+        if(mUsed.remove(m) == null)
+            return;
+
+        Long shape = shape(m.getRows(), m.getCols());
+        Deque<Matrix> free = mFree.get(shape);
+
+        if(free == null) {
+            free = new ArrayDeque<Matrix>();
+            mFree.put(shape, free);
+        }
+
+        free.push(m);
+    }
+
+    /**
+     * Checks if the given matrix was handed out by the arena and it's not released
+     *
+     * @param m Matrix
+     * @return True if the matrix belongs to the arena
+     */
+    public synchronized boolean owns(Matrix m) {
+        return mUsed.containsKey(m);
+    }
+
+    /**
+     * Removes a matrix from the arena so it's never handed out again
+     *
+     * @param m Matrix
+     */
+    public synchronized void detach(Matrix m) {
+        mUsed.remove(m);
+    }
+
+    /**
+     * Drops every matrix of the arena
+     */
+    public synchronized void clear() {
+        mFree.clear();
+        mUsed.clear();
+    }
+
+    private static Long shape(int rows, int cols) {
+        return ((long) rows << 32) | cols;
+    }
+}
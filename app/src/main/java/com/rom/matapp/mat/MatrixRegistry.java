@@ -0,0 +1,279 @@
+package com.rom.matapp.mat;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Matrices by their id. The ids are kept in an open addressing table with linear probing,
+ * without boxing, which points to a dense array of the matrices. Lookups, insertions and
+ * removals are O(1) and iterating visits only the matrices.
+ *
+ * A removed matrix is replaced by the last one of the dense array, so the order of the
+ * iteration changes when a matrix is removed.
+ *
+ * The matrices can also be found by name in O(1). The index of the names is told by the
+ * matrices when they are renamed, so a matrix must not be in two registries at once.
+ */
+public class MatrixRegistry implements Iterable<Matrix> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Hash table: id and position in the dense array of each slot. -1 if the slot is empty
+    private int mKeys[];
+    private int mPositions[];
+
+    // Dense array of the matrices and their ids
+    private Matrix mValues[];
+    private int mIds[];
+    private int mSize;
+
+    // Matrices by name, null if they aren't indexed by name
+    private NameIndex mNames;
+
+    public MatrixRegistry() {
+        this(true);
+    }
+
+    /**
+     * @param names False to leave the names to the owner of the registry, which can't use {@link #findByName(String)}
+     */
+    MatrixRegistry(boolean names) {
+        mKeys = new int[INITIAL_CAPACITY];
+        mPositions = new int[INITIAL_CAPACITY];
+        mValues = new Matrix[INITIAL_CAPACITY / 2];
+        mIds = new int[INITIAL_CAPACITY / 2];
+        mNames = names ? new NameIndex() : null;
+
+        clearTable();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds a matrix with its current id
+     *
+     * @param m Matrix
+     * @return The matrix which had the same id or null
+     */
+    public Matrix put(Matrix m) {
+
+        int id = m.getId();
+        int slot = find(id);
+
+        if(slot >= 0) {
+            Matrix old = mValues[mPositions[slot]];
+            mValues[mPositions[slot]] = m;
+
+            if(mNames != null) {
+                if(old != m)
+                    mNames.remove(old);
+                mNames.add(m);
+            }
+
+            return old;
+        }
+
+        if(mSize == mValues.length)
+            grow();
+
+        mValues[mSize] = m;
+        mIds[mSize] = id;
+
+        insert(id, mSize);
+        mSize++;
+
+        if(mNames != null)
+            mNames.add(m);
+
+        return null;
+    }
+
+    /**
+     * @param id Id of the matrix
+     * @return The matrix or null if there's none with the id
+     */
+    public Matrix get(int id) {
+
+        int slot = find(id);
+
+        return slot >= 0 ? mValues[mPositions[slot]] : null;
+    }
+
+    public boolean contains(int id) {
+        return find(id) >= 0;
+    }
+
+    /**
+     * Removes a matrix
+     *
+     * @param id Id of the matrix
+     * @return The removed matrix or null if there was none with the id
+     */
+    public Matrix remove(int id) {
+
+        int slot = find(id);
+
+        if(slot < 0)
+            return null;
+
+        int position = mPositions[slot];
+        Matrix m = mValues[position];
+
+        delete(slot);
+
+        // The last matrix fills the hole
+        int last = --mSize;
+
+        if(position != last) {
+            mValues[position] = mValues[last];
+            mIds[position] = mIds[last];
+            mPositions[find(mIds[position])] = position;
+        }
+
+        mValues[last] = null;
+
+        if(mNames != null)
+            mNames.remove(m);
+
+        return m;
+    }
+
+    /**
+     * Finds a matrix by its current name
+     *
+     * @param name The name
+     * @return The matrix or null if there's none with the name. Any of them if there are many
+     */
+    public Matrix findByName(String name) {
+
+        if(mNames == null)
+            throw new IllegalStateException("The registry doesn't index the names");
+
+        return mNames.find(name);
+    }
+
+    public void clear() {
+
+        for(int i = 0; i < mSize; i++)
+            mValues[i] = null;
+
+        mSize = 0;
+
+        if(mNames != null)
+            mNames.clear();
+
+        clearTable();
+    }
+
+    @Override
+    public Iterator<Matrix> iterator() {
+        return new Iterator<Matrix>() {
+
+            private int mNext;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mSize;
+            }
+
+            @Override
+            public Matrix next() {
+
+                if(mNext >= mSize)
+                    throw new NoSuchElementException();
+
+                return mValues[mNext++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Slot of the id or -1 if it's not in the table
+    private int find(int id) {
+
+        int mask = mKeys.length - 1;
+
+        for(int slot = hash(id) & mask; mPositions[slot] >= 0; slot = (slot + 1) & mask)
+            if(mKeys[slot] == id)
+                return slot;
+
+        return -1;
+    }
+
+    private void insert(int id, int position) {
+
+        int mask = mKeys.length - 1;
+        int slot = hash(id) & mask;
+
+        while(mPositions[slot] >= 0)
+            slot = (slot + 1) & mask;
+
+        mKeys[slot] = id;
+        mPositions[slot] = position;
+    }
+
+    /**
+     * Empties a slot. The entries after it in the same run are moved back when their
+     * home slot is not between the hole and them, so no tombstones are needed.
+     */
+    private void delete(int slot) {
+
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+
+        while(mPositions[next] >= 0) {
+            int home = hash(mKeys[next]) & mask;
+
+            // Distance from the home slot, circularly
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mPositions[hole] = mPositions[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        mPositions[hole] = -1;
+    }
+
+    // Doubles the table and the dense array, keeping the table at most half full
+    private void grow() {
+
+        int capacity = mKeys.length * 2;
+
+        Matrix values[] = new Matrix[capacity / 2];
+        int ids[] = new int[capacity / 2];
+
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+
+        mValues = values;
+        mIds = ids;
+        mKeys = new int[capacity];
+        mPositions = new int[capacity];
+
+        clearTable();
+
+        for(int i = 0; i < mSize; i++)
+            insert(mIds[i], i);
+    }
+
+    private void clearTable() {
+        for(int i = 0; i < mPositions.length; i++)
+            mPositions[i] = -1;
+    }
+
+    // Spreads the bits of the id, consecutive ids are common
+    static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,132 @@
+package com.rom.matapp.mat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the matrices of a registry by name. The matrices tell the index when they are renamed,
+ * so finding a name is a single hash lookup, and a missing name is found missing without looking
+ * at every matrix. The index can be used by many threads.
+ *
+ * A matrix only tells the last index it was added to, so it must not be in two registries at once.
+ */
+final class NameIndex implements Matrix.NameListener {
+
+    // Matrices by name. Many matrices can have the same name
+    private final Map<String, List<Matrix>> mMatrices;
+
+    // Name under which each matrix was indexed, null if it had none
+    private final Map<Matrix, String> mNames;
+
+    NameIndex() {
+        mMatrices = new HashMap<String, List<Matrix>>();
+        mNames = new IdentityHashMap<Matrix, String>();
+    }
+
+    /**
+     * Indexes a matrix with its current name and follows its renames
+     *
+     * @param m Matrix
+     */
+    void add(Matrix m) {
+
+        // The listener is set first, so a rename made meanwhile is either seen here or told later
+        m.setNameListener(this);
+
+        synchronized(this) {
+            if(mNames.containsKey(m))
+                unlink(m);
+
+            link(m);
+        }
+    }
+
+    /**
+     * Stops indexing a matrix
+     *
+     * @param m Matrix
+     */
+    void remove(Matrix m) {
+
+        synchronized(this) {
+            if(!mNames.containsKey(m))
+                return;
+
+            unlink(m);
+        }
+
+        if(m.getNameListener() == this)
+            m.setNameListener(null);
+    }
+
+    /**
+     * @param name The name
+     * @return A matrix with the name or null if there's none
+     */
+    synchronized Matrix find(String name) {
+
+        List<Matrix> matrices = mMatrices.get(name);
+
+        return matrices != null ? matrices.get(0) : null;
+    }
+
+    synchronized void clear() {
+
+        for(Matrix m : mNames.keySet())
+            if(m.getNameListener() == this)
+                m.setNameListener(null);
+
+        mMatrices.clear();
+        mNames.clear();
+    }
+
+    @Override
+    public synchronized void onNameChanged(Matrix m) {
+
+        // Already removed
+        if(!mNames.containsKey(m))
+            return;
+
+        unlink(m);
+        link(m);
+    }
+
+    private void link(Matrix m) {
+
+        String name = m.getName();
+
+        mNames.put(m, name);
+
+        if(name == null)
+            return;
+
+        List<Matrix> matrices = mMatrices.get(name);
+
+        if(matrices == null)
+            mMatrices.put(name, matrices = new ArrayList<Matrix>(1));
+
+        matrices.add(m);
+    }
+
+    private void unlink(Matrix m) {
+
+        String name = mNames.remove(m);
+
+        if(name == null)
+            return;
+
+        List<Matrix> matrices = mMatrices.get(name);
+
+        for(int i = 0; i < matrices.size(); i++)
+            if(matrices.get(i) == m) {
+                matrices.remove(i);
+                break;
+            }
+
+        if(matrices.isEmpty())
+            mMatrices.remove(name);
+    }
+}
@@ -0,0 +1,16 @@
+package com.rom.matapp.mat;
+
+/**
+ * Approximation M of a matrix A whose systems are cheap to solve.
+ * {@link KrylovSolver} converges in less iterations with M^-1 A than with A.
+ */
+public interface Preconditioner {
+
+    /**
+     * Solves M z = r
+     *
+     * @param r Vector r
+     * @param z Destination vector. It must not be r
+     */
+    void apply(double r[], double z[]);
+}
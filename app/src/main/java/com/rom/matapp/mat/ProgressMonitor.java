@@ -0,0 +1,145 @@
+package com.rom.matapp.mat;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress and cancellation of a long computation.
+ *
+ * The monitor of the current thread is checked by the kernels (products, factorizations,
+ * substitutions and iterations) between blocks of work, so a cancelled computation stops
+ * soon with a {@link CancellationException}. The tasks sent to a pool take the monitor
+ * of the thread which created them.
+ */
+public class ProgressMonitor {
+
+    /**
+     * Receives the progress of the computation, in the thread which made it
+     */
+    public interface Listener {
+
+        /**
+         * @param done Steps finished
+         * @param total Steps of the computation
+         */
+        void onProgress(int done, int total);
+    }
+
+    // Monitor of the computation of each thread
+    private static final ThreadLocal<ProgressMonitor> sCurrent = new ThreadLocal<ProgressMonitor>();
+
+    private volatile boolean mCancelled;
+
+    private volatile int mDone;
+    private volatile int mTotal;
+
+    private final Listener mListener;
+
+    public ProgressMonitor() {
+        this(null);
+    }
+
+    /**
+     * @param listener The listener or null
+     */
+    public ProgressMonitor(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Asks the computation to stop. It stops the next time the monitor is checked.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws CancellationException If the computation was cancelled
+     */
+    public void check() {
+        if(mCancelled)
+            throw new CancellationException();
+    }
+
+    public int getDone() {
+        return mDone;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Reports the progress
+     *
+     * @param done Steps finished
+     * @param total Steps of the computation
+     */
+    public void setProgress(int done, int total) {
+
+        mDone = done;
+        mTotal = total;
+
+        if(mListener != null)
+            mListener.onProgress(done, total);
+    }
+
+    /**
+     * @return The monitor of the computation of the current thread or null if there's none
+     */
+    public static ProgressMonitor current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Checks the monitor of the current thread, if there's one. An interrupted thread, like the
+     * ones stopped by {@link java.util.concurrent.ExecutorService#shutdownNow()}, cancels its
+     * monitor, so the tasks it sent to a pool stop too. The interrupt isn't cleared.
+     *
+     * @throws CancellationException If the computation was cancelled or the thread was interrupted
+     */
+    public static void checkCurrent() {
+
+        ProgressMonitor monitor = sCurrent.get();
+
+        if(monitor == null)
+            return;
+
+        if(Thread.currentThread().isInterrupted())
+            monitor.mCancelled = true;
+
+        if(monitor.mCancelled)
+            throw new CancellationException();
+    }
+
+    /**
+     * Sets the monitor of the current thread. Must be followed by {@link #exit(ProgressMonitor)}
+     * with the returned monitor, usually in a finally block.
+     *
+     * @param monitor The monitor or null
+     * @return The previous monitor of the thread
+     */
+    public static ProgressMonitor enter(ProgressMonitor monitor) {
+
+        ProgressMonitor previous = sCurrent.get();
+        sCurrent.set(monitor);
+
+        return previous;
+    }
+
+    /**
+     * Restores the monitor the current thread had before {@link #enter(ProgressMonitor)}
+     *
+     * @param previous The monitor returned by enter
+     */
+    public static void exit(ProgressMonitor previous) {
+
+        if(previous == null)
+            sCurrent.remove();
+        else
+            sCurrent.set(previous);
+    }
+}
@@ -0,0 +1,398 @@
+package com.rom.matapp.mat;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Householder QR factorization of a matrix with at least as many rows as cols: A = Q R.
+ *
+ * The columns are factored by panels. The reflectors of a panel, H(0) ... H(nb-1), are
+ * accumulated in the compact WY form I - V T V^T (T is upper triangular), so applying them
+ * to the rest of the matrix or to a right hand side needs three products which are computed
+ * by {@link Gemm} instead of one rank-1 update per reflector.
+ *
+ * Used to solve over-determined systems in the least squares sense without forming A^T A,
+ * which squares the condition number. The factorization is immutable.
+ */
+public class QRFactorization {
+
+    // Columns factored together
+    private static final int PANEL_SIZE = 32;
+
+    private final int mRows;
+    private final int mCols;
+
+    // R, cols x cols
+    private final double mR[];
+
+    // Reflectors of each panel: V with a unit diagonal and zeros above it, and T
+    private final Matrix mV[];
+    private final Matrix mT[];
+
+    private final boolean mRankDeficient;
+
+    private QRFactorization(int rows, int cols, double r[], Matrix v[], Matrix t[], boolean rankDeficient) {
+        mRows = rows;
+        mCols = cols;
+        mR = r;
+        mV = v;
+        mT = t;
+        mRankDeficient = rankDeficient;
+    }
+
+    /**
+     * Decomposes the given matrix
+     *
+     * @param m Matrix
+     * @return The factorization or null if the matrix has less rows than cols
+     */
+    public static QRFactorization decompose(Matrix m) {
+        return decompose(m, null);
+    }
+
+    /**
+     * Decomposes the given matrix. The products which apply each panel to the rest
+     * of the matrix are computed in parallel if a pool is given.
+     *
+     * @param m Matrix
+     * @param pool The pool or null to decompose in the calling thread
+     * @return The factorization or null if the matrix has less rows than cols
+     */
+    public static QRFactorization decompose(Matrix m, ForkJoinPool pool) {
+
+        int rows = m.getRows();
+        int cols = m.getCols();
+
+        if(rows < cols)
+            return null;
+
+        Matrix a = new Matrix(rows, cols);
+        Matrix.copyValues(m, a);
+
+        double ad[] = a.editBuffer();
+
+        int panels = (cols + PANEL_SIZE - 1) / PANEL_SIZE;
+        Matrix vs[] = new Matrix[panels];
+        Matrix ts[] = new Matrix[panels];
+
+        double tau[] = new double[PANEL_SIZE];
+
+        for(int p = 0; p < panels; p++) {
+            int kb = p * PANEL_SIZE;
+            int end = Math.min(kb + PANEL_SIZE, cols);
+
+            ProgressMonitor.checkCurrent();
+            int w = end - kb;
+            int h = rows - kb;
+
+            Matrix v = new Matrix(h, w);
+            double vd[] = v.editBuffer();
+
+            // Panel factorization
+            for(int k = kb; k < end; k++) {
+                int c = k - kb;
+
+                tau[c] = reflector(ad, cols, rows, k, vd, w, c);
+
+                if(tau[c] == 0) continue;
+
+                // H(k) applied to the rest of the panel
+                for(int j = k + 1; j < end; j++) {
+                    double s = 0;
+                    for(int i = k; i < rows; i++)
+                        s += vd[(i - kb) * w + c] * ad[i * cols + j];
+
+                    s *= tau[c];
+                    for(int i = k; i < rows; i++)
+                        ad[i * cols + j] -= s * vd[(i - kb) * w + c];
+                }
+            }
+
+            Matrix t = triangularFactor(v, tau);
+
+            vs[p] = v;
+            ts[p] = t;
+
+            // A2 = (I - V T^T V^T) A2
+            if(end < cols)
+                applyTransposed(v, t, a.view(kb, end, h, cols - end), pool);
+        }
+
+        double r[] = new double[cols * cols];
+
+        for(int i = 0; i < cols; i++)
+            System.arraycopy(ad, i * cols + i, r, i * cols + i, cols - i);
+
+        // The biggest column norm is a lower bound of the 2-norm of the matrix
+        double maxNorm = 0;
+        for(int j = 0; j < cols; j++) {
+            double sum = 0;
+            for(int i = 0; i <= j; i++)
+                sum += r[i * cols + j] * r[i * cols + j];
+
+            maxNorm = Math.max(maxNorm, Math.sqrt(sum));
+        }
+
+        // Diagonal values of R below the rounding errors of the factorization
+        double tolerance = Math.max(rows, cols) * Math.ulp(1.0) * maxNorm;
+        boolean rankDeficient = false;
+
+        for(int i = 0; i < cols; i++)
+            if(!(Math.abs(r[i * cols + i]) > tolerance))
+                rankDeficient = true;
+
+        return new QRFactorization(rows, cols, r, vs, ts, rankDeficient);
+    }
+
+    /**
+     * Computes the reflector H = I - tau v v^T which zeroes the column k of a below the diagonal.
+     * Stores beta in a(k, k), v in the column c of the panel (with v(0) = 1) and returns tau.
+     */
+    private static double reflector(double a[], int cols, int rows, int k, double v[], int w, int c) {
+
+        int kb = k - c;
+
+        // Scaled norm of the column, so it doesn't overflow
+        double scale = 0;
+        for(int i = k; i < rows; i++)
+            scale = Math.max(scale, Math.abs(a[i * cols + k]));
+
+        if(scale == 0)
+            return 0;
+
+        double sum = 0;
+        for(int i = k; i < rows; i++) {
+            double x = a[i * cols + k] / scale;
+            sum += x * x;
+        }
+
+        double alpha = a[k * cols + k];
+        double norm = scale * Math.sqrt(sum);
+        double beta = alpha > 0 ? -norm : norm;
+
+        v[(k - kb) * w + c] = 1;
+        for(int i = k + 1; i < rows; i++) {
+            v[(i - kb) * w + c] = a[i * cols + k] / (alpha - beta);
+            a[i * cols + k] = 0;
+        }
+
+        a[k * cols + k] = beta;
+
+        return (beta - alpha) / beta;
+    }
+
+    /**
+     * Forms the upper triangular T of H(0) ... H(w-1) = I - V T V^T
+     */
+    private static Matrix triangularFactor(Matrix v, double tau[]) {
+
+        int h = v.getRows();
+        int w = v.getCols();
+
+        double vd[] = v.getBuffer();
+
+        Matrix t = new Matrix(w, w);
+        double td[] = t.editBuffer();
+        double z[] = new double[w];
+
+        for(int i = 0; i < w; i++) {
+            td[i * w + i] = tau[i];
+
+            if(tau[i] == 0) continue;
+
+            // z = V(:, 0..i-1)^T v(i)
+            for(int j = 0; j < i; j++)
+                z[j] = 0;
+
+            for(int row = i; row < h; row++) {
+                double vi = vd[row * w + i];
+
+                if(vi == 0) continue;
+
+                for(int j = 0; j < i; j++)
+                    z[j] += vd[row * w + j] * vi;
+            }
+
+            // T(0..i-1, i) = -tau T(0..i-1, 0..i-1) z
+            for(int row = 0; row < i; row++) {
+                double s = 0;
+                for(int j = row; j < i; j++)
+                    s += td[row * w + j] * z[j];
+
+                td[row * w + i] = -tau[i] * s;
+            }
+        }
+
+        return t;
+    }
+
+    /**
+     * Computes C = (I - V T^T V^T) C = H(w-1) ... H(0) C
+     */
+    private static void applyTransposed(Matrix v, Matrix t, Matrix c, ForkJoinPool pool) {
+
+        // W = T^T V^T C
+        Matrix wm = Gemm.multiply(v.transpose(), c, pool);
+        multiplyTriangular(t, wm, true);
+
+        // C = C - V W
+        Gemm.multiplyAdd(-1, v, wm, c, pool);
+    }
+
+    /**
+     * Computes C = (I - V T V^T) C = H(0) ... H(w-1) C
+     */
+    private static void apply(Matrix v, Matrix t, Matrix c, ForkJoinPool pool) {
+
+        Matrix wm = Gemm.multiply(v.transpose(), c, pool);
+        multiplyTriangular(t, wm, false);
+
+        Gemm.multiplyAdd(-1, v, wm, c, pool);
+    }
+
+    /**
+     * Computes W = T W or W = T^T W in place. T is upper triangular.
+     */
+    private static void multiplyTriangular(Matrix t, Matrix wm, boolean transposed) {
+
+        int w = t.getCols();
+        int k = wm.getCols();
+
+        double td[] = t.getBuffer();
+        double wd[] = wm.editBuffer();
+
+        if(transposed)
+            // Row i of T^T W only uses rows 0..i of W
+            for(int i = w - 1; i >= 0; i--)
+                for(int col = 0; col < k; col++) {
+                    double s = 0;
+                    for(int j = 0; j <= i; j++)
+                        s += td[j * w + i] * wd[j * k + col];
+                    wd[i * k + col] = s;
+                }
+        else
+            // Row i of T W only uses rows i..w-1 of W
+            for(int i = 0; i < w; i++)
+                for(int col = 0; col < k; col++) {
+                    double s = 0;
+                    for(int j = i; j < w; j++)
+                        s += td[i * w + j] * wd[j * k + col];
+                    wd[i * k + col] = s;
+                }
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getCols() {
+        return mCols;
+    }
+
+    /**
+     * Checks if the columns of the matrix are linearly dependent,
+     * within the rounding errors of the factorization
+     *
+     * @return True if the rank of the matrix is smaller than its cols
+     */
+    public boolean isRankDeficient() {
+        return mRankDeficient;
+    }
+
+    /**
+     * Gets R
+     *
+     * @return A copy of R, cols x cols
+     */
+    public Matrix getR() {
+        return Matrix.shared(mR, mCols, mCols);
+    }
+
+    /**
+     * Gets the first cols columns of Q
+     *
+     * @return Q, rows x cols
+     */
+    public Matrix getQ() {
+
+        Matrix q = new Matrix(mRows, mCols);
+        for(int i = 0; i < mCols; i++)
+            q.setValue(1, i, i);
+
+        for(int p = mV.length - 1; p >= 0; p--) {
+            int kb = p * PANEL_SIZE;
+            apply(mV[p], mT[p], q.view(kb, 0, mRows - kb, mCols), null);
+        }
+
+        return q;
+    }
+
+    /**
+     * Computes the least squares solution of A x = b for each column of b:
+     * the x which minimizes ||A x - b||
+     *
+     * @param b Matrix b
+     * @return The solution or null if the dimensions don't agree or the matrix is rank deficient
+     */
+    public Matrix solve(Matrix b) {
+
+        if(b.getRows() != mRows)
+            return null;
+
+        return solveInto(b, new Matrix(mCols, b.getCols()), null);
+    }
+
+    /**
+     * Computes the least squares solution of A x = b for each column of b and stores it in x.
+     * x = R^-1 (Q^T b)(0..cols-1).
+     *
+     * @param b Matrix b
+     * @param x Destination matrix, cols x cols of b
+     * @param pool The pool or null to solve in the calling thread
+     * @return X or null if the dimensions don't agree or the matrix is rank deficient
+     */
+    public Matrix solveInto(Matrix b, Matrix x, ForkJoinPool pool) {
+
+        if(mRankDeficient || b.getRows() != mRows || x.getRows() != mCols || x.getCols() != b.getCols())
+            return null;
+
+        Matrix.checkDense(x);
+
+        int n = mCols;
+        int k = b.getCols();
+
+        // Q^T b
+        Matrix y = new Matrix(mRows, k);
+        Matrix.copyValues(b, y);
+
+        for(int p = 0; p < mV.length; p++) {
+            int kb = p * PANEL_SIZE;
+            applyTransposed(mV[p], mT[p], y.view(kb, 0, mRows - kb, k), pool);
+        }
+
+        // R x = (Q^T b)(0..n-1)
+        double r[] = mR;
+        double yd[] = y.editBuffer();
+
+        for(int i = n - 1; i >= 0; i--) {
+            int yi = i * k;
+
+            for(int j = i + 1; j < n; j++) {
+                double u = r[i * n + j];
+
+                if(u == 0) continue;
+
+                int yj = j * k;
+                for(int col = 0; col < k; col++)
+                    yd[yi + col] -= u * yd[yj + col];
+            }
+
+            double pivot = r[i * n + i];
+            for(int col = 0; col < k; col++)
+                yd[yi + col] /= pivot;
+        }
+
+        Matrix.copyValues(y, x);
+
+        return x;
+    }
+}
@@ -0,0 +1,35 @@
+package com.rom.matapp.mat;
+
+/**
+ * Result of an expression resolved in a batch
+ */
+public class ResolveResult {
+
+    private final String mExpression;
+    private final Matrix mMatrix;
+    private final int mStatus;
+
+    ResolveResult(String expression, Matrix matrix, int status) {
+        mExpression = expression;
+        mMatrix = matrix;
+        mStatus = status;
+    }
+
+    public String getExpression() {
+        return mExpression;
+    }
+
+    /**
+     * @return The result matrix or null if there was any error
+     */
+    public Matrix getMatrix() {
+        return mMatrix;
+    }
+
+    /**
+     * @return RESULT_OK or the error of the expression
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -0,0 +1,155 @@
+package com.rom.matapp.mat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of subexpressions by a normalized text of the subexpression, where every matrix
+ * is written with its id and its version, so a result is never used after its matrices change.
+ *
+ * The cache holds up to a number of bytes of values. When it's full the least recently used
+ * results are evicted. The cached matrices are shared, so they must not be modified.
+ * The cache can be used by many threads.
+ */
+public class ResultCache {
+
+    // Results by key, the least recently used first
+    private LinkedHashMap<String, Matrix> mResults;
+
+    private long mMaxBytes;
+    private long mBytes;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxBytes Bytes of values kept. 0 to cache nothing
+     */
+    public ResultCache(long maxBytes) {
+
+        if(maxBytes < 0)
+            throw new IllegalArgumentException("The budget can't be negative");
+
+        mResults = new LinkedHashMap<String, Matrix>(16, 0.75f, true);
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Gets a cached result and counts the hit or the miss
+     *
+     * @param key Key of the subexpression
+     * @return The result, which must not be modified, or null if it's not cached
+     */
+    public synchronized Matrix get(String key) {
+
+        Matrix m = mResults.get(key);
+
+        if(m != null)
+            mHits++;
+        else
+            mMisses++;
+
+        return m;
+    }
+
+    /**
+     * Caches a result. Results bigger than the budget are not cached.
+     *
+     * @param key Key of the subexpression
+     * @param m The result. It must not be modified after this
+     */
+    public synchronized void put(String key, Matrix m) {
+
+        long bytes = sizeOf(m);
+
+        if(bytes > mMaxBytes)
+            return;
+
+        Matrix old = mResults.put(key, m);
+
+        if(old != null)
+            mBytes -= sizeOf(old);
+
+        mBytes += bytes;
+
+        trim();
+    }
+
+    // Evicts the least recently used results until the values fit in the budget
+    private void trim() {
+
+        Iterator<Matrix> it = mResults.values().iterator();
+
+        while(mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Changes the budget, evicting results if they don't fit
+     *
+     * @param maxBytes Bytes of values kept. 0 to cache nothing
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+
+        if(maxBytes < 0)
+            throw new IllegalArgumentException("The budget can't be negative");
+
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return Bytes of the cached values
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int size() {
+        return mResults.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    // Removes every result. The counters are kept
+    public synchronized void clear() {
+        mResults.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void resetCounters() {
+        mHits = 0;
+        mMisses = 0;
+    }
+
+    /**
+     * Estimates the memory used by the values of a matrix
+     *
+     * @param m Matrix
+     * @return Bytes
+     */
+    static long sizeOf(Matrix m) {
+
+        if(m.isSparse()) {
+            SparseMatrix s = (SparseMatrix) m;
+            return 12L * s.getNonZeros() + 4L * (s.getRows() + 1);
+        }
+
+        return 8L * m.getRows() * m.getCols();
+    }
+}
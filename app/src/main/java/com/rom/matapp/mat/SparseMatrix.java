@@ -0,0 +1,776 @@
+package com.rom.matapp.mat;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class represents a numeric matrix which only stores its non zero values.
+ * The values are stored in compressed sparse row format: the column and the value of the
+ * non zero elements row by row, and the index where each row starts.
+ *
+ * Sums and products between sparse matrices return a sparse matrix if the result has a density
+ * lower than {@link #getDensityThreshold()} or a dense matrix otherwise. Operations with a dense
+ * matrix return a dense matrix.
+ */
+public class SparseMatrix extends Matrix {
+
+    // Results with more non zero values than this fraction are stored as dense matrices
+    private static volatile double sDensityThreshold = 0.25;
+
+    // Relative residual of the iterative solves
+    private static volatile double sIterativeTolerance = 1e-12;
+
+    // Index of the first value of each row. The last element is the number of values
+    private int mRowPtr[];
+
+    // Columns of the values
+    private int mColIdx[];
+
+    // Non zero values
+    private double mValues[];
+
+    // True if a copy may be reading the arrays. They are copied before the next write
+    private boolean mShared;
+
+    /**
+     * Creates a new sparse matrix with the given dimensions and no values
+     *
+     * @param r Rows
+     * @param c Cols
+     */
+    public SparseMatrix(int r, int c) {
+        this(r, c, new int[r + 1], new int[0], new double[0]);
+    }
+
+    /**
+     * Creates a new sparse matrix with the given compressed rows. The arrays are not copied.
+     *
+     * @param r Rows
+     * @param c Cols
+     * @param rowPtr Index of the first value of each row followed by the number of values
+     * @param colIdx Column of each value. Increasing inside each row
+     * @param values Values
+     */
+    public SparseMatrix(int r, int c, int rowPtr[], int colIdx[], double values[]) {
+        super(null, 0, 0, r, c);
+
+        mRowPtr = rowPtr;
+        mColIdx = colIdx;
+        mValues = values;
+    }
+
+    public SparseMatrix(SparseMatrix m) {
+        this(m.getRows(), m.getCols(), m.mRowPtr.clone(),
+                Arrays.copyOf(m.mColIdx, m.getNonZeros()), Arrays.copyOf(m.mValues, m.getNonZeros()));
+    }
+
+    /**
+     * Creates a sparse matrix with the non zero values of the given matrix
+     *
+     * @param m Matrix
+     * @return The sparse matrix
+     */
+    public static SparseMatrix fromDense(Matrix m) {
+
+        if(m.isSparse())
+            return new SparseMatrix((SparseMatrix) m);
+
+        int rows = m.getRows();
+        int cols = m.getCols();
+
+        double d[] = m.getBuffer();
+
+        int nnz = 0;
+        for(int row = 0; row < rows; row++) {
+            int i = m.getOffset() + row * m.getStride();
+
+            for(int col = 0; col < cols; col++)
+                if(d[i + col] != 0)
+                    nnz++;
+        }
+
+        int rowPtr[] = new int[rows + 1];
+        int colIdx[] = new int[nnz];
+        double values[] = new double[nnz];
+
+        int p = 0;
+        for(int row = 0; row < rows; row++) {
+            int i = m.getOffset() + row * m.getStride();
+
+            for(int col = 0; col < cols; col++)
+                if(d[i + col] != 0) {
+                    colIdx[p] = col;
+                    values[p++] = d[i + col];
+                }
+
+            rowPtr[row + 1] = p;
+        }
+
+        return new SparseMatrix(rows, cols, rowPtr, colIdx, values);
+    }
+
+    /**
+     * Sets the density from which results are stored as dense matrices
+     *
+     * @param threshold Fraction of non zero values between 0 and 1
+     */
+    public static void setDensityThreshold(double threshold) {
+        sDensityThreshold = threshold;
+    }
+
+    public static double getDensityThreshold() {
+        return sDensityThreshold;
+    }
+
+    /**
+     * Sets the relative residual ||b - A x|| / ||b|| at which the iterative solves of
+     * {@link #solveSystem(Matrix, ForkJoinPool)} stop
+     *
+     * @param tolerance The tolerance
+     */
+    public static void setIterativeTolerance(double tolerance) {
+        sIterativeTolerance = tolerance;
+    }
+
+    public static double getIterativeTolerance() {
+        return sIterativeTolerance;
+    }
+
+    public int getNonZeros() {
+        return mRowPtr[getRows()];
+    }
+
+    /**
+     * Returns the fraction of values which are stored
+     */
+    public double getDensity() {
+        return getNonZeros() / ((double) getRows() * getCols());
+    }
+
+    public int[] getRowPointers() {
+        return mRowPtr;
+    }
+
+    public int[] getColumnIndices() {
+        return mColIdx;
+    }
+
+    public double[] getValues() {
+        return mValues;
+    }
+
+    @Override
+    public boolean isSparse() {
+        return true;
+    }
+
+    @Override
+    public Matrix toDense() {
+        return new Matrix(this);
+    }
+
+    /**
+     * Returns a copy which shares the arrays until this or the copy is written
+     *
+     * @return The copy
+     */
+    @Override
+    public synchronized Matrix copy() {
+
+        SparseMatrix copy = new SparseMatrix(getRows(), getCols(), mRowPtr, mColIdx, mValues);
+
+        copy.mShared = true;
+        mShared = true;
+
+        return copy;
+    }
+
+    // The arrays are replaced and shifted by the writes, so the reads take the lock too
+    @Override
+    public synchronized double getValue(int row, int col) {
+
+        int p = find(row, col);
+
+        return p >= 0 ? mValues[p] : 0;
+    }
+
+    @Override
+    public synchronized void setValue(double value, int row, int col) {
+
+        int p = find(row, col);
+
+        if(p >= 0 || value != 0)
+            edit();
+
+        if(p >= 0) {
+            if(value != 0)
+                mValues[p] = value;
+            else
+                remove(row, p);
+        } else if(value != 0)
+            insert(row, -p - 1, col, value);
+
+        markModified();
+    }
+
+    @Override
+    public double[][] toArray() {
+
+        double data[][] = new double[getRows()][getCols()];
+
+        for(int row = 0; row < getRows(); row++)
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++)
+                data[row][mColIdx[p]] = mValues[p];
+
+        return data;
+    }
+
+    @Override
+    public Matrix view(int row, int col, int r, int c) {
+        throw new UnsupportedOperationException("Sparse matrices don't have views");
+    }
+
+    @Override
+    public synchronized void changeDimensions(int newRows, int newCols) {
+
+        edit();
+
+        int rowPtr[] = new int[newRows + 1];
+        int p = 0;
+
+        for(int row = 0; row < newRows; row++) {
+            if(row < getRows())
+                for(int q = mRowPtr[row]; q < mRowPtr[row + 1]; q++)
+                    if(mColIdx[q] < newCols) {
+                        mColIdx[p] = mColIdx[q];
+                        mValues[p++] = mValues[q];
+                    }
+
+            rowPtr[row + 1] = p;
+        }
+
+        mRowPtr = rowPtr;
+        setShape(newRows, newCols);
+    }
+
+    @Override
+    public synchronized void fill(double value) {
+
+        if(value == 0) {
+            mRowPtr = new int[getRows() + 1];
+            markModified();
+            return;
+        }
+
+        int rows = getRows();
+        int cols = getCols();
+
+        mRowPtr = new int[rows + 1];
+        mColIdx = new int[rows * cols];
+        mValues = new double[rows * cols];
+
+        for(int row = 0; row < rows; row++) {
+            mRowPtr[row + 1] = (row + 1) * cols;
+
+            for(int col = 0; col < cols; col++) {
+                mColIdx[row * cols + col] = col;
+                mValues[row * cols + col] = value;
+            }
+        }
+
+        markModified();
+    }
+
+    @Override
+    synchronized void assign(Matrix m) {
+
+        SparseMatrix s = m.isSparse() ? (SparseMatrix) m.copy() : fromDense(m);
+
+        mRowPtr = s.mRowPtr;
+        mColIdx = s.mColIdx;
+        mValues = s.mValues;
+        mShared = s.mShared;
+        setShape(s.getRows(), s.getCols());
+    }
+
+    @Override
+    public Matrix add(final Matrix m) {
+
+        if(getRows() != m.getRows() || getCols() != m.getCols())
+            return null;
+
+        if(m.isSparse())
+            return pick(combine(this, (SparseMatrix) m, 1));
+
+        return addInto(m, new Matrix(getRows(), getCols()));
+    }
+
+    @Override
+    public Matrix addInto(final Matrix m, Matrix dest) {
+
+        if(getRows() != m.getRows() || getCols() != m.getCols()
+                || getRows() != dest.getRows() || getCols() != dest.getCols())
+            return null;
+
+        checkDense(dest);
+
+        if(dest != m)
+            copyValues(m, dest);
+
+        scatter(dest, 1);
+        dest.markModified();
+
+        return dest;
+    }
+
+    @Override
+    public Matrix subtract(final Matrix m, boolean inverted) {
+
+        if(getRows() != m.getRows() || getCols() != m.getCols())
+            return null;
+
+        if(m.isSparse())
+            return pick(inverted ? combine((SparseMatrix) m, this, -1) : combine(this, (SparseMatrix) m, -1));
+
+        return subtractInto(m, inverted, new Matrix(getRows(), getCols()));
+    }
+
+    @Override
+    public Matrix subtractInto(final Matrix m, boolean inverted, Matrix dest) {
+
+        if(getRows() != m.getRows() || getCols() != m.getCols()
+                || getRows() != dest.getRows() || getCols() != dest.getCols())
+            return null;
+
+        checkDense(dest);
+
+        if(dest != m)
+            copyValues(m, dest);
+
+        // this - m = -m + this
+        if(!inverted)
+            negate(dest);
+
+        scatter(dest, inverted ? -1 : 1);
+        dest.markModified();
+
+        return dest;
+    }
+
+    @Override
+    public Matrix multiply(final Matrix m, ForkJoinPool pool) {
+
+        if(getCols() != m.getRows())
+            return null;
+
+        if(m.isSparse())
+            return pick(multiply(this, (SparseMatrix) m));
+
+        return multiplyInto(m, new Matrix(getRows(), m.getCols()), pool);
+    }
+
+    @Override
+    public Matrix multiplyInto(final Matrix m, Matrix dest, ForkJoinPool pool) {
+
+        if(getCols() != m.getRows() || dest.getRows() != getRows() || dest.getCols() != m.getCols())
+            return null;
+
+        checkDense(dest);
+
+        if(dest == m)
+            throw new IllegalArgumentException("The destination can't share values with the operands");
+
+        Matrix b = m.toDense();
+
+        double bd[] = b.getBuffer();
+        double cd[] = dest.editBuffer();
+
+        dest.fill(0);
+
+        for(int row = 0; row < getRows(); row++) {
+            int ci = dest.getOffset() + row * dest.getStride();
+
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++) {
+                double v = mValues[p];
+                int bi = b.getOffset() + mColIdx[p] * b.getStride();
+
+                for(int col = 0; col < dest.getCols(); col++)
+                    cd[ci + col] += v * bd[bi + col];
+            }
+        }
+
+        dest.markModified();
+
+        return dest;
+    }
+
+    @Override
+    public void apply(double x[], double y[]) {
+        for(int row = 0; row < getRows(); row++) {
+            double sum = 0;
+
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++)
+                sum += mValues[p] * x[mColIdx[p]];
+
+            y[row] = sum;
+        }
+    }
+
+    @Override
+    public boolean isSymmetric() {
+
+        if(!isSquare())
+            return false;
+
+        for(int row = 0; row < getRows(); row++)
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++)
+                if(mColIdx[p] < row && getValue(mColIdx[p], row) != mValues[p])
+                    return false;
+
+        // Every value below the diagonal has its pair, so the values above it are the same
+        return countLower() == countUpper();
+    }
+
+    /**
+     * Solves the system this * x = b for each column of b. Systems whose band is mostly non zero
+     * are solved by {@link BandedMatrix}. Any other is solved iteratively: by conjugate gradient if
+     * the matrix is symmetric and by BiCGSTAB otherwise, both with an ILU(0) preconditioner,
+     * so the matrix is never stored dense. Falls back to the dense solve if the iteration doesn't converge.
+     *
+     * @param mb Matrix b
+     * @param pool The pool used by the dense solve or null
+     * @return The solution or null if the dimensions don't agree or the matrix is singular
+     */
+    @Override
+    public Matrix solveSystem(Matrix mb, ForkJoinPool pool) {
+
+        if(!isSquare() || getRows() != mb.getRows())
+            return super.solveSystem(mb, pool);
+
+        int bands[] = BandedMatrix.bandwidths(this);
+        if((long) getRows() * (bands[0] + bands[1] + 1) <= 4L * getNonZeros())
+            return super.solveSystem(mb, pool);
+
+        KrylovSolver solver = new KrylovSolver(isSymmetric() ? KrylovSolver.METHOD_CG : KrylovSolver.METHOD_BICGSTAB);
+        solver.setTolerance(sIterativeTolerance);
+        solver.setMaxIterations(Math.max(1000, getRows()));
+
+        try {
+            solver.setPreconditioner(new ILU0Preconditioner(this));
+        } catch(IllegalArgumentException e) {
+            // Zero or missing pivots
+            solver.setPreconditioner(null);
+        }
+
+        Matrix x = solver.solve(this, mb);
+
+        return x != null ? x : super.solveSystem(mb, pool);
+    }
+
+    private int countLower() {
+
+        int count = 0;
+
+        for(int row = 0; row < getRows(); row++)
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1] && mColIdx[p] < row; p++)
+                count++;
+
+        return count;
+    }
+
+    private int countUpper() {
+
+        int count = 0;
+
+        for(int row = 0; row < getRows(); row++)
+            for(int p = mRowPtr[row + 1] - 1; p >= mRowPtr[row] && mColIdx[p] > row; p--)
+                count++;
+
+        return count;
+    }
+
+    @Override
+    public Matrix transpose() {
+
+        int rows = getRows();
+        int cols = getCols();
+        int nnz = getNonZeros();
+
+        int rowPtr[] = new int[cols + 1];
+        int colIdx[] = new int[nnz];
+        double values[] = new double[nnz];
+
+        // Counts the values of each column
+        for(int p = 0; p < nnz; p++)
+            rowPtr[mColIdx[p] + 1]++;
+
+        for(int col = 0; col < cols; col++)
+            rowPtr[col + 1] += rowPtr[col];
+
+        int next[] = Arrays.copyOf(rowPtr, cols);
+
+        for(int row = 0; row < rows; row++)
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++) {
+                int q = next[mColIdx[p]]++;
+
+                colIdx[q] = row;
+                values[q] = mValues[p];
+            }
+
+        return new SparseMatrix(cols, rows, rowPtr, colIdx, values);
+    }
+
+    /**
+     * Multiply a dense matrix by a sparse matrix and stores the result in dest
+     *
+     * @param a Dense matrix
+     * @param b Sparse matrix
+     * @param dest Destination matrix
+     * @return Dest
+     */
+    static Matrix multiplyInto(Matrix a, SparseMatrix b, Matrix dest) {
+
+        double ad[] = a.getBuffer();
+        double cd[] = dest.editBuffer();
+
+        dest.fill(0);
+
+        for(int row = 0; row < a.getRows(); row++) {
+            int ai = a.getOffset() + row * a.getStride();
+            int ci = dest.getOffset() + row * dest.getStride();
+
+            for(int k = 0; k < a.getCols(); k++) {
+                double v = ad[ai + k];
+
+                if(v == 0) continue;
+
+                for(int p = b.mRowPtr[k]; p < b.mRowPtr[k + 1]; p++)
+                    cd[ci + b.mColIdx[p]] += v * b.mValues[p];
+            }
+        }
+
+        dest.markModified();
+
+        return dest;
+    }
+
+    /**
+     * Multiply two sparse matrices
+     */
+    private static SparseMatrix multiply(SparseMatrix a, SparseMatrix b) {
+
+        int rows = a.getRows();
+        int cols = b.getCols();
+
+        int rowPtr[] = new int[rows + 1];
+        int colIdx[] = new int[Math.max(a.getNonZeros(), b.getNonZeros())];
+        double values[] = new double[colIdx.length];
+
+        // Dense accumulator of the current row and the columns it touches
+        double acc[] = new double[cols];
+        int marker[] = new int[cols];
+        int touched[] = new int[cols];
+
+        Arrays.fill(marker, -1);
+
+        int p = 0;
+        for(int row = 0; row < rows; row++) {
+            int count = 0;
+
+            for(int q = a.mRowPtr[row]; q < a.mRowPtr[row + 1]; q++) {
+                double v = a.mValues[q];
+                int k = a.mColIdx[q];
+
+                for(int r = b.mRowPtr[k]; r < b.mRowPtr[k + 1]; r++) {
+                    int col = b.mColIdx[r];
+
+                    if(marker[col] != row) {
+                        marker[col] = row;
+                        touched[count++] = col;
+                        acc[col] = 0;
+                    }
+
+                    acc[col] += v * b.mValues[r];
+                }
+            }
+
+            Arrays.sort(touched, 0, count);
+
+            if(p + count > colIdx.length) {
+                int capacity = Math.max(colIdx.length * 2, p + count);
+                colIdx = Arrays.copyOf(colIdx, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+
+            for(int i = 0; i < count; i++) {
+                int col = touched[i];
+
+                if(acc[col] != 0) {
+                    colIdx[p] = col;
+                    values[p++] = acc[col];
+                }
+            }
+
+            rowPtr[row + 1] = p;
+        }
+
+        return new SparseMatrix(rows, cols, rowPtr, colIdx, values);
+    }
+
+    /**
+     * Computes a + sign * b
+     */
+    private static SparseMatrix combine(SparseMatrix a, SparseMatrix b, int sign) {
+
+        int rows = a.getRows();
+
+        int rowPtr[] = new int[rows + 1];
+        int colIdx[] = new int[a.getNonZeros() + b.getNonZeros()];
+        double values[] = new double[colIdx.length];
+
+        int p = 0;
+        for(int row = 0; row < rows; row++) {
+            int i = a.mRowPtr[row];
+            int j = b.mRowPtr[row];
+            int iEnd = a.mRowPtr[row + 1];
+            int jEnd = b.mRowPtr[row + 1];
+
+            while(i < iEnd || j < jEnd) {
+                int col;
+                double v;
+
+                if(j >= jEnd || (i < iEnd && a.mColIdx[i] < b.mColIdx[j])) {
+                    col = a.mColIdx[i];
+                    v = a.mValues[i++];
+                } else if(i >= iEnd || b.mColIdx[j] < a.mColIdx[i]) {
+                    col = b.mColIdx[j];
+                    v = sign * b.mValues[j++];
+                } else {
+                    col = a.mColIdx[i];
+                    v = a.mValues[i++] + sign * b.mValues[j++];
+                }
+
+                if(v != 0) {
+                    colIdx[p] = col;
+                    values[p++] = v;
+                }
+            }
+
+            rowPtr[row + 1] = p;
+        }
+
+        return new SparseMatrix(rows, a.getCols(), rowPtr, colIdx, values);
+    }
+
+    /**
+     * Gets the representation of a result depending on its density
+     *
+     * @param m Result
+     * @return The sparse matrix or a dense copy of it
+     */
+    static Matrix pick(SparseMatrix m) {
+        return m.getDensity() > sDensityThreshold ? m.toDense() : m;
+    }
+
+    /**
+     * Copies the values to a dense matrix. If the dense matrix is smaller those values are lost.
+     *
+     * @param dest Destination
+     */
+    void copyInto(Matrix dest) {
+
+        int rows = Math.min(getRows(), dest.getRows());
+        int cols = Math.min(getCols(), dest.getCols());
+
+        double d[] = dest.editBuffer();
+
+        for(int row = 0; row < rows; row++) {
+            int di = dest.getOffset() + row * dest.getStride();
+
+            Arrays.fill(d, di, di + cols, 0);
+
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++)
+                if(mColIdx[p] < cols)
+                    d[di + mColIdx[p]] = mValues[p];
+        }
+
+        dest.markModified();
+    }
+
+    // Adds sign * this to the dense matrix dest
+    private void scatter(Matrix dest, int sign) {
+
+        double d[] = dest.editBuffer();
+
+        for(int row = 0; row < getRows(); row++) {
+            int di = dest.getOffset() + row * dest.getStride();
+
+            for(int p = mRowPtr[row]; p < mRowPtr[row + 1]; p++)
+                d[di + mColIdx[p]] += sign * mValues[p];
+        }
+    }
+
+    private static void negate(Matrix m) {
+
+        double d[] = m.editBuffer();
+
+        for(int row = 0; row < m.getRows(); row++) {
+            int i = m.getOffset() + row * m.getStride();
+
+            for(int col = 0; col < m.getCols(); col++)
+                d[i + col] = -d[i + col];
+        }
+    }
+
+    // Copies the arrays if a copy is reading them, so they can be written
+    private void edit() {
+
+        if(!mShared)
+            return;
+
+        mRowPtr = mRowPtr.clone();
+        mColIdx = mColIdx.clone();
+        mValues = mValues.clone();
+        mShared = false;
+    }
+
+    /**
+     * Finds the position of a value
+     *
+     * @return The position or (-insertion point - 1) if the value is zero
+     */
+    private int find(int row, int col) {
+        return Arrays.binarySearch(mColIdx, mRowPtr[row], mRowPtr[row + 1], col);
+    }
+
+    private void insert(int row, int p, int col, double value) {
+
+        int nnz = getNonZeros();
+
+        if(nnz == mColIdx.length) {
+            int capacity = Math.max(4, nnz * 2);
+            mColIdx = Arrays.copyOf(mColIdx, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+
+        System.arraycopy(mColIdx, p, mColIdx, p + 1, nnz - p);
+        System.arraycopy(mValues, p, mValues, p + 1, nnz - p);
+
+        mColIdx[p] = col;
+        mValues[p] = value;
+
+        for(int r = row + 1; r <= getRows(); r++)
+            mRowPtr[r]++;
+    }
+
+    private void remove(int row, int p) {
+
+        int nnz = getNonZeros();
+
+        System.arraycopy(mColIdx, p + 1, mColIdx, p, nnz - p - 1);
+        System.arraycopy(mValues, p + 1, mValues, p, nnz - p - 1);
+
+        for(int r = row + 1; r <= getRows(); r++)
+            mRowPtr[r]--;
+    }
+}
@@ -0,0 +1,266 @@
+package com.rom.matapp.mat;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Strassen-Winograd multiplication of square matrices.
+ *
+ * Each level of the recursion computes the product of two n x n matrices with 7 products
+ * and 15 additions of n/2 x n/2 matrices. The recursion stops at the crossover size, where
+ * the blocked kernel of {@link Gemm} is used. Matrices whose size is not a multiple of a
+ * power of two are padded with zeros.
+ *
+ * The result is less accurate than the classic product. See {@link #errorBound(Matrix, Matrix)}.
+ */
+public class Strassen {
+
+    // Size from which the recursion stops. Below about 1024 the blocked kernel is faster
+    // than saving an eighth of its multiplications with 15 extra additions
+    private static volatile int sCrossover = 1024;
+
+    /**
+     * Sets the biggest size multiplied with the blocked kernel.
+     *
+     * @param crossover The crossover size
+     */
+    public static void setCrossover(int crossover) {
+
+        if(crossover < 1)
+            throw new IllegalArgumentException("The crossover size must be positive");
+
+        sCrossover = crossover;
+    }
+
+    public static int getCrossover() {
+        return sCrossover;
+    }
+
+    /**
+     * Multiply a by b
+     *
+     * @param a Square matrix A
+     * @param b Square matrix B
+     * @param pool The pool used by the kernel or null to multiply in the calling thread
+     * @return The result matrix or null if the matrices aren't square or the dimensions don't agree
+     */
+    public static Matrix multiply(Matrix a, Matrix b, ForkJoinPool pool) {
+
+        if(!a.isSquare() || !b.isSquare() || a.getCols() != b.getRows())
+            return null;
+
+        // The quadrants are views of the buffers, so sparse operands are multiplied as dense matrices
+        a = a.toDense();
+        b = b.toDense();
+
+        int n = a.getRows();
+
+        if(n <= sCrossover)
+            return Gemm.multiply(a, b, pool);
+
+        int size = paddedSize(n);
+
+        Matrix c = new Matrix(n, n);
+
+        if(size == n)
+            multiply(a, b, c, pool);
+        else {
+            Matrix pa = new Matrix(size, size);
+            Matrix pb = new Matrix(size, size);
+            Matrix pc = new Matrix(size, size);
+
+            Matrix.copyValues(a, pa);
+            Matrix.copyValues(b, pb);
+
+            multiply(pa, pb, pc, pool);
+
+            Matrix.copyValues(pc, c);
+        }
+
+        return c;
+    }
+
+    /**
+     * Computes C = A * B. The size of the matrices must be a power of two times a size
+     * not bigger than the crossover.
+     */
+    private static void multiply(Matrix a, Matrix b, Matrix c, ForkJoinPool pool) {
+
+        int n = a.getRows();
+
+        if(n <= sCrossover) {
+            fill(c, 0);
+            Gemm.multiplyAdd(a, b, c, pool);
+            return;
+        }
+
+        int h = n / 2;
+
+        Matrix a11 = a.view(0, 0, h, h);
+        Matrix a12 = a.view(0, h, h, h);
+        Matrix a21 = a.view(h, 0, h, h);
+        Matrix a22 = a.view(h, h, h, h);
+
+        Matrix b11 = b.view(0, 0, h, h);
+        Matrix b12 = b.view(0, h, h, h);
+        Matrix b21 = b.view(h, 0, h, h);
+        Matrix b22 = b.view(h, h, h, h);
+
+        Matrix c11 = c.view(0, 0, h, h);
+        Matrix c12 = c.view(0, h, h, h);
+        Matrix c21 = c.view(h, 0, h, h);
+        Matrix c22 = c.view(h, h, h, h);
+
+        Matrix s = new Matrix(h, h);
+        Matrix t = new Matrix(h, h);
+        Matrix p1 = new Matrix(h, h);
+        Matrix p2 = new Matrix(h, h);
+        Matrix p3 = new Matrix(h, h);
+
+        // P1 = A11 * B11
+        multiply(a11, b11, p1, pool);
+
+        // C11 = P1 + A12 * B21
+        multiply(a12, b21, p2, pool);
+        combine(p1, p2, c11, 1);
+
+        // C22 = P5 = (A21 + A22) * (B12 - B11)
+        combine(a21, a22, s, 1);
+        combine(b12, b11, t, -1);
+        multiply(s, t, c22, pool);
+
+        // P6 = (S1 - A11) * (B22 - T1)
+        combine(s, a11, s, -1);
+        combine(b22, t, t, -1);
+        multiply(s, t, p2, pool);
+
+        // C12 = U2 = P1 + P6
+        combine(p1, p2, c12, 1);
+
+        // P3 = (A12 - S2) * B22
+        combine(a12, s, s, -1);
+        multiply(s, b22, p3, pool);
+
+        // P4 = A22 * (T2 - B21)
+        combine(t, b21, t, -1);
+        multiply(a22, t, p1, pool);
+
+        // P7 = (A11 - A21) * (B22 - B12)
+        combine(a11, a21, s, -1);
+        combine(b22, b12, t, -1);
+        multiply(s, t, p2, pool);
+
+        // U3 = U2 + P7, C21 = U3 - P4, C22 = U3 + P5, C12 = U2 + P5 + P3
+        combine(c12, p2, p2, 1);
+        combine(c12, c22, c12, 1);
+        combine(c12, p3, c12, 1);
+        combine(p2, p1, c21, -1);
+        combine(p2, c22, c22, 1);
+    }
+
+    /**
+     * Computes dest = x + sign * y. Dest may be x or y.
+     */
+    private static void combine(Matrix x, Matrix y, Matrix dest, int sign) {
+
+        int rows = x.getRows();
+        int cols = x.getCols();
+
+        double xd[] = x.getBuffer();
+        double yd[] = y.getBuffer();
+        double dd[] = dest.editBuffer();
+
+        for(int row = 0; row < rows; row++) {
+            int xi = x.getOffset() + row * x.getStride();
+            int yi = y.getOffset() + row * y.getStride();
+            int di = dest.getOffset() + row * dest.getStride();
+
+            if(sign > 0)
+                for(int col = 0; col < cols; col++)
+                    dd[di + col] = xd[xi + col] + yd[yi + col];
+            else
+                for(int col = 0; col < cols; col++)
+                    dd[di + col] = xd[xi + col] - yd[yi + col];
+        }
+
+    }
+
+    private static void fill(Matrix m, double value) {
+        for(int row = 0; row < m.getRows(); row++) {
+            int i = m.getOffset() + row * m.getStride();
+            Arrays.fill(m.editBuffer(), i, i + m.getCols(), value);
+        }
+    }
+
+    /**
+     * Gets the size the matrices are padded to: the crossover is reached by halving
+     * the size an exact number of times.
+     *
+     * @param n Size
+     * @return The padded size
+     */
+    static int paddedSize(int n) {
+
+        int base = n;
+        int levels = 0;
+
+        while(base > sCrossover) {
+            base = (base + 1) / 2;
+            levels++;
+        }
+
+        return base << levels;
+    }
+
+    /**
+     * Gets a bound of the error of the Strassen-Winograd product:
+     * max|C - fl(C)| <= bound. (Higham, Accuracy and Stability of Numerical Algorithms, 23.2.2)
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @return The bound
+     */
+    public static double errorBound(Matrix a, Matrix b) {
+
+        int n = paddedSize(a.getRows());
+        int base = n;
+
+        while(base > sCrossover)
+            base /= 2;
+
+        double factor = Math.pow((double) n / base, Math.log(18) / Math.log(2)) * (base * (double) base + 6 * base) - 6 * n;
+
+        return factor * unitRoundoff() * maxAbs(a) * maxAbs(b);
+    }
+
+    /**
+     * Gets a bound of the error of the classic product: max|C - fl(C)| <= bound.
+     * Used for comparing with {@link #errorBound(Matrix, Matrix)}.
+     *
+     * @param a Matrix A
+     * @param b Matrix B
+     * @return The bound
+     */
+    public static double classicErrorBound(Matrix a, Matrix b) {
+        return classicFactor(a.getCols()) * unitRoundoff() * maxAbs(a) * maxAbs(b);
+    }
+
+    private static double classicFactor(int n) {
+        return n * (double) n;
+    }
+
+    private static double unitRoundoff() {
+        return Math.ulp(1.0) / 2;
+    }
+
+    private static double maxAbs(Matrix m) {
+
+        double max = 0;
+
+        for(int row = 0; row < m.getRows(); row++)
+            for(int col = 0; col < m.getCols(); col++)
+                max = Math.max(max, Math.abs(m.getValue(row, col)));
+
+        return max;
+    }
+}
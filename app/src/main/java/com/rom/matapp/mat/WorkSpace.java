@@ -1,7 +1,21 @@
 package com.rom.matapp.mat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *
@@ -14,41 +28,193 @@ public class WorkSpace {
     public static final int RESULT_ERROR_MAT_NFOUND = 4;
     public static final int RESULT_ERROR_BAD_EXP = 5;
 
+    // Number of compiled expressions kept
+    private static final int PLAN_CACHE_SIZE = 64;
+
+    // Bytes of values of the cached subexpressions
+    private static final long RESULT_CACHE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Receives the progress and the result of an expression resolved in background.
+     * The methods are called in the background thread, except onCancelled which is called
+     * in the thread which cancels the future if it's cancelled while it's running.
+     */
+    public interface ResolveCallback {
+
+        /**
+         * @param done Operations computed
+         * @param total Operations of the expression
+         */
+        void onProgress(int done, int total);
+
+        void onResolved(ResolveResult result);
+
+        void onCancelled();
+    }
+
+    /**
+     * Receives the results recomputed by an update made in background, in the background thread
+     */
+    public interface UpdateCallback {
+
+        /**
+         * @param updated The recomputed matrices, in the order they were computed
+         * @param status RESULT_OK or the error of the last expression which couldn't be resolved
+         */
+        void onUpdated(List<Matrix> updated, int status);
+    }
+
     // This is where all the matrices are stored
-    private List<Matrix> mMatrices;
+    private ConcurrentMatrixRegistry mMatrices;
 
-    private int mStatus = RESULT_OK;
+    // Status of the last call of each thread
+    private ThreadLocal<Integer> mStatus;
 
-    // Creates a new WorkSpace
+    // Pool used to compute big operations in parallel. Null to compute them in the calling thread
+    private volatile ForkJoinPool mPool;
+
+    // Instructions of an expression computed at the same time. 0 for the parallelism of the pool
+    private volatile int mMaxParallelism;
+
+    // Thread where the expressions are resolved in background. Created when it's needed
+    private ExecutorService mExecutor;
+
+    // Monitor of the computation running in the background thread, cancelled by shutdown()
+    private volatile ProgressMonitor mRunning;
+
+    // Compiled expressions by their text, the least recently used first
+    private Map<String, ExpressionPlan> mPlans;
+
+    // Results of the expensive subexpressions
+    private ResultCache mResults;
+
+    // Expressions of the result matrices by the id of the result
+    private Map<Integer, Derivation> mDerivations;
+
+    // Held by update() for all its work, so updates run one by one
+    private final Object mUpdateLock = new Object();
+
+    /**
+     * Creates a new WorkSpace. A workspace can be used by many threads: the matrices can be
+     * added, removed and edited while expressions are resolved, since every expression is
+     * computed over snapshots of its matrices taken when it starts.
+     */
     public WorkSpace() {
-        mMatrices = new LinkedList<Matrix>();
+        mMatrices = new ConcurrentMatrixRegistry();
+        mStatus = new ThreadLocal<Integer>() {
+            @Override
+            protected Integer initialValue() {
+                return RESULT_OK;
+            }
+        };
+        mPlans = new LinkedHashMap<String, ExpressionPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExpressionPlan> eldest) {
+                return size() > PLAN_CACHE_SIZE;
+            }
+        };
+        mResults = new ResultCache(RESULT_CACHE_BYTES);
+        mDerivations = new LinkedHashMap<Integer, Derivation>();
+    }
+
+    /**
+     * Sets the pool used to compute big operations in parallel
+     *
+     * @param pool The pool or null to compute every operation in the calling thread
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        return mPool;
+    }
+
+    /**
+     * Sets how many independent subexpressions are computed at the same time in the pool
+     *
+     * @param parallelism The maximum, 1 to compute them one by one or 0 to use the parallelism of the pool
+     */
+    public void setMaxParallelism(int parallelism) {
+
+        if(parallelism < 0)
+            throw new IllegalArgumentException("The parallelism can't be negative");
+
+        mMaxParallelism = parallelism;
     }
 
+    /**
+     * @return How many subexpressions can be computed at the same time. 1 if there's no pool
+     */
+    public int getMaxParallelism() {
+
+        if(mPool == null)
+            return 1;
+
+        return mMaxParallelism > 0 ? mMaxParallelism : mPool.getParallelism();
+    }
+
+    /**
+     * Gets the cache of the results of the subexpressions. Its budget can be changed.
+     *
+     * @return The cache
+     */
+    public ResultCache getResultCache() {
+        return mResults;
+    }
+
+    /**
+     * Gets the status of the last expression resolved or updated by the calling thread
+     *
+     * @return RESULT_OK or the error
+     */
     public int getStatus() {
-        return mStatus;
+        return mStatus.get();
     }
 
     public void clearStatus() {
-        mStatus = RESULT_OK;
+        mStatus.set(RESULT_OK);
     }
 
-    // Adds a matrix to the matrix list
+    /**
+     * Adds a matrix to the registry. Ids are unique: a matrix with the same id as one of the
+     * workspace replaces it, so the old one isn't found by its id or by its name anymore.
+     * The list of matrices used before the registry kept both of them, and a search by id
+     * found the first one added.
+     *
+     * @param matrix The matrix, with its id already set
+     */
     public void addMatrix(Matrix matrix) {
-        mMatrices.add(matrix);
+        mMatrices.put(matrix);
     }
 
     /**
-     * Finds a matrix in the matrix list given its id
+     * Finds a matrix in the registry given its id
      *
      * @param id
      * @return The matrix or null if it wasn't found
      */
     public Matrix findMatrixById(int id) {
-        for(Matrix m : mMatrices)
-            if(m.getId() == id)
-                return m;
+        return mMatrices.get(id);
+    }
+
+    /**
+     * Finds a matrix in the registry given its name
+     *
+     * @param name
+     * @return The matrix or null if it wasn't found
+     */
+    public Matrix findMatrixByName(String name) {
+        return mMatrices.findByName(name);
+    }
 
-        return null;
+    /**
+     * Gets the matrices of the workspace at a single moment
+     *
+     * @return The matrices, in no particular order
+     */
+    public List<Matrix> getMatrices() {
+        return mMatrices.snapshot();
     }
 
     /**
@@ -57,20 +223,466 @@ public class WorkSpace {
      * @param id
      */
     public void removeMatrix(int id) {
-        mMatrices.remove(findMatrixById(id));
+        mMatrices.remove(id);
+
+        synchronized(mDerivations) {
+            mDerivations.remove(id);
+        }
     }
 
-    // Resolves the given expression
-    public Matrix resolveExpression(String expression) {
+    /**
+     * Adds the result of an expression. The result is recomputed by {@link #update()}
+     * when any matrix of the expression changes.
+     *
+     * @param result The result
+     * @param expression The expression which computed it
+     */
+    public void addResultMatrix(Matrix result, String expression) {
+
+        addMatrix(result);
+
+        Derivation d = new Derivation(expression);
+        record(d);
+
+        synchronized(mDerivations) {
+            mDerivations.put(result.getId(), d);
+        }
+    }
+
+    /**
+     * Checks if a result was computed from values which changed since then,
+     * directly or through other results
+     *
+     * @param id Id of the result
+     * @return True if the result must be recomputed. False if it's up to date or it's not a result
+     */
+    public boolean isStale(int id) {
+        synchronized(mDerivations) {
+            return isStale(id, new HashSet<Integer>());
+        }
+    }
+
+    private boolean isStale(int id, Set<Integer> visited) {
+
+        Derivation d = mDerivations.get(id);
+
+        if(d == null || !visited.add(id))
+            return false;
+
+        for(int i = 0; i < d.mInputs.length; i++) {
+            Matrix m = findMatrixById(d.mInputs[i]);
+
+            if(m == null || m.getVersion() != d.mVersions[i] || isStale(d.mInputs[i], visited))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Recomputes the results whose matrices changed. The results are visited in topological
+     * order, every result after the ones it uses, so each stale expression is resolved once
+     * and the results which are up to date are not touched.
+     *
+     * The status of the calling thread is set to the error of the last expression which couldn't
+     * be resolved, if any. Those results keep their old values. Updates of many threads run one by one.
+     *
+     * The results to visit are taken under the lock of the derivations, but they are resolved
+     * outside it, so matrices and results can be added and removed meanwhile.
+     *
+     * The new values replace the old ones at once, under the lock of the result, so other
+     * threads must read the results through {@link Matrix#snapshot()}: its dimensions and values
+     * are all old or all new. Reading them one by one can see a result in the middle of a change.
+     *
+     * @return The recomputed matrices, in the order they were computed
+     */
+    public List<Matrix> update() {
+
+        int status = RESULT_OK;
+        List<Matrix> updated = new ArrayList<Matrix>();
+
+        synchronized(mUpdateLock) {
+            List<Integer> order = new ArrayList<Integer>();
+            List<Derivation> derivations = new ArrayList<Derivation>();
+
+            synchronized(mDerivations) {
+                Set<Integer> visited = new HashSet<Integer>();
+
+                for(Integer id : mDerivations.keySet())
+                    sort(id, visited, order);
+
+                for(Integer id : order)
+                    derivations.add(mDerivations.get(id));
+            }
+
+            for(int i = 0; i < order.size(); i++) {
+                int id = order.get(i);
+                Derivation d = derivations.get(i);
+                Matrix result = findMatrixById(id);
+
+                // A result recomputed before has a new version, so the results which use it are changed too
+                if(result == null || !changed(d))
+                    continue;
+
+                // The versions are taken before resolving, so a change made meanwhile is seen by the next update
+                Derivation next = new Derivation(d.mExpression);
+                record(next);
+
+                ResolveResult r = resolve(d.mExpression);
+
+                if(r.getStatus() != RESULT_OK) {
+                    status = r.getStatus();
+                    continue;
+                }
+
+                synchronized(mDerivations) {
+
+                    // The result was removed or replaced meanwhile
+                    if(mDerivations.get(id) != d || findMatrixById(id) != result)
+                        continue;
+
+                    result.assign(r.getMatrix());
+
+                    d.mInputs = next.mInputs;
+                    d.mVersions = next.mVersions;
+                }
+
+                updated.add(result);
+            }
+        }
+
+        mStatus.set(status);
+
+        return updated;
+    }
+
+    // Depth first search which adds the inputs of a result before the result
+    private void sort(Integer id, Set<Integer> visited, List<Integer> order) {
+
+        Derivation d = mDerivations.get(id);
+
+        if(d == null || !visited.add(id))
+            return;
+
+        for(int input : d.mInputs)
+            sort(input, visited, order);
+
+        order.add(id);
+    }
+
+    // Checks if any input of the derivation is missing or has a new version
+    private boolean changed(Derivation d) {
+
+        for(int i = 0; i < d.mInputs.length; i++) {
+            Matrix m = findMatrixById(d.mInputs[i]);
+
+            if(m == null || m.getVersion() != d.mVersions[i])
+                return true;
+        }
+
+        return false;
+    }
+
+    // Stores the matrices loaded by the expression and their current versions
+    private void record(Derivation d) {
+
+        ExpressionPlan plan = getPlan(d.mExpression);
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for(int i = 0; i < plan.size(); i++)
+            if(plan.getOp(i) == ExpressionPlan.OP_LOAD && !ids.contains(plan.getId(i)))
+                ids.add(plan.getId(i));
+
+        d.mInputs = new int[ids.size()];
+        d.mVersions = new long[ids.size()];
+
+        for(int i = 0; i < d.mInputs.length; i++) {
+            Matrix m = findMatrixById(ids.get(i));
+
+            d.mInputs[i] = ids.get(i);
+            d.mVersions[i] = m == null ? -1 : m.getVersion();
+        }
+    }
+
+    /**
+     * Gets the compiled plan of an expression. Plans are cached by the text of the expression.
+     * A cached plan whose matrices were replaced, removed or changed their dimensions is compiled
+     * again from its parsed tree.
+     *
+     * @param expression The expression
+     * @return The plan
+     */
+    public ExpressionPlan getPlan(String expression) {
+
+        ExpressionPlan plan;
+
+        synchronized(mPlans) {
+            plan = mPlans.get(expression);
+        }
+
+        if(plan != null && plan.isValid(this))
+            return plan;
+
+        Expression exp = new Expression(this, expression);
+
+        if(plan == null)
+            plan = exp.compile();
+        else
+            plan = exp.compile(plan.getTree());
+
+        // Two threads may compile the same expression at the same time, the last plan is kept
+        synchronized(mPlans) {
+            mPlans.put(expression, plan);
+        }
+
+        return plan;
+    }
+
+    // Removes every compiled expression
+    public void clearPlans() {
+        synchronized(mPlans) {
+            mPlans.clear();
+        }
+    }
+
+    /**
+     * Resolves the given expression
+     *
+     * @param expression The expression
+     * @return The result and its status
+     */
+    public ResolveResult resolve(String expression) {
 
         Expression exp = new Expression(this, expression);
 
         Matrix r = exp.resolve();
 
-        mStatus = exp.getStatus();
+        return new ResolveResult(expression, r, exp.getStatus());
+    }
+
+    // Resolves the given expression. The status of the calling thread is set to the one of the result
+    public Matrix resolveExpression(String expression) {
+
+        ResolveResult r = resolve(expression);
+
+        mStatus.set(r.getStatus());
+
+        return r.getMatrix();
+
+    }
+
+    /**
+     * Resolves many expressions at once. Their plans are joined, so a subexpression which appears
+     * in many expressions is computed once. The status of the workspace isn't changed: each
+     * expression has its own.
+     *
+     * @param expressions The expressions
+     * @return The result of each expression, in the same order
+     */
+    public List<ResolveResult> resolveAll(List<String> expressions) {
+
+        ResolveResult results[] = new ResolveResult[expressions.size()];
+
+        List<ExpressionPlan> plans = new ArrayList<ExpressionPlan>();
+        List<Integer> indices = new ArrayList<Integer>();
+
+        for(int i = 0; i < expressions.size(); i++) {
+            ExpressionPlan plan = getPlan(expressions.get(i));
+
+            if(plan.getStatus() != RESULT_OK)
+                results[i] = new ResolveResult(expressions.get(i), null, plan.getStatus());
+            else {
+                plans.add(plan);
+                indices.add(i);
+            }
+        }
+
+        if(!plans.isEmpty()) {
+            int roots[] = new int[plans.size()];
+            int status[] = new int[plans.size()];
+
+            ExpressionPlan joined = ExpressionPlan.join(plans, roots);
+            Matrix values[] = new Expression(this, null).execute(joined, roots, status);
+
+            for(int k = 0; k < plans.size(); k++) {
+                int i = indices.get(k);
+                results[i] = new ResolveResult(expressions.get(i), values[k], status[k]);
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Resolves an expression in a background thread. The expressions are resolved one by one,
+     * in the order they were sent. Cancelling the future stops the computation the next time
+     * the kernels check their {@link ProgressMonitor}.
+     *
+     * The status of the workspace isn't changed: the result has its own.
+     *
+     * @param expression The expression
+     * @param callback The callback or null
+     * @return The future result
+     */
+    public Future<ResolveResult> resolveExpressionAsync(final String expression, final ResolveCallback callback) {
+
+        final ProgressMonitor monitor = new ProgressMonitor(callback == null ? null : new ProgressMonitor.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                callback.onProgress(done, total);
+            }
+        });
+
+        FutureTask<ResolveResult> task = new FutureTask<ResolveResult>(new Callable<ResolveResult>() {
+            @Override
+            public ResolveResult call() {
+
+                ProgressMonitor previous = ProgressMonitor.enter(monitor);
+                mRunning = monitor;
+
+                try {
+                    monitor.check();
+
+                    return resolve(expression);
+                } finally {
+                    mRunning = null;
+                    ProgressMonitor.exit(previous);
+                }
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                monitor.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            protected void done() {
+
+                if(callback == null)
+                    return;
+
+                if(isCancelled()) {
+                    callback.onCancelled();
+                    return;
+                }
+
+                try {
+                    callback.onResolved(get());
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof CancellationException)
+                        callback.onCancelled();
+                    else if(e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    else if(e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    else
+                        throw new RuntimeException(e.getCause());
+                }
+            }
+        };
+
+        getExecutor().execute(task);
+
+        return task;
+    }
+
+    /**
+     * Recomputes the stale results in the background thread, after the expressions sent before.
+     * See {@link #update()}. Cancelling the future stops the update like an expression; the
+     * results which were already recomputed keep their new values.
+     *
+     * @param callback The callback or null. It isn't called if the update is cancelled
+     * @return The future recomputed matrices
+     */
+    public Future<List<Matrix>> updateAsync(final UpdateCallback callback) {
+
+        final ProgressMonitor monitor = new ProgressMonitor();
+
+        FutureTask<List<Matrix>> task = new FutureTask<List<Matrix>>(new Callable<List<Matrix>>() {
+            @Override
+            public List<Matrix> call() {
+
+                ProgressMonitor previous = ProgressMonitor.enter(monitor);
+                mRunning = monitor;
+
+                List<Matrix> updated;
+
+                try {
+                    monitor.check();
+
+                    updated = update();
+                } finally {
+                    mRunning = null;
+                    ProgressMonitor.exit(previous);
+                }
+
+                if(callback != null)
+                    callback.onUpdated(updated, getStatus());
+
+                return updated;
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                monitor.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        getExecutor().execute(task);
+
+        return task;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+
+        if(mExecutor == null)
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "WorkSpace resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        return mExecutor;
+    }
+
+    /**
+     * Stops the background thread. The expressions which weren't resolved yet are cancelled
+     * and the running one stops the next time the kernels check their {@link ProgressMonitor}.
+     */
+    public synchronized void shutdown() {
+
+        if(mExecutor == null)
+            return;
+
+        // The thread is also interrupted, but it may be waiting for a pool
+        ProgressMonitor running = mRunning;
+        if(running != null)
+            running.cancel();
+
+        for(Runnable r : mExecutor.shutdownNow())
+            ((Future<?>) r).cancel(true);
+
+        mExecutor = null;
+    }
+
+    // Expression of a result and the versions of the matrices it was computed from
+    private static class Derivation {
+
+        String mExpression;
 
-        return r;
+        int mInputs[];
+        long mVersions[];
 
+        Derivation(String expression) {
+            mExpression = expression;
+        }
     }
 
 }
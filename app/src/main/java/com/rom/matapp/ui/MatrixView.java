@@ -122,7 +122,7 @@ public class MatrixView extends GridLayout {
      */
     public void setMat(Matrix m) {
         mMatrix = m;
-        fillMatrixView();
+        refresh();
     }
 
     /**
@@ -179,8 +179,9 @@ public class MatrixView extends GridLayout {
             // Makes the bottom menu visible
             getWorkSpace().findViewById(R.id.menu).setVisibility(View.VISIBLE);
 
-            // Saves the matrix fields values
-            saveMatrix();
+            // Saves the matrix fields values and recomputes the results which use them
+            if (saveMatrix())
+                getWorkSpace().onMatrixChanged();
         }
 
         enabled = e;
@@ -203,30 +204,75 @@ public class MatrixView extends GridLayout {
     }
 
     /**
-     * Saves the values from the MatrixFields to the Matrix
+     * Saves the values from the MatrixFields to the Matrix.
+     * Only the values which changed are set, so the version of the matrix is kept if nothing changed.
+     *
+     * Results are recomputed by the workspace in a background thread, so the matrix is locked
+     * while it's compared and written. Nothing is saved if its dimensions changed meanwhile.
+     *
+     * @return True if any value changed
      */
-    private void saveMatrix() {
-        if(mMatrix == null) return;
+    private boolean saveMatrix() {
+        if(mMatrix == null) return false;
 
-        int c = getChildCount() - 1;
-        int rows = mMatrix.getRows();
-        int cols = mMatrix.getCols();
-        for(int i = 0; i < c; i++)
-            mMatrix.setValue(((MatrixField) getChildAt(i)).getValue(), i / cols, i % cols);
+        boolean changed = false;
+
+        synchronized(mMatrix) {
+            if(mMatrix.getRows() != getRowCount() || mMatrix.getCols() != getColumnCount())
+                return false;
+
+            int c = getChildCount() - 1;
+            int cols = mMatrix.getCols();
+            for(int i = 0; i < c; i++) {
+                double value = ((MatrixField) getChildAt(i)).getValue();
+
+                if(value != mMatrix.getValue(i / cols, i % cols)) {
+                    mMatrix.setValue(value, i / cols, i % cols);
+                    changed = true;
+                }
+            }
+        }
 
+        return changed;
     }
 
     /**
-     * Fills the Matrix Fields with the values from the Matrix
+     * Shows the current values of the Matrix. The fields are created again if its dimensions changed.
+     * The values are read from a snapshot, so a result recomputed meanwhile by the workspace
+     * is shown before or after the change, never in between.
      */
-    private void fillMatrixView() {
+    public void refresh() {
         if(mMatrix == null) return;
 
+        Matrix values = mMatrix.snapshot();
+
+        if(values.getRows() != getRowCount() || values.getCols() != getColumnCount()) {
+            boolean contract = contracted;
+
+            removeAllViews();
+            setMatrixFields(values.getRows(), values.getCols());
+
+            int c = getChildCount() - 1;
+            for(int i = 0; i < c; i++)
+                getChildAt(i).setEnabled(enabled);
+
+            contracted = false;
+            setContracted(contract);
+        }
+
+        fillMatrixView(values);
+    }
+
+    /**
+     * Fills the Matrix Fields with the values from the Matrix
+     *
+     * @param values Snapshot of the Matrix
+     */
+    private void fillMatrixView(Matrix values) {
         int c = getChildCount() - 1;
-        int rows = mMatrix.getRows();
-        int cols = mMatrix.getCols();
+        int cols = values.getCols();
         for(int i = 0; i < c; i++)
-            ((MatrixField) getChildAt(i)).setValue(mMatrix.getValue(i / cols, i % cols));
+            ((MatrixField) getChildAt(i)).setValue(values.getValue(i / cols, i % cols));
     }
 
     /**